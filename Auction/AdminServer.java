@@ -0,0 +1,94 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Appends items to the catalog of a running auction, on http://localhost:<port>/items
+ * Only bound to the loopback interface, it is meant for the operator of the node
+ *
+ * A POST carries one item per line, "<starting price> <description>" as in the configuration
+ * file, and gets one line per item back: the id the item was given, "forwarded" if this node
+ * passed it on to node 0 which numbers the items, or "refused" if the auctions have ended or
+ * the line is malformed.
+ */
+public class AdminServer implements HttpHandler
+{
+    private int port;
+    private Auctioneer auctioneer;
+    private HttpServer server;
+
+    public AdminServer(int port, Auctioneer auctioneer)
+    {
+        this.port       = port;
+        this.auctioneer = auctioneer;
+    }
+
+    public void start() throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/items", this);
+        server.start();
+    }
+
+    public void stop()
+    {
+        if (server != null)
+            server.stop(0);
+    }
+
+    public void handle(HttpExchange exchange) throws IOException
+    {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.sendResponseHeaders(405, -1);
+            exchange.close();
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty())
+                continue;
+            text.append(append(line)).append('\n');
+        }
+        in.close();
+        byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    /**
+     * Appends the item of one line of the request
+     * @param line
+     * @return the line of the reply
+     */
+    private String append(String line)
+    {
+        int splitPos = line.indexOf(' ');
+        if (splitPos <= 0)
+            return "refused";
+        int startingPrice;
+        try {
+            startingPrice = Integer.parseInt(line.substring(0, splitPos));
+        } catch (NumberFormatException e) {
+            return "refused";
+        }
+        int itemId = auctioneer.appendItem(startingPrice, line.substring(splitPos + 1).trim());
+        if (itemId < 0)
+            return "refused";
+        return (itemId == 0) ? "forwarded" : Integer.toString(itemId);
+    }
+}
@@ -0,0 +1,320 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A bidder's connection to an auctioneer, for programs that bid on their own
+ *
+ * Every bid carries a request id and returns a future that the auctioneer's bid_ack for that
+ * request id completes, once the bid has become the highest one or has been rejected, so a
+ * program can have several bids in flight and react to each outcome. Everything else the
+ * auctioneer sends is passed to the Listener.
+ *
+ * The listener and the futures are completed on the connection's reader thread, which should
+ * not be blocked by them. The methods of this class may be called from any thread.
+ */
+public class AuctionClient
+{
+    /**
+     * The outcome of a bid
+     */
+    public static class BidResult
+    {
+        private int itemId;
+        private int amount;
+        private boolean accepted;
+        private String reason;
+
+        public BidResult(int itemId, int amount, boolean accepted, String reason)
+        {
+            this.itemId   = itemId;
+            this.amount   = amount;
+            this.accepted = accepted;
+            this.reason   = reason;
+        }
+
+        public int getItemId()
+        {
+            return itemId;
+        }
+
+        public int getAmount()
+        {
+            return amount;
+        }
+
+        /**
+         * Returns true if the bid became the highest bid for the item; it may still be outbid later
+         * @return
+         */
+        public boolean isAccepted()
+        {
+            return accepted;
+        }
+
+        /**
+         * Returns why the bid was rejected, or null if it was accepted
+         * @return
+         */
+        public String getReason()
+        {
+            return reason;
+        }
+
+        public String toString()
+        {
+            return "bid " + amount + " on item " + itemId + (accepted ? " accepted" : " rejected: " + reason);
+        }
+    }
+
+    /**
+     * Receives the messages of the auctioneer, all methods do nothing unless overridden
+     */
+    public static abstract class Listener
+    {
+        public void itemAnnounced(int itemId, String description, int startingPrice) {}
+        public void biddingStarted(int itemId, int startingPrice) {}
+        public void newHighBid(int itemId, String bidder, int amount) {}
+        public void biddingStopped(int itemId, String winner) {}
+        public void info(String message) {}
+        public void auctionComplete() {}
+        public void disconnected() {}
+    }
+
+    private static final Charset charset = Charset.defaultCharset();
+    private static final long connectTimeoutMillis = 10000;
+
+    private SocketChannel channel;
+    private String name;
+    private boolean binary;
+    private Listener listener;
+    private BinaryCodec binaryCodec;
+    private FrameDecoder decoder;
+    private MessageFactory messageFactory;
+    private ConcurrentHashMap<String, CompletableFuture<BidResult>> bids;
+    private AtomicInteger nextRequestId;
+    private CountDownLatch connected;
+    private volatile boolean duplicateName;
+    private volatile boolean closed;
+
+    private AuctionClient(SocketChannel channel, String name, boolean binary, Listener listener)
+    {
+        this.channel        = channel;
+        this.name           = name;
+        this.binary         = binary;
+        this.listener       = listener;
+        this.binaryCodec    = new BinaryCodec();
+        this.decoder        = new FrameDecoder(binaryCodec);
+        this.messageFactory = new MessageFactory();
+        this.bids           = new ConcurrentHashMap<String, CompletableFuture<BidResult>>();
+        this.nextRequestId  = new AtomicInteger(1);
+        this.connected      = new CountDownLatch(1);
+        decoder.setBinary(binary);
+    }
+
+    /**
+     * Connects to an auctioneer as the given bidder and returns once the auctioneer has accepted
+     * the name. The bidder's full name is <bidderName>@<host>:<port>, as with ClientLauncher.
+     * @param host
+     * @param port
+     * @param bidderName
+     * @param protocol Constants.protocol_text or Constants.protocol_binary
+     * @param listener
+     * @return
+     * @throws IOException if the connection fails or the name is already taken
+     */
+    public static AuctionClient connect(String host, int port, String bidderName, String protocol, Listener listener)
+            throws IOException
+    {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        String name = bidderName + "@" + host + ":" + port;
+        boolean binary = Constants.protocol_binary.equals(protocol);
+        AuctionClient client = new AuctionClient(channel, name, binary, listener);
+        Message connect = client.messageFactory.createConnectMessage(name, protocol);
+        client.write(charset.encode(CharBuffer.wrap(connect.toString())));
+
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                client.runReader();
+            }
+        }, "AuctionClient " + name);
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            if (!client.connected.await(connectTimeoutMillis, TimeUnit.MILLISECONDS))
+                throw new IOException("No answer from the auctioneer");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting");
+        }
+        if (client.duplicateName || client.closed) {
+            client.close();
+            throw new IOException(client.duplicateName ? "Username " + name + " already exists" : "Connection closed");
+        }
+        return client;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Declares interest in an item, which has to be done while the item is announced
+     * @param itemId
+     * @throws IOException
+     */
+    public void interested(int itemId) throws IOException
+    {
+        send(messageFactory.createIAmInterestedMessage(name, itemId));
+    }
+
+    /**
+     * Places a bid and returns at once. The future completes when the auctioneer accepts or
+     * rejects the bid, or exceptionally if the connection is lost before it does.
+     * @param itemId
+     * @param amount
+     * @return
+     */
+    public CompletableFuture<BidResult> bid(int itemId, int amount)
+    {
+        int requestId = nextRequestId.getAndIncrement();
+        CompletableFuture<BidResult> result = new CompletableFuture<BidResult>();
+        bids.put(Integer.toString(requestId), result);
+        try {
+            send(messageFactory.createMyBidMessage(name, amount, itemId, requestId));
+        } catch (IOException e) {
+            bids.remove(Integer.toString(requestId));
+            result.completeExceptionally(e);
+        }
+        if (closed && bids.remove(Integer.toString(requestId)) != null)  // lost the race with the reader
+            result.completeExceptionally(new IOException("Connection closed"));
+        return result;
+    }
+
+    /**
+     * Returns the number of bids whose outcome has not arrived yet
+     * @return
+     */
+    public int getPendingBids()
+    {
+        return bids.size();
+    }
+
+    /**
+     * Leaves the auction and closes the connection
+     */
+    public void quit()
+    {
+        try {
+            send(messageFactory.createQuitMessage(name));
+        } catch (IOException e) {
+        }
+        close();
+    }
+
+    public void close()
+    {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void send(Message message) throws IOException
+    {
+        write(binary ? binaryCodec.encode(message) : charset.encode(CharBuffer.wrap(message.toString())));
+    }
+
+    private void write(ByteBuffer buffer) throws IOException
+    {
+        synchronized (channel) {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
+
+    private void runReader()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                Message m;
+                while ((m = decoder.next(buffer)) != null)
+                    handleMessage(m);
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            // closed by us or by the auctioneer
+        }
+        closed = true;
+        close();
+        connected.countDown();
+        IOException lost = new IOException("Connection closed");
+        for (String requestId : bids.keySet()) {
+            CompletableFuture<BidResult> result = bids.remove(requestId);
+            if (result != null)
+                result.completeExceptionally(lost);
+        }
+        listener.disconnected();
+    }
+
+    private void handleMessage(Message m)
+    {
+        switch (m.getCommand()) {
+        case Constants.bid_ack: {
+            CompletableFuture<BidResult> result = bids.remove(m.getProperty(Constants.request_id));
+            if (result != null) {
+                boolean accepted = Constants.bid_accepted.equals(m.getProperty(Constants.status));
+                result.complete(new BidResult(intProperty(m, Constants.item_id), intProperty(m, Constants.amount),
+                        accepted, accepted ? null : m.getProperty(Constants.message)));
+            }
+            break;
+        }
+        case Constants.bid_item:
+            listener.itemAnnounced(intProperty(m, Constants.item_id), m.getProperty(Constants.description),
+                    intProperty(m, Constants.starting_price));
+            break;
+        case Constants.start_bidding:
+            listener.biddingStarted(intProperty(m, Constants.item_id), intProperty(m, Constants.starting_price));
+            break;
+        case Constants.new_high_bid:
+            listener.newHighBid(intProperty(m, Constants.item_id), m.getProperty(Constants.username),
+                    intProperty(m, Constants.amount));
+            break;
+        case Constants.stop_bidding:
+            listener.biddingStopped(intProperty(m, Constants.item_id), m.getProperty(Constants.winner));
+            break;
+        case Constants.info:
+            listener.info(m.getProperty(Constants.message));
+            break;
+        case Constants.auction_complete:
+            listener.auctionComplete();
+            break;
+        case Constants.duplicate_name:
+            duplicateName = true;
+            break;
+        }
+        connected.countDown();
+    }
+
+    private static int intProperty(Message m, String name)
+    {
+        try {
+            return m.getInt(name);
+        } catch (NumberFormatException e) {   // missing or not a number
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * The single writer of the auction state, when the auctioneer runs with
+ * -Dauction.engine=single-writer
+ *
+ * The reactors and the timer wheel do not touch the lanes: they submit every message and
+ * timeout about an item as an event, and this thread runs the events one at a time in the
+ * order they were submitted. The lanes and their items are then only ever used by this
+ * thread and need no lock, the hot state stays in this core's cache and a run is
+ * deterministic for a given order of events.
+ *
+ * Events are drained in batches of up to maxBatch; the messages they send pile up in the
+ * outbound queues and peer batches until the reactors flush them, so a busy engine sends
+ * few large writes. An idle engine spins briefly before parking until the next submit.
+ * An event the engine submits while the ring is full goes to a local overflow queue, which it
+ * drains before polling the ring again; a shut down engine runs what is left in both.
+ */
+public class AuctionEngine extends Thread
+{
+    public static final int defaultRingSize = 64 * 1024;
+    private static final int maxBatch       = 256;
+    private static final int idleSpins      = 64;
+    private static final long parkNanos     = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private EventRing<Runnable> ring;
+    private ArrayDeque<Runnable> overflow;  // only used by the engine thread
+    private Histogram batchSizes;
+    private LongAdder ringFull;
+    private volatile boolean running;
+    private volatile boolean parked;
+
+    public AuctionEngine(String name, int ringSize, Metrics metrics)
+    {
+        super(name);
+        setDaemon(true);
+        this.ring       = new EventRing<Runnable>(ringSize);
+        this.overflow   = new ArrayDeque<Runnable>();
+        this.batchSizes = metrics.histogram(Metrics.engineBatch);
+        this.ringFull   = metrics.counter(Metrics.engineRingFull);
+        this.running    = true;
+    }
+
+    /**
+     * Queues an event to run on the engine thread, from any thread
+     * A producer finding the ring full waits for the engine to catch up, which slows
+     * down the reactor reading the bids rather than losing any of them; the engine cannot
+     * wait for itself and queues its own events in the overflow queue instead
+     * @param event
+     */
+    public void submit(Runnable event)
+    {
+        if (Thread.currentThread() == this) {
+            if (!overflow.isEmpty() || !ring.offer(event)) {    // behind the ones already there
+                if (overflow.isEmpty())
+                    ringFull.increment();
+                overflow.add(event);
+            }
+            return;
+        }
+        while (!ring.offer(event)) {
+            ringFull.increment();
+            Thread.yield();
+        }
+        if (parked)
+            LockSupport.unpark(this);
+    }
+
+    /**
+     * Stops the engine once it has run the events already submitted, and waits for it
+     */
+    public void shutdown()
+    {
+        running = false;
+        LockSupport.unpark(this);
+        if (Thread.currentThread() == this)
+            return;
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run()
+    {
+        int idle = 0;
+        while (running) {
+            int drained = 0;
+            Runnable event;
+            while (drained < maxBatch && (event = next()) != null) {
+                runEvent(event);
+                drained++;
+            }
+            if (drained > 0) {
+                batchSizes.record(drained);
+                idle = 0;
+            } else if (++idle < idleSpins) {
+                Thread.yield();
+            } else {
+                parked = true;
+                if (ring.isEmpty() && running)
+                    LockSupport.parkNanos(this, parkNanos);
+                parked = false;
+            }
+        }
+        Runnable event;
+        while ((event = next()) != null)
+            runEvent(event);
+    }
+
+    private Runnable next()
+    {
+        Runnable event = overflow.poll();
+        return (event != null) ? event : ring.poll();
+    }
+
+    private void runEvent(Runnable event)
+    {
+        try {
+            event.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
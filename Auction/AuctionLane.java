@@ -0,0 +1,1110 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+
+/**
+ * One auction lane: auctions its share of the items one after the other, with its own
+ * state machine, timers and interested users, in step with the same lane on every peer.
+ *
+ * Items are assigned to lanes by id (see Auctioneer.laneIndexOf), so all the auctioneers
+ * run the same items in the same lanes without having to agree on it. A lane reads its items
+ * from the catalog through its own cursor as their turn comes, then auctions the items
+ * appended while the auctions run, in the order node 0 numbered them.
+ * The bids for an item are decided by the node that owns it (see ClusterConfig.ownerOf). The
+ * owner takes the bids of its own users at once; the other nodes forward theirs to it as
+ * got_bid and it takes those that go above the highest bid, in the order they arrive. Every
+ * bid it takes is relayed to the other nodes as a bid_ok, and the end of the bidding, a lower
+ * price or the winner, is decided by the owner alone and relayed the same way, so the other
+ * nodes only keep their own users up to date.
+ * Every lane has its own lock and all the methods are to be called holding it, so the lanes,
+ * their timers and the messages about their items run in parallel. A lane may take the
+ * Auctioneer lock while holding its own, never the other way round. With the single writer
+ * engine the lock is not used: the methods are to be called on the engine thread instead.
+ * Either way, execute runs a task at the right place.
+ */
+public class AuctionLane
+{
+    enum State { OFFLINE, READY_TO_BEGIN, ACCEPTING_INTERESTS, WAITING_INTERESTED_COUNT, ACCEPTING_BIDS, READY_TO_END }
+
+    /**
+     * A bid of one of our users that carried a request id and is waiting for the peer
+     */
+    private static class Acknowledgement
+    {
+        int userId;
+        int amount;
+        String requestId;
+
+        Acknowledgement(int userId, int amount, String requestId)
+        {
+            this.userId    = userId;
+            this.amount    = amount;
+            this.requestId = requestId;
+        }
+    }
+
+    /**
+     * A got_bid of ours in flight, for the latency metrics
+     */
+    private static class Validation
+    {
+        int amount;
+        long receivedAt;
+        long sentAt;
+
+        Validation(int amount, long receivedAt, long sentAt)
+        {
+            this.amount     = amount;
+            this.receivedAt = receivedAt;
+            this.sentAt     = sentAt;
+        }
+    }
+
+    /**
+     * A got_bid or bid_ok that arrived before the bidding started here
+     */
+    private static class EarlyBid
+    {
+        int node;
+        Message message;
+
+        EarlyBid(int node, Message message)
+        {
+            this.node    = node;
+            this.message = message;
+        }
+    }
+
+    private int index;
+    private int timeLapse;
+    private ConfParser.Cursor catalog;
+    private ArrayDeque<Item> appended;          // past the end of the catalog, in id order
+    private ConcurrentLinkedQueue<Message> offered;     // item_added messages not taken in yet
+    private Auctioneer auctioneer;
+    private Proxy proxy;
+    private DBServer dbServer;
+    private Lock lock;
+    private AuctionEngine engine;     // null unless the single writer engine runs the lanes
+    private MessageFactory messageFactory;
+    private Item currentItem;
+    private State state;
+    private int peerCount;
+    private int owner;                          // the node deciding the bids for the current item
+    private HashSet<Integer> peersCounted;      // peers whose interested_count arrived
+    private HashSet<Integer> peersReadyToEnd;   // peers whose bid timer has ended
+    private TimerWheel timerWheel;
+    private EventJournal journal;
+    private UserRegistry users;
+    private TimerWheel.Timeout interestTimer;
+    private TimerWheel.Timeout bidTimer;
+    private Runnable interestTask;
+    private Runnable bidTask;
+    private boolean started;
+    private volatile boolean finished;      // read by the other lanes in Auctioneer.laneFinished
+    private ArrayList<Acknowledgement> unacknowledged;
+
+    // our got_bids waiting for the peer's bid_ok, by sequence number
+    private int nextSeq;
+    private HashMap<Integer, Validation> validations;
+
+    // with three nodes or more, a bid can be taken before every count has reached this node
+    private ArrayList<EarlyBid> earlyBids;
+    private Histogram peerRoundTrip;
+    private Histogram bidLatency;
+
+    // the highest bid of the current coalescing window, not sent to the peer yet
+    private int coalesceMillis;
+    private Message heldBid;
+    private int heldUser;
+    private int heldAmount;
+    private long heldReceivedAt;
+    private TimerWheel.Timeout coalesceTimer;
+    private Runnable coalesceTask;
+    private LongAdder coalescedBids;
+
+    public AuctionLane(int index, Auctioneer auctioneer, Proxy proxy, DBServer dbServer, int timeLapse)
+    {
+        this.index          = index;
+        this.auctioneer     = auctioneer;
+        this.proxy          = proxy;
+        this.dbServer       = dbServer;
+        this.timeLapse      = timeLapse;
+        this.lock           = new TimedLock(auctioneer.getMetrics().histogram(Metrics.laneLockWait),
+                                            auctioneer.getMetrics().histogram(Metrics.laneLockHold));
+        this.engine         = auctioneer.getEngine();
+        this.timerWheel     = auctioneer.getTimerWheel();
+        this.journal        = auctioneer.getJournal();
+        this.users          = auctioneer.getUsers();
+        this.messageFactory = new MessageFactory();
+        this.appended       = new ArrayDeque<Item>();
+        this.offered        = new ConcurrentLinkedQueue<Message>();
+        this.finished       = false;
+        this.unacknowledged = new ArrayList<Acknowledgement>();
+        this.nextSeq        = 0;
+        this.validations    = new HashMap<Integer, Validation>();
+        this.earlyBids      = new ArrayList<EarlyBid>();
+        this.peerRoundTrip  = auctioneer.getMetrics().histogram(Metrics.peerRoundTrip);
+        this.bidLatency     = auctioneer.getMetrics().histogram(Metrics.bidLatency);
+        this.coalesceMillis = auctioneer.getOptions().getBidCoalesceMillis();
+        this.coalescedBids  = auctioneer.getMetrics().counter(Metrics.coalescedBids);
+
+        this.peerCount       = auctioneer.getPeerCount();
+        this.peersCounted    = new HashSet<Integer>();
+        this.peersReadyToEnd = new HashSet<Integer>();
+
+        state = State.OFFLINE;
+
+        // the timeouts may have been cancelled or moved while their task waited for its turn
+        interestTask = onTimeout(new Runnable() {
+            @Override
+            public void run() {
+                if (interestTimer != null && interestTimer.isDue() && state == State.ACCEPTING_INTERESTS)
+                    interestTimerEnded();
+            }
+        });
+        bidTask = onTimeout(new Runnable() {
+            @Override
+            public void run() {
+                if (bidTimer != null && bidTimer.isDue() && state == State.ACCEPTING_BIDS)
+                    bidTimerEnded();
+            }
+        });
+        coalesceTask = onTimeout(new Runnable() {
+            @Override
+            public void run() {
+                if (coalesceTimer != null && coalesceTimer.isDue()) {
+                    coalesceTimer = null;
+                    validateHeldBid();
+                }
+            }
+        });
+    }
+
+    /**
+     * Wraps a task for the timer wheel, which passes it on to execute
+     * @param task
+     * @return
+     */
+    private Runnable onTimeout(final Runnable task)
+    {
+        return new Runnable() {
+            @Override
+            public void run() {
+                execute(task);
+            }
+        };
+    }
+
+    /**
+     * Runs a task that uses the state of the lane, from any thread
+     * The task runs at once holding the lane lock, or, with the single writer engine,
+     * later on the engine thread after the events submitted before it
+     * This method is to be called without holding the lock of any lane
+     * @param task
+     */
+    public void execute(Runnable task)
+    {
+        if (engine != null) {
+            engine.submit(task);
+            return;
+        }
+        lock.lock();
+        try {
+            task.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives the lane the cursor over its items of the catalog, to be called before it starts
+     * @param catalog
+     */
+    public void setCatalog(ConfParser.Cursor catalog)
+    {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Offers an appended item to the lane, which takes it in on its next turn
+     * This method is to be called holding the Auctioneer catalog lock, from any thread
+     * @param itemAdded
+     */
+    public void offer(Message itemAdded)
+    {
+        offered.offer(itemAdded);
+    }
+
+    /**
+     * Returns true if an item was offered and the lane has not taken it in yet, the
+     * auctions are not over then even if the lane is finished
+     * @return
+     */
+    public boolean hasOfferedItems()
+    {
+        return !offered.isEmpty();
+    }
+
+    /**
+     * Takes in the offered items, and begins the auction of the first one at once if the
+     * lane had run out of items
+     * This method is to be called from the lane's turn
+     */
+    public void takeOffered()
+    {
+        takeOfferedItems();
+        if (!finished || appended.isEmpty())
+            return;
+        finished = false;
+        if (started)
+            beginNextAuction();
+    }
+
+    /**
+     * Moves the offered items after the ones the lane has left, journaling them in its turn
+     */
+    private void takeOfferedItems()
+    {
+        int origin = (auctioneer.getNodeIndex() == 0) ? EventJournal.self : EventJournal.peer;
+        Message m;
+        while ((m = offered.poll()) != null) {
+            Item item = new Item(m.getInt(Constants.starting_price), m.getProperty(Constants.description),
+                    m.getInt(Constants.item_id));
+            journal.record(origin, m);
+            appended.add(item);
+            dbServer.addItem(item);
+        }
+    }
+
+    private boolean hasNextItem()
+    {
+        takeOfferedItems();
+        return catalog.hasNext() || !appended.isEmpty();
+    }
+
+    /**
+     * Takes the next item to auction, the catalog's first since its ids are the lower ones
+     * @return
+     */
+    private Item nextItem()
+    {
+        return catalog.hasNext() ? catalog.next() : appended.poll();
+    }
+
+    public Lock getLock()
+    {
+        return lock;
+    }
+
+    public Item getCurrentItem()
+    {
+        return currentItem;
+    }
+
+    public boolean isFinished()
+    {
+        return finished;
+    }
+
+    /**
+     * Begins the first auction, or carries on with the one a recovery restored, starting its
+     * timer over
+     */
+    public void start()
+    {
+        started = true;
+        if (finished) {
+            auctioneer.laneFinished();
+            return;
+        }
+        if (currentItem == null) {
+            beginNextAuction();
+            return;
+        }
+        auctioneer.debug("lane {}: Resuming the auction for item {} in state {}", index, currentItem.getId(), state);
+        switch (state) {
+        case ACCEPTING_INTERESTS:
+            interestTimer = timerWheel.schedule(interestTask, timeLapse * 1000);
+            break;
+        case WAITING_INTERESTED_COUNT:
+            interestTimerEnded();   // the peers ignore a count they already have
+            break;
+        default:
+            setBidTimer();          // a node that was ready to end waits for another lapse
+            break;
+        }
+    }
+
+    /**
+     * Captures the state of the lane for a snapshot
+     * @return
+     */
+    public AuctionSnapshot.Lane snapshot()
+    {
+        AuctionSnapshot.Lane snapshot = new AuctionSnapshot.Lane();
+        snapshot.seq            = journal.getLastSeq();
+        snapshot.finished       = finished;
+        snapshot.state          = state.name();
+        snapshot.catalogNext    = catalog.getNextId();
+        snapshot.appendedItems  = new ArrayList<Item>(appended);
+        if (currentItem != null) {
+            snapshot.itemId              = currentItem.getId();
+            snapshot.startingPrice       = currentItem.getStartingPrice();
+            snapshot.description         = currentItem.getDescription();
+            snapshot.currentBid          = currentItem.getCurrentBid();
+            snapshot.currentBidder       = currentItem.getCurrentBidder();
+            snapshot.tempBid             = currentItem.getTempBid();
+            snapshot.discountRound       = currentItem.getDiscountRound();
+            snapshot.peerInterestedCount = currentItem.getPeerInterestedCount();
+            snapshot.interestedUsers     = (BitSet) currentItem.getInterestedUsers().clone();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Puts the lane back in the state of a snapshot, before it is started
+     * @param snapshot
+     */
+    public void restore(AuctionSnapshot.Lane snapshot)
+    {
+        catalog.seek(snapshot.catalogNext);
+        appended.clear();
+        appended.addAll(snapshot.appendedItems);
+        finished = snapshot.finished;
+        state    = State.valueOf(snapshot.state);
+        if (snapshot.itemId < 0)
+            return;
+        currentItem = new Item(snapshot.startingPrice, snapshot.description, snapshot.itemId);
+        owner = auctioneer.ownerOf(currentItem.getId());
+        currentItem.setCurrentBid(snapshot.currentBid);
+        currentItem.setCurrentBidder(snapshot.currentBidder);
+        currentItem.setTempBid(snapshot.tempBid);
+        currentItem.setDiscountRound(snapshot.discountRound);
+        currentItem.setPeerInterestedCount(snapshot.peerInterestedCount);
+        BitSet interested = snapshot.interestedUsers;
+        for (int id = interested.nextSetBit(0); id >= 0; id = interested.nextSetBit(id + 1))
+            currentItem.addUser(id);
+    }
+
+    /**
+     * Applies a journal event about an item of this lane that came after the snapshot, the
+     * way the lane changed its state at the time, without sending anything
+     * The bids are taken from the new highest bids this node announced; bids that were
+     * still waiting for the owner or held for the end of the bidding are lost
+     * @param origin the id of the user the message came from, EventJournal.self or EventJournal.peer
+     * @param message
+     */
+    public void replay(int origin, Message message)
+    {
+        int itemId = message.getInt(Constants.item_id);
+        if (message.getCommand().equals(Constants.item_added)) {
+            Item item = new Item(message.getInt(Constants.starting_price),
+                    message.getProperty(Constants.description), itemId);
+            appended.add(item);
+            dbServer.addItem(item);     // it may not have been stored before the crash
+            finished = false;
+            return;
+        }
+        if (message.getCommand().equals(Constants.bid_item)) {
+            while (hasNextItem()) {
+                Item next = nextItem();
+                if (next.getId() == itemId) {
+                    currentItem = next;
+                    owner = auctioneer.ownerOf(itemId);
+                    state = State.ACCEPTING_INTERESTS;
+                    return;
+                }
+            }
+            return;
+        }
+        if (currentItem == null || currentItem.getId() != itemId)
+            return;
+
+        switch (message.getCommand()) {
+        case Constants.i_am_interested: {
+            if (state == State.ACCEPTING_INTERESTS && origin >= 0)
+                currentItem.addUser(origin);
+            break;
+        }
+        case Constants.interested_count:
+            if (origin == EventJournal.self)
+                state = State.WAITING_INTERESTED_COUNT;
+            else
+                currentItem.setPeerInterestedCount(currentItem.getPeerInterestedCount()
+                        + message.getInt(Constants.amount));
+            break;
+        case Constants.start_bidding:
+            state = State.ACCEPTING_BIDS;
+            break;
+        case Constants.new_high_bid: {
+            if (origin != EventJournal.self)
+                break;
+            int amount = message.getInt(Constants.amount);
+            String bidder = message.getProperty(Constants.username);
+            if (Constants.no_holder.equals(bidder)) {   // a discount round
+                currentItem.incrDiscountRound();
+                currentItem.setCurrentBidder(UserRegistry.noUser);
+                currentItem.setTempBid(amount);
+            } else {
+                currentItem.setCurrentBidder(users.idOf(bidder));
+                currentItem.setTempBid(Math.max(amount, currentItem.getTempBid()));
+            }
+            currentItem.setCurrentBid(amount);
+            state = State.ACCEPTING_BIDS;
+            break;
+        }
+        case Constants.ready_to_end:
+            if (origin == EventJournal.self)
+                state = State.READY_TO_END;
+            break;
+        case Constants.stop_bidding:
+            // the result may not have reached the database before the crash, writing it again is harmless
+            dbServer.updateItemPrice(itemId, message.getInt(Constants.highest_bid),
+                    message.getProperty(Constants.winner));
+            endReplayedItem();
+            break;
+        case EventJournal.item_discarded:
+            endReplayedItem();
+            break;
+        }
+    }
+
+    private void endReplayedItem()
+    {
+        currentItem = null;
+        state = State.READY_TO_BEGIN;
+        if (!hasNextItem())
+            finished = true;
+    }
+
+    /**
+     * Begins the next auction
+     */
+    public void beginNextAuction()
+    {
+        validations.clear();
+        earlyBids.clear();
+        cancelTimers();
+        if (currentItem != null)
+            rejectOutstandingBids("The auction for this item has ended.");
+
+        if (!hasNextItem()) { // there are no more items to auction in this lane
+            currentItem = null;
+            finished = true;
+            debug("No more items to auction");
+            auctioneer.laneFinished();
+            return;
+        }
+
+        currentItem = nextItem();
+        owner = auctioneer.ownerOf(currentItem.getId());
+        auctioneer.debug("lane {}: Starting Auction for item {}", index, currentItem.getId());
+        int itemId = currentItem.getId();
+        String description = currentItem.getDescription();
+        int startingPrice = currentItem.getStartingPrice();
+        Message m = messageFactory.createBidItemMessage(itemId, description, startingPrice);
+        journal.record(EventJournal.self, m);
+        proxy.broadcast(m);
+        setState(State.ACCEPTING_INTERESTS);
+        peersCounted.clear();
+        peersReadyToEnd.clear();
+
+        interestTimer = timerWheel.schedule(interestTask, timeLapse * 1000);
+    }
+
+    private void cancelTimers()
+    {
+        if (interestTimer != null)
+            interestTimer.cancel();
+        if (bidTimer != null)
+            bidTimer.cancel();
+        if (coalesceTimer != null)
+            coalesceTimer.cancel();
+        interestTimer = null;
+        bidTimer      = null;
+        coalesceTimer = null;
+    }
+
+    protected void interestTimerEnded()
+    {
+        setState(State.WAITING_INTERESTED_COUNT);
+        int count = currentItem.getInterestedCount();
+        Message toPeer = messageFactory.createInterestedCountMessage(count, currentItem.getId());
+        sendToPeer(toPeer);
+        debug("interest time ended!");
+        startBiddingIfCounted();
+    }
+
+    /**
+     * Once the interest period has ended here and every peer has sent its interested count,
+     * starts the bidding, or discards the item if nobody anywhere is interested
+     */
+    private void startBiddingIfCounted()
+    {
+        if (state != State.WAITING_INTERESTED_COUNT || peersCounted.size() < peerCount)
+            return;
+        if ((currentItem.getInterestedCount() == 0) && (currentItem.getPeerInterestedCount() == 0)) {
+            auctioneer.debug("lane {}: Item {} is discarded due to lack of interest", index, currentItem.getId());
+            journal.record(EventJournal.item_discarded, currentItem.getId());
+            beginNextAuction();
+        } else {
+            Message m = messageFactory.createStartBiddingMessage(currentItem.getStartingPrice(), currentItem.getId());
+            broadcastToInterested(m);
+            setBidTimer();
+            ArrayList<EarlyBid> early = new ArrayList<EarlyBid>(earlyBids);
+            earlyBids.clear();
+            for (EarlyBid bid : early) {
+                if (bid.message.getCommand().equals(Constants.got_bid))
+                    handleGotBid(bid.node, bid.message);
+                else
+                    handleBidOk(bid.node, bid.message);
+            }
+        }
+    }
+
+    /**
+     * Keeps a bid from another node for when the bidding starts here, if it has not yet
+     * A bid taken before start_bidding went out would move the lane to ACCEPTING_BIDS, and
+     * the interested users here would never be told that the bidding started
+     * @param node
+     * @param message
+     * @return true if the bid was kept
+     */
+    private boolean holdIfEarly(int node, Message message)
+    {
+        if (state != State.ACCEPTING_INTERESTS && state != State.WAITING_INTERESTED_COUNT)
+            return false;
+        earlyBids.add(new EarlyBid(node, message));
+        auctioneer.debug("lane {}: Holding a {} until the bidding starts", index, message.getCommand());
+        return true;
+    }
+
+    /**
+     * Starts the bid timer, or moves its deadline if it is already running
+     */
+    private void setBidTimer()
+    {
+        setState(State.ACCEPTING_BIDS);
+
+        if (bidTimer != null)
+            bidTimer.reschedule(timeLapse * 1000);
+        else
+            bidTimer = timerWheel.schedule(bidTask, timeLapse * 1000);
+    }
+
+    protected void bidTimerEnded()
+    {
+        debug("bid timer ended");
+        validateHeldBid();  // the owner sees it before our ready_to_end
+        if (!bidTimer.isDue())  // the owner took it at once, which moved the deadline
+            return;
+        setState(State.READY_TO_END);
+
+        if (isOwner()) {
+            endBiddingIfAllReady();
+        } else {
+            Message m = messageFactory.createReadyToEndMessage(currentItem.getId(), currentItem.getCurrentBid());
+            sendToPeer(owner, m);
+        }
+    }
+
+    /**
+     * Once the bid timer has ended here and on every other node, and every node has seen the
+     * highest bid, lowers the price if nobody has bid yet or announces the winner, and tells
+     * the other nodes
+     * Only the owner of the item gets here
+     */
+    private void endBiddingIfAllReady()
+    {
+        if (state != State.READY_TO_END || peersReadyToEnd.size() < peerCount
+                || currentItem.getTempBid() != currentItem.getCurrentBid())
+            return;
+        int itemId = currentItem.getId();
+        currentItem.incrDiscountRound();
+        int discountRound = currentItem.getDiscountRound();
+        if (currentItem.getCurrentBidder() == UserRegistry.noUser && (discountRound < 5)) {
+            int newPrice = (currentItem.getStartingPrice() * (10 - discountRound)) / 10;
+            sendToPeer(messageFactory.createDiscountRoundMessage(itemId, newPrice));
+            lowerPrice(newPrice);
+        } else {
+            sendToPeer(messageFactory.createItemSoldMessage(itemId, currentItem.getCurrentBidder(), currentItem.getCurrentBid()));
+            anounceWinner();
+            beginNextAuction();
+        }
+    }
+
+    /**
+     * Starts another round of bidding at a lower price, nobody having bid at the current one
+     * @param newPrice
+     */
+    private void lowerPrice(int newPrice)
+    {
+        currentItem.setCurrentBid(newPrice);
+        currentItem.setTempBid(newPrice);
+        peersReadyToEnd.clear();
+        Message bidAgain = messageFactory.createNewHighBidMessage(Constants.no_holder, newPrice, currentItem.getId());
+        broadcastToInterested(bidAgain);
+        debug("sent bid again message");
+        setBidTimer();
+    }
+
+    /**
+     * Lowers the price as the owner of the item did
+     * @param node
+     * @param message
+     */
+    public void handleDiscountRound(int node, Message message)
+    {
+        if (node != owner)
+            return;
+        currentItem.incrDiscountRound();
+        lowerPrice(message.getInt(Constants.amount));
+    }
+
+    /**
+     * Announces the winner the owner of the item settled on and moves to the next item
+     * @param node
+     * @param message
+     */
+    public void handleItemSold(int node, Message message)
+    {
+        if (node != owner)
+            return;
+        currentItem.setCurrentBidder(message.getInt(Constants.user_id));
+        currentItem.setCurrentBid(message.getInt(Constants.amount));
+        anounceWinner();
+        beginNextAuction();
+    }
+
+    private void anounceWinner()
+    {
+        int itemId = currentItem.getId();
+        String winner = nameOf(currentItem.getCurrentBidder());
+        int winningBid = currentItem.getCurrentBid();
+        Message m = messageFactory.createStopBiddingMessage(itemId, winner, winningBid);
+        broadcastToInterested(m);
+        dbServer.updateItemPrice(itemId, winningBid, winner);
+    }
+
+    /**
+     * Records the interested count of a peer, the bidding starts once every peer has sent its own
+     * @param node
+     * @param message
+     */
+    public void handleInterestedCount(int node, Message message)
+    {
+        if (!peersCounted.add(node))
+            return;
+        int count = message.getInt(Constants.amount);
+        currentItem.setPeerInterestedCount(currentItem.getPeerInterestedCount() + count);
+        startBiddingIfCounted();
+    }
+
+    /**
+     * Takes a bid forwarded by another node if it goes above the highest bid, validated or
+     * not; the first of two equal bids to arrive here wins
+     * Only the owner of the item takes bids, a got_bid sent elsewhere is ignored
+     * @param node
+     * @param message
+     */
+    public void handleGotBid(int node, Message message)
+    {
+        if (!isOwner()) {
+            debug("Ignoring got_bid for an item owned by another node");
+            return;
+        }
+        if (holdIfEarly(node, message))
+            return;
+        int amount = message.getInt(Constants.amount);
+        int userId = message.getInt(Constants.user_id);
+        if (amount > currentItem.getTempBid()) {
+            int seq = message.hasProperty(Constants.seq) ? message.getInt(Constants.seq) : -1;
+            takeBid(userId, amount, node, seq);
+            replayPendingBids();
+        }
+    }
+
+    /**
+     * Handles again the bids that arrived while the bidding was ending, now that a new bid has
+     * reopened it; each pending bid is replayed once, it is either taken, forwarded or rejected now
+     */
+    private void replayPendingBids()
+    {
+        HashMap<Integer, Message> pending = new HashMap<Integer, Message>(currentItem.getPendingBids());
+        currentItem.clearPendingBids();
+        for (int id : pending.keySet())
+            handleBid(id, pending.get(id));
+    }
+
+    /**
+     * Makes a bid the highest one and relays it to the other nodes as a bid_ok, the one
+     * to the node it came from answering its got_bid
+     * Only the owner of the item takes bids
+     * @param userId
+     * @param amount
+     * @param origin the node that forwarded the bid
+     * @param seq the sequence number of its got_bid, or -1
+     */
+    private void takeBid(int userId, int amount, int origin, int seq)
+    {
+        updateHighestBid(userId, amount);
+        peersReadyToEnd.clear();    // they all start a new bid timer on the bid_ok
+        for (int node = 0; node <= peerCount; node++) {
+            if (node == owner)
+                continue;
+            Message m = (node == origin && seq >= 0)
+                    ? messageFactory.createValidationMessage(Constants.bid_ok, userId, amount, currentItem.getId(), seq)
+                    : messageFactory.createBidOkMessage(userId, amount, currentItem.getId());
+            queueForPeer(node, m);
+        }
+    }
+
+    /**
+     * Makes a bid the owner of the item took the highest one here as well
+     * The owner relays the bids in the order it took them, each one above the previous
+     * @param node
+     * @param message
+     */
+    public void handleBidOk(int node, Message message)
+    {
+        if (node != owner || holdIfEarly(node, message))
+            return;
+        int amount = message.getInt(Constants.amount);
+        int userId = message.getInt(Constants.user_id);
+        long now = System.nanoTime();
+        Validation validation = message.hasProperty(Constants.seq) ? validations.remove(message.getInt(Constants.seq)) : null;
+        updateHighestBid(userId, amount);
+        if (validation != null && validation.amount == amount) {
+            peerRoundTrip.record(now - validation.sentAt);
+            bidLatency.record(System.nanoTime() - validation.receivedAt);
+        }
+        replayPendingBids();
+    }
+
+    private void updateHighestBid(int userId, int amount)
+    {
+        if (amount > currentItem.getTempBid())
+            currentItem.setTempBid(amount);      // temp bid needs to always be >= current bid
+        currentItem.setCurrentBid(amount);
+        currentItem.setCurrentBidder(userId);
+        acknowledgeBids(userId, amount);
+        if (heldBid != null && heldAmount <= amount)
+            dropHeldBid("Outbid by a bid of " + amount + ".");
+
+        // our validations this bid outbids will get no bid_ok
+        Iterator<Validation> iterator = validations.values().iterator();
+        while (iterator.hasNext())
+            if (iterator.next().amount <= amount)
+                iterator.remove();
+
+        String userName = nameOf(userId);
+        Message m = messageFactory.createNewHighBidMessage(userName, amount, currentItem.getId());
+        broadcastToInterested(m);
+        auctioneer.debug("lane {}: New highest bid from user {}, amount = {}", index, userName, amount);
+        setBidTimer();
+    }
+
+    public void handleBid(int userId, Message message)
+    {
+        long receivedAt = System.nanoTime();
+        int amount = message.getInt(Constants.amount);
+        int id = message.getInt(Constants.item_id);
+
+        if (currentItem == null) {  // no item being auctioned at the moment
+            rejectBid(userId, message, "No item being auctioned at the moment.");
+            return;
+        }
+        if (currentItem.getId() != id) {  // wrong item id - should not happen
+            rejectBid(userId, message, "Invalid item ID.");
+            return;
+        }
+        if (!currentItem.isInterested(userId)) {  // user did not declare interest
+            rejectBid(userId, message, "You have not declared interest for this item.");
+            return;
+        }
+
+        if (currentItem.getTempBid() >= amount) {  // there is already a higher bid waiting validation
+            acknowledge(userId, message, Constants.bid_rejected, "A higher bid has already been placed.");
+            return;
+        }
+
+        if (State.ACCEPTING_BIDS == state) {
+            currentItem.setTempBid(amount); // temp bid is a bid that is higher than the current but needs to be taken by the owner
+            if (coalesceMillis == 0) {
+                validate(userId, message, amount, receivedAt);
+                return;
+            }
+            // only the highest bid of the window goes to the peer, an equal one arriving later
+            // was already turned down above, so the earlier of two equal bids wins
+            if (heldBid != null)
+                dropHeldBid("Outbid by a bid of " + amount + ".");
+            heldBid        = message;
+            heldUser       = userId;
+            heldAmount     = amount;
+            heldReceivedAt = receivedAt;
+            if (coalesceTimer == null)
+                coalesceTimer = timerWheel.schedule(coalesceTask, coalesceMillis);
+        } else if (State.READY_TO_END == state) {
+            Message replaced = currentItem.getPendingBids().get(userId);
+            if (replaced != null)
+                acknowledge(userId, replaced, Constants.bid_rejected, "Replaced by a later bid.");
+            currentItem.addPendingBid(userId, message);
+            journal.record(EventJournal.bid_pending, currentItem.getId());
+            auctioneer.debug("lane {}: saved pending bid from {}, amount = {}", index, nameOf(userId), amount);
+        } else {
+            rejectBid(userId, message, "Not accepting bids at the moment.");
+        }
+    }
+
+    /**
+     * Takes a bid at once if this node owns the item, otherwise forwards it to the owner
+     * @param userId
+     * @param bid
+     * @param amount
+     * @param receivedAt when the bid arrived, for the latency metrics
+     */
+    private void validate(int userId, Message bid, int amount, long receivedAt)
+    {
+        String requestId = bid.getProperty(Constants.request_id);
+        if (requestId != null)
+            unacknowledged.add(new Acknowledgement(userId, amount, requestId));
+        if (isOwner()) {
+            bidLatency.record(System.nanoTime() - receivedAt);
+            takeBid(userId, amount, owner, -1);
+            return;
+        }
+        int seq = nextSeq++;
+        Message m = messageFactory.createValidationMessage(Constants.got_bid, userId, amount, currentItem.getId(), seq);
+        queueForPeer(owner, m);
+        validations.put(seq, new Validation(amount, receivedAt, System.nanoTime()));
+    }
+
+    /**
+     * Sends the bid held by the coalescing window, if any, to the peer
+     */
+    private void validateHeldBid()
+    {
+        if (heldBid == null)
+            return;
+        validate(heldUser, heldBid, heldAmount, heldReceivedAt);
+        heldBid = null;
+    }
+
+    /**
+     * Answers the held bid locally, without the peer ever seeing it
+     * @param reason
+     */
+    private void dropHeldBid(String reason)
+    {
+        acknowledge(heldUser, heldBid, Constants.bid_rejected, reason);
+        coalescedBids.increment();
+        heldBid = null;
+    }
+
+    /**
+     * Tells a user why a bid was not accepted: in a bid_ack if the bid carried a request id,
+     * otherwise in an info message as before request ids existed
+     * @param userId
+     * @param bid
+     * @param reason
+     */
+    private void rejectBid(int userId, Message bid, String reason)
+    {
+        if (bid.getProperty(Constants.request_id) != null)
+            acknowledge(userId, bid, Constants.bid_rejected, reason);
+        else
+            proxy.send(userId, messageFactory.createInfoMessage(reason));
+    }
+
+    /**
+     * Sends the outcome of a bid to its user, if the bid carried a request id
+     * @param userId
+     * @param bid
+     * @param status
+     * @param reason
+     */
+    private void acknowledge(int userId, Message bid, String status, String reason)
+    {
+        String requestId = bid.getProperty(Constants.request_id);
+        if (requestId == null)
+            return;
+        int itemId = bid.getInt(Constants.item_id);
+        int amount = bid.getInt(Constants.amount);
+        proxy.send(userId, messageFactory.createBidAckMessage(requestId, itemId, amount, status, reason));
+    }
+
+    /**
+     * Settles the bids waiting for the peer once a new highest bid has been agreed on:
+     * the one that became the highest is accepted, the ones it outbids are rejected
+     * @param userId
+     * @param amount
+     */
+    private void acknowledgeBids(int userId, int amount)
+    {
+        Iterator<Acknowledgement> iterator = unacknowledged.iterator();
+        while (iterator.hasNext()) {
+            Acknowledgement ack = iterator.next();
+            String status;
+            String reason = null;
+            if (ack.userId == userId && ack.amount == amount) {
+                status = Constants.bid_accepted;
+            } else if (ack.amount <= amount) {
+                status = Constants.bid_rejected;
+                reason = "Outbid by a bid of " + amount + ".";
+            } else {
+                continue;
+            }
+            iterator.remove();
+            Message m = messageFactory.createBidAckMessage(ack.requestId, currentItem.getId(), ack.amount, status, reason);
+            proxy.send(ack.userId, m);
+        }
+    }
+
+    /**
+     * Rejects every bid of the current item still waiting for an outcome
+     * @param reason
+     */
+    private void rejectOutstandingBids(String reason)
+    {
+        if (heldBid != null)
+            dropHeldBid(reason);
+        for (Acknowledgement ack : unacknowledged) {
+            Message m = messageFactory.createBidAckMessage(ack.requestId, currentItem.getId(), ack.amount,
+                    Constants.bid_rejected, reason);
+            proxy.send(ack.userId, m);
+        }
+        unacknowledged.clear();
+        for (int id : currentItem.getPendingBids().keySet())
+            acknowledge(id, currentItem.getPendingBids().get(id), Constants.bid_rejected, reason);
+        currentItem.clearPendingBids();
+    }
+
+    /**
+     * Records that the bid timer of another node has ended
+     * A ready_to_end sent before the node saw the highest bid is ignored, the node starts a
+     * new bid timer on the bid_ok and sends another one
+     * @param node
+     * @param message
+     */
+    public void handleReadyToEnd(int node, Message message)
+    {
+        debug("Got ready to end message");
+        if (!isOwner() || message.getInt(Constants.amount) != currentItem.getCurrentBid())
+            return;
+        peersReadyToEnd.add(node);
+        endBiddingIfAllReady();
+    }
+
+    public void handleInterest(int userId, Message message)
+    {
+        int id = message.getInt(Constants.item_id);
+        if (currentItem == null || currentItem.getId() != id) {
+            Message m = messageFactory.createInfoMessage("Invalid item ID.");
+            proxy.send(userId, m);
+        } else if (state == State.ACCEPTING_INTERESTS) {
+            if (currentItem.addUser(userId))
+                auctioneer.debug("lane {}: Added user {} to interestedUsers list for item {}", index, nameOf(userId), id);
+            Message m = messageFactory.createInfoMessage("You will now receive updates for this item.");
+            proxy.send(userId, m);
+        } else {
+            Message m = messageFactory.createInfoMessage("Not accepting interests at the moment.");
+            proxy.send(userId, m);
+        }
+    }
+
+    /**
+     * Returns true if the given peer message refers to the item currently auctioned in this lane
+     * @param message
+     * @return
+     */
+    public boolean isCurrent(Message message)
+    {
+        return currentItem != null && message.hasProperty(Constants.item_id)
+                && message.getInt(Constants.item_id) == currentItem.getId();
+    }
+
+    public void removeUserFromInterested(int userId)
+    {
+        if (currentItem != null)
+            currentItem.removeUser(userId);
+    }
+
+    /**
+     * Sends a message to the peer, journaling it
+     * @param message
+     */
+    private void sendToPeer(Message message)
+    {
+        journal.record(EventJournal.self, message);
+        proxy.sendToPeer(message);
+    }
+
+    /**
+     * Sends a message to one peer, journaling it
+     * @param node
+     * @param message
+     */
+    private void sendToPeer(int node, Message message)
+    {
+        journal.record(EventJournal.self, message);
+        proxy.sendToPeer(node, message);
+    }
+
+    /**
+     * Queues a got_bid or bid_ok for one peer, journaling it
+     * @param node
+     * @param message
+     */
+    private void queueForPeer(int node, Message message)
+    {
+        journal.record(EventJournal.self, message);
+        proxy.queueForPeer(node, message);
+    }
+
+    /**
+     * Sends a message to the users interested in the current item, journaling it
+     * @param message
+     */
+    private void broadcastToInterested(Message message)
+    {
+        journal.record(EventJournal.self, message);
+        proxy.broadcast(currentItem.getInterestedUsers(), message);
+    }
+
+    private boolean isOwner()
+    {
+        return owner == auctioneer.getNodeIndex();
+    }
+
+    /**
+     * Returns the name to show the bidders for the given user id
+     * @param userId
+     * @return
+     */
+    private String nameOf(int userId)
+    {
+        String name = users.nameOf(userId);
+        return (name == null) ? Constants.no_holder : name;
+    }
+
+    private void setState(State state)
+    {
+        if (this.state == state)
+            return;
+
+        this.state = state;
+        auctioneer.debug("lane {}: Changing State to {}", index, state);
+    }
+
+    private void debug(String debugMessage)
+    {
+        auctioneer.debug("lane {}: {}", index, debugMessage);
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * The outcome of an item's auction, as handed to the database writer.
+ * Items keep changing while they are auctioned, so the writer gets a copy.
+ */
+public class AuctionResult
+{
+    private final int itemId;
+    private final int bid;
+    private final String bidder;
+
+    public AuctionResult(int itemId, int bid, String bidder)
+    {
+        this.itemId = itemId;
+        this.bid    = bid;
+        this.bidder = bidder;
+    }
+
+    public int getItemId()
+    {
+        return itemId;
+    }
+
+    public int getBid()
+    {
+        return bid;
+    }
+
+    public String getBidder()
+    {
+        return bidder;
+    }
+
+    public String toString()
+    {
+        return "item " + itemId + ": bid = " + bid + ", bidder = " + bidder;
+    }
+}
@@ -0,0 +1,225 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+
+/**
+ * The state of an auctioneer at one point in time, enough to carry on with the auctions in
+ * progress after a restart, together with the point in the journal to replay from.
+ *
+ * The catalog itself is not in the snapshot, it is read again from the configuration; the
+ * snapshot only holds what the auctions changed: the users, the next id to give an appended
+ * item, and for every lane where its cursor was in the catalog, the items appended to it and
+ * its current item with its bids and interested users.
+ * Every lane is captured in its own turn, with the sequence number of the last journal
+ * event it had seen, so that the replay gives it exactly the events it missed.
+ *
+ * The file is written next to the old one and renamed over it, so a crash while writing
+ * leaves the previous snapshot in place.
+ */
+public class AuctionSnapshot
+{
+    private static final int magic   = 0x534e4150;   // "SNAP"
+    private static final int version = 2;
+
+    /**
+     * The state of one lane
+     */
+    public static class Lane
+    {
+        long seq;               // of the last journal event the lane had seen
+        boolean finished;
+        String state;
+        int catalogNext;        // the id of the next item of the catalog
+        ArrayList<Item> appendedItems;
+        int itemId = -1;        // -1 if the lane was between two items
+        int startingPrice;
+        String description;
+        int currentBid;
+        int currentBidder;
+        int tempBid;
+        int discountRound;
+        int peerInterestedCount;
+        BitSet interestedUsers = new BitSet();
+    }
+
+    private long journalOffset;
+    private ArrayList<String> users;    // indexed by id
+    private int nextItemId;
+    private Lane[] lanes;
+
+    /**
+     * @param journalOffset where the replay of the journal starts
+     * @param users
+     * @param nextItemId
+     * @param laneCount
+     */
+    public AuctionSnapshot(long journalOffset, ArrayList<String> users, int nextItemId, int laneCount)
+    {
+        this.journalOffset = journalOffset;
+        this.users         = users;
+        this.nextItemId    = nextItemId;
+        this.lanes         = new Lane[laneCount];
+    }
+
+    public long getJournalOffset()
+    {
+        return journalOffset;
+    }
+
+    public ArrayList<String> getUsers()
+    {
+        return users;
+    }
+
+    public int getNextItemId()
+    {
+        return nextItemId;
+    }
+
+    public Lane getLane(int index)
+    {
+        return lanes[index];
+    }
+
+    public void setLane(int index, Lane lane)
+    {
+        lanes[index] = lane;
+    }
+
+    public int getLaneCount()
+    {
+        return lanes.length;
+    }
+
+    /**
+     * Returns the smallest sequence number of the lanes, the journal is replayed after it
+     * @return
+     */
+    public long getMinSeq()
+    {
+        long min = Long.MAX_VALUE;
+        for (Lane lane : lanes)
+            min = Math.min(min, lane.seq);
+        return min;
+    }
+
+    /**
+     * Writes the snapshot to the given file, replacing it only once the new one is on disk
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException
+    {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+        File next = new File(file.getPath() + ".next");
+        FileOutputStream stream = new FileOutputStream(next);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeLong(journalOffset);
+            out.writeInt(users.size());
+            for (String name : users) {
+                out.writeBoolean(name != null);
+                if (name != null)
+                    out.writeUTF(name);
+            }
+            out.writeInt(nextItemId);
+            out.writeInt(lanes.length);
+            for (Lane lane : lanes) {
+                out.writeLong(lane.seq);
+                out.writeBoolean(lane.finished);
+                out.writeUTF(lane.state);
+                out.writeInt(lane.catalogNext);
+                out.writeInt(lane.appendedItems.size());
+                for (Item item : lane.appendedItems)
+                    writeItem(out, item.getId(), item.getStartingPrice(), item.getDescription());
+                writeItem(out, lane.itemId, lane.startingPrice, lane.description);
+                out.writeInt(lane.currentBid);
+                out.writeInt(lane.currentBidder);
+                out.writeInt(lane.tempBid);
+                out.writeInt(lane.discountRound);
+                out.writeInt(lane.peerInterestedCount);
+                long[] interested = lane.interestedUsers.toLongArray();
+                out.writeInt(interested.length);
+                for (long word : interested)
+                    out.writeLong(word);
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        Files.move(next.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeItem(DataOutputStream out, int id, int startingPrice, String description) throws IOException
+    {
+        out.writeInt(id);
+        out.writeInt(startingPrice);
+        out.writeUTF((description == null) ? "" : description);
+    }
+
+    /**
+     * Reads a snapshot written by write
+     * @param file
+     * @return
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static AuctionSnapshot read(File file) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != magic || in.readInt() != version)
+                throw new IOException(file + " is not a snapshot of this version");
+            long journalOffset = in.readLong();
+            int userCount = in.readInt();
+            ArrayList<String> users = new ArrayList<String>(userCount);
+            for (int id = 0; id < userCount; id++)
+                users.add(in.readBoolean() ? in.readUTF() : null);
+            int nextItemId = in.readInt();
+            AuctionSnapshot snapshot = new AuctionSnapshot(journalOffset, users, nextItemId, in.readInt());
+            for (int i = 0; i < snapshot.lanes.length; i++) {
+                Lane lane = new Lane();
+                lane.seq            = in.readLong();
+                lane.finished       = in.readBoolean();
+                lane.state          = in.readUTF();
+                lane.catalogNext    = in.readInt();
+                int appendedCount   = in.readInt();
+                lane.appendedItems  = new ArrayList<Item>(appendedCount);
+                for (int j = 0; j < appendedCount; j++) {
+                    int id = in.readInt();
+                    lane.appendedItems.add(new Item(in.readInt(), in.readUTF(), id));
+                }
+                lane.itemId              = in.readInt();
+                lane.startingPrice       = in.readInt();
+                lane.description         = in.readUTF();
+                lane.currentBid          = in.readInt();
+                lane.currentBidder       = in.readInt();
+                lane.tempBid             = in.readInt();
+                lane.discountRound       = in.readInt();
+                lane.peerInterestedCount = in.readInt();
+                long[] interested = new long[in.readInt()];
+                for (int j = 0; j < interested.length; j++)
+                    interested[j] = in.readLong();
+                lane.interestedUsers = BitSet.valueOf(interested);
+                snapshot.lanes[i] = lane;
+            }
+            return snapshot;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -1,560 +1,1032 @@
-import java.io.IOException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
-
-public class Auctioneer extends Thread 
-{
-    // Constants
-    public static final String clientChannel    = "clientChannel";
-    public static final String serverChannel    = "serverChannel";
-    public static final String channelType      = "channelType";
-    public static final String bytesReadString  = "bytesRead";
-    public static final String clientName       = "clientName";
-    public static final String peerName          = "__peer";
-    
-    private enum State { OFFLINE, READY_TO_BEGIN, ACCEPTING_INTERESTS, WAITING_INTERESTED_COUNT, ACCEPTING_BIDS, READY_TO_END }
-    
-    // private fields
-    private final int countdownTime = 10;
-    private int countDownInterval = 5;
-    private int timeLapse;
-    private ArrayList<Item> items;
-    private String type = "callee";
-    private Proxy proxy;
-    private Lock lock;
-    private Lock debugLock;
-    private MessageFactory messageFactory;
-    private DBServer dbServer;
-    private Item currentItem;
-    private State state;
-    private State peerState;
-    private Timer timer;
-    private boolean auctionsEnded;
-    
-    
-    public Auctioneer(int port, Lock debugLock)
-    {
-        lock           = new ReentrantLock();
-        this.debugLock = debugLock;
-        proxy          = new Proxy(port, this);
-        messageFactory = new MessageFactory();
-        auctionsEnded  = false;
-                
-        peerState = State.OFFLINE;
-        state     = State.OFFLINE;
-    }
-    
-    /**
-     * Set the port of the callee auctioneer and convert this one into a caller
-     * @param peerPort
-     */
-    public void makeCaller(int peerPort)
-    {
-        this.type = "caller";
-        proxy.setPeerPort(peerPort);
-    }
-
-    /**
-     * Instantiates a DBServer and parses the configuration file
-     * @throws IOException 
-     */
-    public void configure(String confFile) throws IOException
-    {
-        if (type.equals("caller"))
-            dbServer = DBServer.getCallerInstance();
-        else
-            dbServer = DBServer.getCalleeInstance();
-        dbServer.setAuctioneer(this);
-        
-        ConfParser confParser = new ConfParser(confFile);
-        confParser.parse();
-        timeLapse = confParser.getTimeLapse();
-        items = confParser.getItems();
-        dbServer.initAuctions(items);
-    }
-    
-    /**
-     * @throws IOException
-     */
-    public void run()
-    {
-        runCountDown(countdownTime);
-        
-
-        try {
-            proxy.run(); 
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        
-        debug("Shuting Down ...");
-    }
-
-    /**
-     * Runs a countdown till the auctions start
-     * @param seconds
-     */
-    private void runCountDown(int seconds) 
-    {
-        final int remaining = seconds - countDownInterval;
-        Timer t = new Timer();
-        t.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                lock.lock();
-                if (remaining <= 0) {
-                    beginAuctions();
-                } else { 
-                    String countdownMessage = "Auctions start in " + remaining + " seconds!";
-                    broadcastInfo(countdownMessage);
-                    if (type.equals("caller"))
-                        debug(countdownMessage);
-                    runCountDown(remaining);
-                }
-                lock.unlock();
-            }
-        }, countDownInterval * 1000);
-    }
-
-    /**
-     * Begins the auction process
-     * This method is to be called holding the lock
-     */
-    private void beginAuctions()
-    {
-        debug("Auctions are beggining!");
-        broadcastInfo("Welcome to the auction house!");
-
-        setState(State.READY_TO_BEGIN);
-        Message m = messageFactory.createMessage(Constants.ready_to_run);
-        proxy.send(Auctioneer.peerName, m);
-        
-        if (peerState == State.READY_TO_BEGIN) {
-            beginNextAuction();
-        }
-    }
-
-    /**
-     * Begins the next auction
-     * This method is to be called holding the lock
-     */
-    private void beginNextAuction()
-    {
-        if (timer != null)
-            timer.cancel();
-
-        if (items.isEmpty()) { // there are no more items to auction
-            Message m = messageFactory.createMessage(Constants.auction_complete);
-            proxy.broadcast(m);
-            debug("Auctions have ended");
-            auctionsEnded = true;
-            return;
-        }
-        
-        debug("Starting Auction for next item");
-        currentItem = items.remove(0); // pop the first item
-        int itemId = currentItem.getId();
-        String description = currentItem.getDescription();
-        int startingPrice = currentItem.getStartingPrice();
-        Message m = messageFactory.createBidItemMessage(itemId, description, startingPrice);
-        proxy.broadcast(m);
-        setState(State.ACCEPTING_INTERESTS);
-        peerState = State.ACCEPTING_INTERESTS;
-
-        timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                lock.lock();
-                interestTimerEnded();
-                lock.unlock();
-            }
-        }, timeLapse * 1000);
-    }
-    
-    protected void interestTimerEnded()
-    {
-        setState(State.WAITING_INTERESTED_COUNT);
-        int count = currentItem.getInterestedUsers().size();
-        Message toPeer = messageFactory.createInterestedCountMessage(count);
-        proxy.send(Auctioneer.peerName, toPeer);
-        debug("interest time ended!");
-        if (State.WAITING_INTERESTED_COUNT == peerState) {
-            if ((count == 0) && (currentItem.getPeerInterestedCount() == 0)) {
-                debug("Item " + currentItem.getId() + " is discarded due to lack of interest");
-                beginNextAuction();
-            } else {                
-                peerState = State.ACCEPTING_BIDS;
-                Message m = messageFactory.createStartBiddingMessage(currentItem.getStartingPrice(), currentItem.getId());
-                proxy.broadcast(currentItem.getInterestedUsers(), m);
-                setBidTimer();
-            }        
-        }
-    }
-
-    private void setBidTimer() 
-    {
-        setState(State.ACCEPTING_BIDS);
-        
-        if (timer != null)
-            timer.cancel();
-        
-        timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                lock.lock();
-                bidTimerEnded();
-                lock.unlock();
-            }
-        }, timeLapse * 1000);
-    }
-
-    protected void bidTimerEnded()
-    {
-        debug("bid timer ended");
-        setState(State.READY_TO_END);
-        
-        Message m = messageFactory.createMessage(Constants.ready_to_end);
-        proxy.send(Auctioneer.peerName, m);
-
-        // if peer's bidTimer has already ended and there is no tempBid for which we are expecting confirmation
-        if ((peerState == State.READY_TO_END) && (currentItem.getTempBid() == currentItem.getCurrentBid())){
-            currentItem.incrDiscountRound();
-            int discountRound = currentItem.getDiscountRound();
-            if (currentItem.getCurrentBidder().equals(Constants.no_holder) && (discountRound < 5)) {
-                int newPrice = (currentItem.getStartingPrice() * (10 - discountRound)) / 10;
-                currentItem.setCurrentBid(newPrice);
-                currentItem.setTempBid(newPrice);
-                peerState = State.ACCEPTING_BIDS;
-                Message bidAgain = messageFactory.createNewHighBidMessage(Constants.no_holder, newPrice);
-                proxy.broadcast(currentItem.getInterestedUsers(), bidAgain);
-                debug("sent bid again message");
-                setBidTimer();
-            } else {                
-                anounceWinner();
-                peerState = State.ACCEPTING_INTERESTS;
-                beginNextAuction();
-            }
-        }
-    }
-    
-    private void anounceWinner()
-    {
-        int itemId = currentItem.getId();
-        String winner = currentItem.getCurrentBidder();
-        int winningBid = currentItem.getCurrentBid();
-        Message m = messageFactory.createStopBiddingMessage(itemId, winner, winningBid);
-        proxy.broadcast(currentItem.getInterestedUsers(), m);
-        dbServer.updateBid(currentItem);
-    }
-
-    private void broadcastInfo(String message)
-    {
-        Message m = messageFactory.createInfoMessage(message);
-        proxy.broadcast(m);
-    }
-    
-    public void processMessage(String read, SelectionKey key) 
-    {
-        @SuppressWarnings("unchecked")
-        Map<String, String> clientProps = (Map<String, String>) key.attachment();        
-        String total = clientProps.get(Auctioneer.bytesReadString) + read;
-        
-        ArrayList<Message> messages = messageFactory.extractMessages(total);
-        String remaining = messageFactory.getRemaining();
-        clientProps.put(Auctioneer.bytesReadString, remaining);
-        
-        for (Message m : messages)
-            handleMessage(m, key);
-    }
-
-    /**
-     * Takes the actions necessary in response to the given message
-     * @param message
-     * @param name
-     * @param channel
-     */
-    private void handleMessage(Message message, SelectionKey key)
-    {
-        String command = message.getCommand();
-        debug("Received: " + message);
-
-        @SuppressWarnings("unchecked")
-        Map<String, String> clientProps = (Map<String, String>) key.attachment();
-        String name  = clientProps.get(Auctioneer.clientName);
-        SocketChannel channel = (SocketChannel) key.channel();
-    
-        switch (command) {
-        
-        // message from bidder
-        case Constants.connect:
-            handleConnect(name, message, channel, clientProps);
-            break;
-        case Constants.i_am_interested: 
-            handleInterest(name, message);
-            break;
-        case Constants.my_bid:
-            handleBid(name, message);
-            break;
-        case Constants.quit:
-            handleQuit(name);
-            break;
-            
-        // messages from peer
-        case Constants.ready_to_run:
-            handleReadyToRun();
-            break;
-        case Constants.ready_to_end:
-            handleReadyToEnd();
-            break;
-        case Constants.got_bid:
-            handleGotBid(message);
-            break;
-        case Constants.bid_ok:
-            handleBidOk(message);
-            break;
-        case Constants.interested_count:
-            handleInterestedCount(message);
-            break;
-        }
-    }
-    
-    private void handleInterestedCount(Message message) 
-    {
-        int peerCount = Integer.parseInt(message.getProperty(Constants.amount));
-        currentItem.setPeerInterestedCount(peerCount);
-        peerState = State.WAITING_INTERESTED_COUNT;
-        if (State.WAITING_INTERESTED_COUNT == state) {
-            if ((peerCount == 0) && (currentItem.getInterestedUsers().size() == 0)) {
-                debug("Item " + currentItem.getId() + " is discarded due to lack of interest");
-                beginNextAuction();
-            } else {                
-                peerState = State.ACCEPTING_BIDS;
-                Message m = messageFactory.createStartBiddingMessage(currentItem.getStartingPrice(), currentItem.getId());
-                proxy.broadcast(currentItem.getInterestedUsers(), m);
-                setBidTimer();
-            }        
-        }
-    }
-
-    private void handleQuit(String userName) 
-    {
-        proxy.closeConnection(userName);
-        removeUserFromInterested(userName);
-    }
-
-    private void handleGotBid(Message message) 
-    {
-        int amount = Integer.parseInt(message.getProperty(Constants.amount));
-        String userName = message.getProperty(Constants.username);
-        if ((type.equals("caller") && amount > currentItem.getTempBid()) ||   // give priority to the caller bids if amounts are equal 
-            (type.equals("callee") && amount >= currentItem.getTempBid())) {
-                updateHighestBid(userName, amount);
-                Message m = messageFactory.createBidOkMessage(userName, amount);
-                proxy.send(Auctioneer.peerName, m);
-                for (String name: currentItem.getPendingBids().keySet())
-                    handleBid(name, currentItem.getPendingBids().get(name));
-        }
-    }
-
-    private void handleBidOk(Message message) 
-    {
-        int amount = Integer.parseInt(message.getProperty(Constants.amount));
-        String userName = message.getProperty(Constants.username);
-        updateHighestBid(userName, amount);
-    }
-
-    private void updateHighestBid(String userName, int amount) 
-    {
-        if (amount > currentItem.getTempBid()) 
-            currentItem.setTempBid(amount);      // temp bid needs to always be >= current bid 
-        currentItem.setCurrentBid(amount);
-        currentItem.setCurrentBidder(userName);
-        
-        Message m = messageFactory.createNewHighBidMessage(userName, amount);
-        proxy.broadcast(currentItem.getInterestedUsers(), m);
-        debug("New highest bid from user " + userName + ", amount = " + amount);
-        setBidTimer();
-    }
-
-
-    private void handleBid(String userName, Message message) 
-    {
-        int amount = Integer.parseInt(message.getProperty(Constants.amount));
-        int id = Integer.parseInt(message.getProperty(Constants.item_id));
-        
-        if (currentItem == null) {  // no item being auctioned at the moment
-            Message m = messageFactory.createInfoMessage("No item being auctioned at the moment.");
-            proxy.send(userName, m);
-            return;
-        }
-        if (currentItem.getId() != id) {  // wrong item id - should not happen
-            Message m = messageFactory.createInfoMessage("Invalid item ID.");
-            proxy.send(userName, m);
-            return;
-        }
-        if (!currentItem.getInterestedUsers().contains(userName)) {  // user did not declare interest
-            Message m = messageFactory.createInfoMessage("You have not declared interest for this item.");
-            proxy.send(userName, m);
-            return;
-        }
-        
-        if (currentItem.getTempBid() >= amount)  // there is already a higher bid waiting validation
-            return;
-        
-        if (State.ACCEPTING_BIDS == state) {
-            currentItem.setTempBid(amount); // temp bid is a bid that is higher than the current but needs to be validated by our peer
-            Message m = messageFactory.createGotBidMessage(userName, amount);
-            proxy.send(Auctioneer.peerName, m);
-        } else if (State.READY_TO_END == state) {
-            currentItem.addPendingBid(userName, message);
-            debug("saved pending bid from " + userName + ", amount = " + amount);
-        } else {
-            Message m = messageFactory.createInfoMessage("Not accepting bids at the moment.");
-            proxy.send(userName, m);
-        }
-    }
-
-    private void handleReadyToEnd()
-    {
-        debug("Got ready to end message");
-        peerState = State.READY_TO_END;
-        
-        // if our bidTimer has already ended and there is no tempBid for which we are expecting confirmation
-        if ((state == State.READY_TO_END) && (currentItem.getTempBid() == currentItem.getCurrentBid())) { 
-            currentItem.incrDiscountRound();
-            int discountRound = currentItem.getDiscountRound();
-            if (currentItem.getCurrentBidder().equals(Constants.no_holder) && (discountRound < 5)) {
-                int newPrice = (currentItem.getStartingPrice() * (10 - discountRound)) / 10;
-                currentItem.setCurrentBid(newPrice);
-                currentItem.setTempBid(newPrice);
-                Message bidAgain = messageFactory.createNewHighBidMessage(Constants.no_holder, newPrice);
-                proxy.broadcast(currentItem.getInterestedUsers(), bidAgain);
-                debug("sent bid again from handleReadyToEnd");
-                setBidTimer();
-            } else {                
-                anounceWinner();
-                peerState = State.ACCEPTING_INTERESTS;
-                beginNextAuction();
-            }
-        }
-    }
-    
-    private void handleReadyToRun()
-    {
-        debug("Got ready to run message");
-        peerState = State.READY_TO_BEGIN;
-        
-        if (state == State.READY_TO_BEGIN)
-            beginNextAuction();
-    }
-
-    private void handleInterest(String name, Message message)
-    {
-        if (state == State.ACCEPTING_INTERESTS) {
-            int id = Integer.parseInt(message.getProperty(Constants.item_id));
-            if (currentItem.getId() == id) {
-                currentItem.addUser(name);
-                debug("Added user " + name + " to interestedUsers list for the current item");
-                Message m = messageFactory.createInfoMessage("You will now receive updates for this item.");
-                proxy.send(name, m);
-            } else {
-                Message m = messageFactory.createInfoMessage("Invalid item ID.");
-                proxy.send(name, m);
-            }
-        } else {
-            Message m = messageFactory.createInfoMessage("Not accepting interests at the moment.");
-            proxy.send(name, m);
-        }
-    }
-
-    /**
-     * Handle a connect request
-     * @param messageProps
-     * @param existingName
-     * @param channel
-     * @param clientProps 
-     */
-    private void handleConnect(String existingName, Message message, SocketChannel channel, Map<String, String> clientProps) 
-    {
-        if (existingName != null) // this user has already connected.
-            return;
-        String username = message.getProperty(Constants.username);
-        if (proxy.isUserActive(username)) {
-            Message m = messageFactory.createMessage(Constants.duplicate_name);
-            proxy.send(channel, m);
-            return;
-        }
-        proxy.addUser(username, channel);
-        clientProps.put(Auctioneer.clientName, username);
-        Message m = messageFactory.createInfoMessage("You are now connected to the server.");
-        proxy.send(username, m);
-    }
-
-    @SuppressWarnings("unused")
-    private void printConfData()
-    {
-        debug("Configuration for " + type + ":");
-        debug("TimeLapse = " + timeLapse);
-        for (Item i : items)
-            debug("Item " + i.getId() + ": Starting Price = " + 
-                    i.getStartingPrice() + ", Description = \"" + 
-                    i.getDescription() + "\"");
-    }
-
-    public String getType()
-    {
-        return type;
-    }
-
-    public Lock getLock()
-    {
-        return lock;
-    }
-    
-    public void debug(String debugMessage)
-    {
-        // if (type.equals("callee")) System.out.print(");
-        debugLock.lock();
-        System.out.print(type + ": ");
-        DateFormat dateFormat = new SimpleDateFormat("HH:mm:ss : "); 
-        Date date = new Date(); 
-        System.out.print(dateFormat.format(date));
-        if (debugMessage.contains("\n"))
-            System.out.print(debugMessage);
-        else 
-            System.out.println(debugMessage);
-        debugLock.unlock();
-    }
-    
-    private void setState(State state)
-    {
-        if (this.state == state)
-            return;
-
-        this.state = state;
-        debug("Changing State to " + state);
-    }
-    
-    public boolean haveAuctionsEnded()
-    {
-        return auctionsEnded;
-    }
-
-    public void removeUserFromInterested(String userName) 
-    {
-        if (currentItem != null)
-            currentItem.getInterestedUsers().remove(userName);    
-    }
-}
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * The auctioneer of one node
+ *
+ * The state of the auctions is split among the lanes, each guarded by its own lock, so that the
+ * timers and the bids of items in different lanes are handled in parallel. The lock of the
+ * auctioneer guards the rest: the connections of the bidders and peers and getting the lanes
+ * started. A thread holding a lane lock may take the auctioneer lock, never the reverse.
+ * The catalog lock orders the appended items and the end of the auctions, so that an item
+ * is either taken in by a lane or refused once the auctions have ended. A lane may take it
+ * from its own turn; no other lock is taken while holding it.
+ * With -Dauction.engine=single-writer the lanes are run by one AuctionEngine thread instead,
+ * and the other threads pass it their work through AuctionLane.execute.
+ */
+public class Auctioneer extends Thread 
+{
+    // Constants
+    public static final String clientChannel    = "clientChannel";
+    public static final String serverChannel    = "serverChannel";
+    public static final String channelType      = "channelType";
+    public static final String channel          = "channel";
+    public static final String reactor          = "reactor";
+    public static final String decoder          = "decoder";
+    public static final String outbound         = "outbound";
+    public static final String protocol         = "protocol";
+    public static final String clientName       = "clientName";
+    public static final String userId           = "userId";
+    public static final String nodeIndex        = "nodeIndex";
+    public static final String peerName          = "__peer";
+    
+    // private fields
+    private final int countdownTime = 10;
+    private int countDownInterval = 5;
+    private static final String[] noProperties = {};
+    private int timeLapse;
+    private ConfParser confParser;
+    private String type = "auctioneer";
+    private ClusterConfig cluster;
+    private int node;
+    private Proxy proxy;
+    private Lock lock;
+    private Log log;
+    private Metrics metrics;
+    private ConcurrentHashMap<String, LongAdder> messageCounters;
+    private MessageFactory messageFactory;
+    private TimerWheel timerWheel;
+    private EventJournal journal;
+    private UserRegistry users;
+    private DBServer dbServer;
+    private ServerOptions options;
+    private AuctionLane[] lanes;
+    private Object catalogLock;
+    private int nextItemId;                 // for the next appended item, given out by node 0
+    private AuctionEngine engine;
+    private SnapshotWriter snapshots;
+    private boolean recovered;
+    private boolean readyToRun;
+    private HashSet<Integer> peersReadyToRun;
+    private boolean lanesStarted;
+    private volatile boolean auctionsEnded;
+    
+    
+    public Auctioneer(int port, Log log, ServerOptions options)
+    {
+        metrics        = new Metrics();
+        messageCounters = new ConcurrentHashMap<String, LongAdder>();
+        lock           = new TimedLock(metrics);
+        this.log       = log;
+        this.options   = options;
+        proxy          = new Proxy(port, this, options);
+        messageFactory = new MessageFactory();
+        timerWheel     = new TimerWheel("timer", options.getTimerTickMillis(), TimerWheel.defaultWheelSize);
+        auctionsEnded  = false;
+        catalogLock    = new Object();
+        readyToRun     = false;
+        peersReadyToRun = new HashSet<Integer>();
+        cluster        = ClusterConfig.single(port);
+        node           = 0;
+    }
+    
+    /**
+     * Makes this auctioneer the given node of a cluster, to be called before configure
+     * Without it the auctioneer runs alone and validates its bids itself
+     * @param cluster
+     * @param node
+     */
+    public void joinCluster(ClusterConfig cluster, int node)
+    {
+        this.cluster = cluster;
+        this.node    = node;
+        this.type    = cluster.getNode(node).getName();
+        proxy.setCluster(cluster, node);
+    }
+
+    /**
+     * Instantiates a DBServer, parses the configuration file and
+     * gives every auction lane its cursor over the items
+     * @throws IOException 
+     */
+    public void configure(String confFile) throws IOException
+    {
+        dbServer = DBServer.getInstance(options, node, type);
+        dbServer.setAuctioneer(this);
+        users = new UserRegistry(node, cluster.getNodeCount());
+        metrics.register(type);
+        
+        confParser = new ConfParser(confFile);
+        confParser.parse();
+        timeLapse = confParser.getTimeLapse();
+        nextItemId = confParser.getItemCount() + 1;
+        
+        if (options.isJournalEnabled()) {
+            journal = new EventJournal(new File(options.getStorageDir(), type + ".journal"), options.getJournalSyncMillis());
+            journal.setName("journal-" + type);
+        } else {
+            journal = EventJournal.disabled();
+        }
+        
+        if (options.isSingleWriterEngine())
+            engine = new AuctionEngine("engine-" + type, options.getEngineRingSize(), metrics);
+        lanes = new AuctionLane[options.getLaneCount()];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new AuctionLane(i, this, proxy, dbServer, timeLapse);
+            lanes[i].setCatalog(confParser.cursor(i + 1, lanes.length));    // see laneIndexOf
+        }
+        
+        if (options.getSnapshotMillis() > 0) {
+            File snapshotFile = new File(options.getStorageDir(), type + ".snapshot");
+            snapshots = new SnapshotWriter(this, snapshotFile, options.getSnapshotMillis());
+            snapshots.setName("snapshot-" + type);
+            recovered = snapshotFile.exists() && recover(snapshotFile);
+        }
+        if (!recovered)
+            dbServer.initAuctions(confParser.items());  // the results stored before the crash are kept
+        journal.open();
+    }
+    
+    /**
+     * Carries on from the snapshot of a previous run: restores the users and the lanes, then
+     * replays the journal events each lane had not seen when it was captured
+     * @param file
+     * @return false if the snapshot cannot be used, the auctions then start over
+     */
+    private boolean recover(File file)
+    {
+        long start = System.nanoTime();
+        final AuctionSnapshot snapshot;
+        try {
+            snapshot = AuctionSnapshot.read(file);
+        } catch (IOException e) {
+            warn("Ignoring the snapshot: {}", e.getMessage());
+            return false;
+        }
+        if (snapshot.getLaneCount() != lanes.length) {
+            warn("Ignoring the snapshot of a run with {} lanes", snapshot.getLaneCount());
+            return false;
+        }
+        
+        ArrayList<String> names = snapshot.getUsers();
+        for (int id = 0; id < names.size(); id++)
+            if (names.get(id) != null)
+                users.registerRecovered(id, names.get(id));
+        nextItemId = Math.max(nextItemId, snapshot.getNextItemId());
+        long lastSeq = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i].restore(snapshot.getLane(i));
+            lastSeq = Math.max(lastSeq, snapshot.getLane(i).seq);
+        }
+        
+        try {
+            lastSeq = Math.max(lastSeq, journal.replay(snapshot.getJournalOffset(), new EventJournal.Replay() {
+                @Override
+                public void event(long seq, int origin, Message message) {
+                    replay(snapshot, seq, origin, message);
+                }
+            }));
+        } catch (IOException e) {
+            warn("Unable to replay the journal, carrying on from the snapshot: {}", e.getMessage());
+        }
+        journal.resumeAfter(lastSeq);
+        debug("Recovered the auctions in progress in {} ms", (System.nanoTime() - start) / 1000000);
+        return true;
+    }
+    
+    /**
+     * Applies a journal event read back during a recovery
+     * Users are bound again to their ids; item events go to their lane, unless the lane
+     * had already seen them when its snapshot was taken. Every appended item moves the next
+     * id past its own, seen by its lane or not
+     * @param snapshot
+     * @param seq
+     * @param origin
+     * @param message
+     */
+    private void replay(AuctionSnapshot snapshot, long seq, int origin, Message message)
+    {
+        if (message.getCommand().equals(Constants.user_joined)) {
+            users.registerRecovered(message.getInt(Constants.user_id),
+                    message.getProperty(Constants.username));
+            return;
+        }
+        String id = message.getProperty(Constants.item_id);
+        if (id == null)
+            return;
+        int index;
+        try {
+            index = laneIndexOf(Integer.parseInt(id));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (message.getCommand().equals(Constants.item_added))
+            nextItemId = Math.max(nextItemId, Integer.parseInt(id) + 1);
+        if (seq > snapshot.getLane(index).seq)
+            lanes[index].replay(origin, message);
+    }
+    
+    /**
+     * Captures the state of the auctions, every lane in its own turn
+     * The journal offset is read first, so every event a lane has not seen is after it
+     * This method is to be called without holding any lock
+     * @return null if a lane did not get its turn in time
+     */
+    public AuctionSnapshot takeSnapshot()
+    {
+        long journalOffset = journal.getCommittedOffset();
+        int nextId;
+        synchronized (catalogLock) {
+            nextId = nextItemId;
+        }
+        final AuctionSnapshot snapshot = new AuctionSnapshot(journalOffset, users.getNames(), nextId, lanes.length);
+        final CountDownLatch captured = new CountDownLatch(lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            final int index = i;
+            lanes[i].execute(new Runnable() {
+                @Override
+                public void run() {
+                    snapshot.setLane(index, lanes[index].snapshot());
+                    captured.countDown();
+                }
+            });
+        }
+        try {
+            return captured.await(1, TimeUnit.SECONDS) ? snapshot : null;
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * @throws IOException
+     */
+    public void run()
+    {
+        timerWheel.setName("timer-" + type);
+        timerWheel.start();
+        if (engine != null)
+            engine.start();
+        if (snapshots != null)
+            snapshots.start();
+        if (recovered)
+            beginAuctions();    // the countdown was over before the restart
+        else
+            runCountDown(countdownTime);
+        
+
+        try {
+            proxy.run(); 
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        
+        timerWheel.shutdown();
+        if (engine != null)
+            engine.shutdown();
+        if (snapshots != null) {
+            snapshots.shutdown();
+            if (auctionsEnded)
+                snapshots.getFile().delete();
+        }
+        dbServer.close();
+        journal.close();
+        metrics.unregister();
+        debug("Shuting Down ...");
+    }
+
+    /**
+     * Runs a countdown till the auctions start
+     * @param seconds
+     */
+    private void runCountDown(int seconds) 
+    {
+        final int remaining = seconds - countDownInterval;
+        timerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (remaining <= 0) {
+                    beginAuctions();
+                } else { 
+                    String countdownMessage = "Auctions start in " + remaining + " seconds!";
+                    broadcastInfo(countdownMessage);
+                    if (node == 0)
+                        debug(countdownMessage);
+                    runCountDown(remaining);
+                }
+            }
+        }, countDownInterval * 1000);
+    }
+
+    /**
+     * Begins the auction process
+     */
+    private void beginAuctions()
+    {
+        debug("Auctions are beggining!");
+        broadcastInfo("Welcome to the auction house!");
+
+        boolean begin;
+        lock.lock();
+        try {
+            readyToRun = true;
+            Message m = messageFactory.createMessage(Constants.ready_to_run);
+            proxy.sendToPeer(m);
+            begin = shouldBeginLanes();
+        } finally {
+            lock.unlock();
+        }
+        if (begin)
+            beginLanes();
+    }
+
+    /**
+     * Returns true exactly once, when this auctioneer and all its peers are ready
+     * This method is to be called holding the lock
+     * @return
+     */
+    private boolean shouldBeginLanes()
+    {
+        if (!readyToRun || peersReadyToRun.size() < getPeerCount() || lanesStarted)
+            return false;
+        lanesStarted = true;
+        return true;
+    }
+
+    /**
+     * Starts the first auction of every lane, or resumes the ones a recovery restored
+     * This method is to be called without holding the lock
+     */
+    private void beginLanes()
+    {
+        debug("Running {} auction lane(s){}", lanes.length, (engine != null) ? " on the single writer engine" : "");
+        for (final AuctionLane lane : lanes) {
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    lane.start();
+                }
+            });
+        }
+    }
+
+    /**
+     * Called by a lane that has no more items to auction; once every lane is done and no
+     * appended item is waiting for one, the bidders are told that the auctions are complete
+     * This method is to be called by the lane, from its own turn
+     */
+    public void laneFinished()
+    {
+        synchronized (catalogLock) {
+            for (AuctionLane lane : lanes)
+                if (!lane.isFinished() || lane.hasOfferedItems())
+                    return;
+            if (auctionsEnded)  // the last two lanes finished at the same time
+                return;
+            Message m = messageFactory.createMessage(Constants.auction_complete);
+            proxy.broadcast(m);
+            debug("Auctions have ended");
+            auctionsEnded = true;
+        }
+    }
+
+    /**
+     * Returns the index of the lane that auctions the item with the given id
+     * All the auctioneers read the same items, so they agree on it as long as they
+     * run the same number of lanes
+     * @param itemId
+     * @return
+     */
+    private int laneIndexOf(int itemId)
+    {
+        return Math.floorMod(itemId - 1, lanes.length);
+    }
+
+    /**
+     * Returns the lane the given message refers to through its item id,
+     * or null if the message carries no valid item id
+     * @param message
+     * @return
+     */
+    private AuctionLane laneFor(Message message)
+    {
+        try {
+            return lanes[laneIndexOf(message.getInt(Constants.item_id))];
+        } catch (NumberFormatException e) {   // missing or not a number
+            return null;
+        }
+    }
+
+    private void broadcastInfo(String message)
+    {
+        Message m = messageFactory.createInfoMessage(message);
+        proxy.broadcast(m);
+    }
+    
+    /**
+     * Decodes and handles every complete message in the data just read from the key's channel
+     * Messages are handled as soon as they are decoded, so a protocol switch requested by a
+     * connect message applies to the rest of the same data
+     * Decoding runs on the calling reactor thread without any lock; messages about an item
+     * are passed to the lane of the item, the others are handled holding the lock
+     * @param read
+     * @param key
+     * @throws IOException if the connection sent a frame larger than the maximum frame size
+     */
+    public void processMessage(ByteBuffer read, SelectionKey key) throws IOException
+    {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> clientProps = (Map<String, Object>) key.attachment();        
+        FrameDecoder decoder = (FrameDecoder) clientProps.get(Auctioneer.decoder);
+        
+        Message m;
+        while ((m = decoder.next(read)) != null)
+            handleMessage(m, key);
+    }
+
+    /**
+     * Takes the actions necessary in response to the given message
+     * Item related messages are passed on to the lane of their item
+     * @param message
+     * @param name
+     * @param channel
+     * @throws ProtocolException if the message lacks a property it is handled with
+     */
+    private void handleMessage(Message message, SelectionKey key) throws ProtocolException
+    {
+        String command = message.getCommand();
+        debug("Received: {}", message);
+        countMessage(command);
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> clientProps = (Map<String, Object>) key.attachment();
+        String name  = (String) clientProps.get(Auctioneer.clientName);
+        Integer id   = (Integer) clientProps.get(Auctioneer.userId);
+        Integer peer = (Integer) clientProps.get(Auctioneer.nodeIndex);
+        checkProperties(message, peer != null);
+        
+        if (command.equals(Constants.connect) || command.equals(Constants.peer_hello)) {
+            lock.lock();
+            try {
+                if (command.equals(Constants.connect))
+                    handleConnect(name, message, key, clientProps);
+                else
+                    handlePeerHello(name, message, key);
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+        if (peer != null) {
+            handlePeerMessage(peer, command, message);
+            return;
+        }
+    
+        switch (command) {
+        
+        // message from bidder
+        case Constants.i_am_interested: 
+            if (id != null)
+                handleInterest(id, message);
+            break;
+        case Constants.my_bid:
+            if (id != null)
+                handleBid(id, message);
+            break;
+        case Constants.quit:
+            if (id != null)
+                handleQuit(id, name);
+            break;
+        }
+    }
+    
+    /**
+     * Checks that a message has the properties the threads handling it will read, so that a
+     * malformed one fails its own connection here rather than a lane or a reactor later on
+     * A bid with an invalid item id is still answered, it is not a protocol error
+     * @param message
+     * @param fromPeer
+     * @throws ProtocolException
+     */
+    private static void checkProperties(Message message, boolean fromPeer) throws ProtocolException
+    {
+        String[] ints    = noProperties;
+        String[] strings = noProperties;
+        if (fromPeer) {
+            switch (message.getCommand()) {
+            case Constants.user_joined:
+                ints    = new String[] { Constants.user_id };
+                strings = new String[] { Constants.username };
+                break;
+            case Constants.add_item:
+                ints    = new String[] { Constants.starting_price };
+                strings = new String[] { Constants.description };
+                break;
+            case Constants.item_added:
+                ints    = new String[] { Constants.item_id, Constants.starting_price };
+                strings = new String[] { Constants.description };
+                break;
+            case Constants.got_bid:
+            case Constants.bid_ok:
+            case Constants.item_sold:
+                ints = new String[] { Constants.user_id, Constants.amount };
+                break;
+            case Constants.ready_to_end:
+            case Constants.interested_count:
+            case Constants.discount_round:
+                ints = new String[] { Constants.amount };
+                break;
+            }
+        } else if (message.getCommand().equals(Constants.my_bid)) {
+            ints = new String[] { Constants.amount };
+        }
+        for (String name : ints) {
+            try {
+                message.getInt(name);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid " + name + " in " + message.getCommand() + ": " + e.getMessage());
+            }
+        }
+        for (String name : strings)
+            if (!message.hasProperty(name))
+                throw new ProtocolException("Missing " + name + " in " + message.getCommand());
+    }
+    
+    /**
+     * Takes the actions necessary in response to a message from another node of the cluster
+     * @param peer the index of the node
+     * @param command
+     * @param message
+     * @throws ProtocolException if a peer_batch is malformed
+     */
+    private void handlePeerMessage(int peer, String command, Message message) throws ProtocolException
+    {
+        switch (command) {
+        case Constants.ready_to_run:
+            handleReadyToRun(peer);
+            break;
+        case Constants.user_joined:
+            handleUserJoined(message);
+            break;
+        case Constants.add_item:
+            appendItem(message.getInt(Constants.starting_price),
+                    message.getProperty(Constants.description));
+            break;
+        case Constants.item_added:
+            if (peer == 0)
+                handleItemAdded(message);
+            break;
+        case Constants.peer_batch:
+            for (Message validation : messageFactory.unpackPeerBatch(message))
+                handlePeerItemMessage(peer, validation.getCommand(), validation);
+            break;
+        case Constants.ready_to_end:
+        case Constants.got_bid:
+        case Constants.bid_ok:
+        case Constants.interested_count:
+        case Constants.discount_round:
+        case Constants.item_sold:
+            handlePeerItemMessage(peer, command, message);
+            break;
+        }
+    }
+    
+    /**
+     * Passes an item related message from a peer to the lane auctioning that item
+     * Messages about an item the lane is no longer auctioning are ignored
+     * @param peer
+     * @param command
+     * @param message
+     */
+    private void handlePeerItemMessage(final int peer, final String command, final Message message)
+    {
+        final AuctionLane lane = laneFor(message);
+        if (lane == null) {
+            journal.record(EventJournal.peer, message);
+            debug("Ignoring {} for an item that is not being auctioned", command);
+            return;
+        }
+        lane.execute(new Runnable() {
+            @Override
+            public void run() {
+                journal.record(EventJournal.peer, message);  // in the lane's turn, for its snapshots
+                if (lane.isCurrent(message))
+                    handleLaneMessage(lane, peer, command, message);
+                else
+                    debug("Ignoring {} for an item that is not being auctioned", command);
+            }
+        });
+    }
+
+    /**
+     * This method is to be called from the lane's turn, see AuctionLane.execute
+     */
+    private void handleLaneMessage(AuctionLane lane, int peer, String command, Message message)
+    {
+        switch (command) {
+        case Constants.ready_to_end:
+            lane.handleReadyToEnd(peer, message);
+            break;
+        case Constants.got_bid:
+            lane.handleGotBid(peer, message);
+            break;
+        case Constants.bid_ok:
+            lane.handleBidOk(peer, message);
+            break;
+        case Constants.interested_count:
+            lane.handleInterestedCount(peer, message);
+            break;
+        case Constants.discount_round:
+            lane.handleDiscountRound(peer, message);
+            break;
+        case Constants.item_sold:
+            lane.handleItemSold(peer, message);
+            break;
+        }
+    }
+
+    private void handleQuit(int userId, String userName) 
+    {
+        lock.lock();
+        try {
+            proxy.closeConnection(userId, userName);
+        } finally {
+            lock.unlock();
+        }
+        removeUserFromInterested(userId);
+    }
+
+    private void handleBid(final int userId, final Message message) 
+    {
+        final AuctionLane lane = laneFor(message);
+        if (lane == null) {
+            journal.record(userId, message);
+            String requestId = message.getProperty(Constants.request_id);
+            Message m = (requestId == null) ? messageFactory.createInfoMessage("Invalid item ID.")
+                    : messageFactory.createBidAckMessage(requestId, -1, -1, Constants.bid_rejected, "Invalid item ID.");
+            proxy.send(userId, m);
+            return;
+        }
+        lane.execute(new Runnable() {
+            @Override
+            public void run() {
+                journal.record(userId, message);
+                lane.handleBid(userId, message);
+            }
+        });
+    }
+    
+    /**
+     * Records the id the peer gave to one of its users
+     * @param message
+     */
+    private void handleUserJoined(Message message)
+    {
+        journal.record(EventJournal.peer, message);
+        int id = message.getInt(Constants.user_id);
+        users.registerRemote(id, message.getProperty(Constants.username));
+    }
+    
+    private void handleReadyToRun(int peer)
+    {
+        debug("Got ready to run message");
+        boolean begin;
+        lock.lock();
+        try {
+            peersReadyToRun.add(peer);
+            begin = shouldBeginLanes();
+        } finally {
+            lock.unlock();
+        }
+        if (begin)
+            beginLanes();
+    }
+    
+    /**
+     * Handles the peer_hello a node sends first on the connection it opened to this one
+     * @param existingName
+     * @param message
+     * @param key
+     */
+    private void handlePeerHello(String existingName, Message message, SelectionKey key)
+    {
+        if (existingName != null)  // a bidder, or a node that has already said hello
+            return;
+        int peer;
+        try {
+            peer = message.getInt(Constants.node);
+        } catch (NumberFormatException e) {
+            peer = -1;
+        }
+        if (!proxy.linkPeer(peer, key))
+            warn("Ignoring peer_hello from node {}", message.getProperty(Constants.node));
+    }
+    
+    /**
+     * Called by the proxy once the connection with another node is up: tells it about the
+     * users that connected here before and whether the auctions are about to begin
+     * This method is to be called holding the lock
+     * @param peer
+     */
+    public void peerLinked(int peer)
+    {
+        debug("Linked with peer {}", cluster.getNode(peer).getName());
+        for (int id : users.getLocalIds())
+            proxy.sendToPeer(peer, messageFactory.createUserJoinedMessage(id, users.nameOf(id)));
+        if (readyToRun)
+            proxy.sendToPeer(peer, messageFactory.createMessage(Constants.ready_to_run));
+    }
+
+    private void handleInterest(final int userId, final Message message)
+    {
+        final AuctionLane lane = laneFor(message);
+        if (lane == null) {
+            journal.record(userId, message);
+            Message m = messageFactory.createInfoMessage("Invalid item ID.");
+            proxy.send(userId, m);
+            return;
+        }
+        lane.execute(new Runnable() {
+            @Override
+            public void run() {
+                journal.record(userId, message);
+                lane.handleInterest(userId, message);
+            }
+        });
+    }
+
+    /**
+     * Handle a connect request
+     * The user gets an id, used instead of the name from then on, which is announced to the peer
+     * @param messageProps
+     * @param existingName
+     * @param key
+     * @param clientProps 
+     */
+    private void handleConnect(String existingName, Message message, SelectionKey key, Map<String, Object> clientProps) 
+    {
+        if (existingName != null) // this user has already connected.
+            return;
+        if (Constants.protocol_binary.equals(message.getProperty(Constants.protocol))) {
+            // every message from now on, starting with our reply, is a binary frame
+            clientProps.put(Auctioneer.protocol, Constants.protocol_binary);
+            ((FrameDecoder) clientProps.get(Auctioneer.decoder)).setBinary(true);
+        }
+        String username = message.getProperty(Constants.username);
+        int id = (username == null) ? UserRegistry.noUser : users.register(username);
+        if (id == UserRegistry.noUser || proxy.isUserActive(id)) {  // taken here or on a peer
+            Message m = messageFactory.createMessage(Constants.duplicate_name);
+            proxy.send(key, m);
+            return;
+        }
+        clientProps.put(Auctioneer.clientName, username);
+        clientProps.put(Auctioneer.userId, id);
+        proxy.addUser(id, key);  // publishes the key to the other threads
+        Message joined = messageFactory.createUserJoinedMessage(id, username);
+        journal.record(EventJournal.self, joined);
+        proxy.sendToPeer(joined);
+        Message m = messageFactory.createInfoMessage("You are now connected to the server.");
+        proxy.send(id, m);
+    }
+
+    /**
+     * Appends an item to the catalog while the auctions run
+     * Node 0 numbers the appended items and tells the other nodes about every one of them in
+     * that order, so that all the lanes auction them in the same order; another node
+     * forwards the item to node 0
+     * This method is to be called without holding any lock
+     * @param startingPrice
+     * @param description
+     * @return the id of the item, 0 if it was forwarded to node 0, or -1 if the auctions have ended
+     */
+    public int appendItem(int startingPrice, String description)
+    {
+        if (node != 0) {
+            if (auctionsEnded)
+                return -1;
+            proxy.sendToPeer(0, messageFactory.createAddItemMessage(startingPrice, description));
+            return 0;
+        }
+        int itemId;
+        AuctionLane lane;
+        synchronized (catalogLock) {     // the lanes get the items in the order of their ids
+            if (auctionsEnded)
+                return -1;
+            itemId = nextItemId++;
+            Message m = messageFactory.createItemAddedMessage(itemId, startingPrice, description);
+            proxy.sendToPeer(m);
+            lane = lanes[laneIndexOf(itemId)];
+            lane.offer(m);
+        }
+        debug("Appended item {}", itemId);
+        takeOffered(lane);
+        return itemId;
+    }
+    
+    /**
+     * Passes an item node 0 appended to its lane, unless the auctions have ended here
+     * @param message an item_added
+     */
+    private void handleItemAdded(Message message)
+    {
+        int itemId = message.getInt(Constants.item_id);
+        AuctionLane lane;
+        synchronized (catalogLock) {
+            if (auctionsEnded) {
+                debug("Ignoring item {}, appended after the auctions ended", itemId);
+                return;
+            }
+            nextItemId = Math.max(nextItemId, itemId + 1);
+            lane = lanes[laneIndexOf(itemId)];
+            lane.offer(message);
+        }
+        takeOffered(lane);
+    }
+    
+    /**
+     * Has a lane take in the items offered to it, in its own turn
+     * @param lane
+     */
+    private void takeOffered(final AuctionLane lane)
+    {
+        lane.execute(new Runnable() {
+            @Override
+            public void run() {
+                lane.takeOffered();
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    private void printConfData()
+    {
+        debug("Configuration for {}:", type);
+        debug("TimeLapse = {}", timeLapse);
+        for (Item i : confParser.items())
+            debug("Item {}: Starting Price = {}, Description = \"{}\"",
+                    i.getId(), i.getStartingPrice(), i.getDescription());
+    }
+
+    /**
+     * Returns the index of this auctioneer in its cluster
+     * @return
+     */
+    public int getNodeIndex()
+    {
+        return node;
+    }
+    
+    /**
+     * Returns the index of the auctioneer that decides the bids for the given item
+     * @param itemId
+     * @return
+     */
+    public int ownerOf(int itemId)
+    {
+        return cluster.ownerOf(itemId);
+    }
+    
+    /**
+     * Returns the number of other auctioneers in the cluster, linked or not
+     * @return
+     */
+    public int getPeerCount()
+    {
+        return cluster.getNodeCount() - 1;
+    }
+    
+    public String getType()
+    {
+        return type;
+    }
+
+    public Lock getLock()
+    {
+        return lock;
+    }
+
+    /**
+     * Returns the engine running the lanes, or null if they run under their own locks
+     * @return
+     */
+    public AuctionEngine getEngine()
+    {
+        return engine;
+    }
+
+    public Proxy getProxy()
+    {
+        return proxy;
+    }
+
+    /**
+     * Returns the lane that auctions the item with the given id
+     * @param itemId
+     * @return
+     */
+    public AuctionLane getLane(int itemId)
+    {
+        return lanes[laneIndexOf(itemId)];
+    }
+
+    public TimerWheel getTimerWheel()
+    {
+        return timerWheel;
+    }
+
+    public ServerOptions getOptions()
+    {
+        return options;
+    }
+
+    public EventJournal getJournal()
+    {
+        return journal;
+    }
+
+    public UserRegistry getUsers()
+    {
+        return users;
+    }
+
+    public Metrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Counts a received message by its command
+     * Commands the protocol does not know are counted together as other, so that clients
+     * sending made up commands can neither grow the registry nor choose the label
+     * @param command
+     */
+    private void countMessage(String command)
+    {
+        if (!BinaryCodec.isCommand(command))
+            command = "other";
+        LongAdder counter = messageCounters.get(command);
+        if (counter == null) {
+            counter = metrics.counter(Metrics.messages, "command", command);
+            messageCounters.put(command, counter);  // the metrics hand out the same counter every time
+        }
+        counter.increment();
+    }
+    
+    /**
+     * Logs a message as it is, through a constant format so that it is not taken for one
+     * @param debugMessage
+     */
+    public void debug(String debugMessage)
+    {
+        log.debug(type, "{}", debugMessage);
+    }
+    
+    /**
+     * Logs a message with {} placeholders, formatted on the log thread only if debug is enabled
+     * @param format
+     * @param arg0
+     */
+    public void debug(String format, Object arg0)
+    {
+        log.debug(type, format, arg0);
+    }
+    
+    public void debug(String format, Object arg0, Object arg1)
+    {
+        log.debug(type, format, arg0, arg1);
+    }
+    
+    public void debug(String format, Object arg0, Object arg1, Object arg2)
+    {
+        log.debug(type, format, arg0, arg1, arg2);
+    }
+    
+    public void warn(String format, Object arg0)
+    {
+        log.warn(type, format, arg0);
+    }
+    
+    public boolean haveAuctionsEnded()
+    {
+        return auctionsEnded;
+    }
+
+    /**
+     * Passes the removal to every lane in turn
+     * This method is to be called without holding any lock
+     * @param userId
+     */
+    public void removeUserFromInterested(final int userId) 
+    {
+        for (final AuctionLane lane : lanes) {
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    lane.removeUserFromInterested(userId);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,269 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Encodes and decodes messages using the compact binary wire protocol.
+ *
+ * A frame is laid out as:
+ *   int32  length of the rest of the frame
+ *   byte   command code (0 = literal command string follows)
+ *   byte   number of properties
+ *   for every property:
+ *     byte   property code (0 = literal property name follows)
+ *     byte   value type (TYPE_STRING or TYPE_INT)
+ *     value  int32 or string
+ *
+ * Strings are written as an unsigned int16 length followed by UTF-8 bytes, so a string is
+ * at most 65535 bytes long and a message has at most 255 properties; encoding a message
+ * beyond these limits fails with an IllegalArgumentException.
+ * The int properties of a message are written and read as ints, without going through
+ * strings; ids chosen by the clients, like request_id, are strings and kept as they are.
+ * A frame that does not follow this layout, e.g. with an unknown code or a length running
+ * past its end, fails the decoding with a ProtocolException, which drops its connection only.
+ *
+ * A client selects the binary protocol by sending its (text) connect message
+ * with protocol = "binary". Every message after that, starting with the server's
+ * reply to the connect, is a binary frame in both directions.
+ * A codec made with textSafe set refuses frames with a \r, \n or " in a string: the server
+ * hands the messages of binary clients on to text clients and peers, whose lines and quoted
+ * values such characters would break.
+ */
+public class BinaryCodec
+{
+    public static final int headerLength = 4;
+
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_INT    = 1;
+    private static final byte LITERAL     = 0;
+
+    private static final String[] commands = {
+        Constants.connect, Constants.i_am_interested, Constants.my_bid, Constants.quit,
+        Constants.start_bidding, Constants.new_high_bid, Constants.stop_bidding,
+        Constants.duplicate_name, Constants.bid_item, Constants.auction_complete, Constants.info,
+        Constants.ready_to_run, Constants.ready_to_end, Constants.got_bid, Constants.bid_ok,
+        Constants.interested_count, Constants.user_joined, Constants.bid_ack,
+        Constants.peer_batch, Constants.peer_hello, Constants.discount_round, Constants.item_sold,
+        Constants.add_item, Constants.item_added
+    };
+
+    private static final String[] propertyNames = {
+        Constants.username, Constants.item_id, Constants.description, Constants.starting_price,
+        Constants.winner, Constants.highest_bid, Constants.message, Constants.amount,
+        Constants.protocol, Constants.user_id, Constants.request_id, Constants.status,
+        Constants.seq, Constants.count, Constants.node
+    };
+
+    private static final String[] intProperties = {
+        Constants.item_id, Constants.starting_price, Constants.highest_bid, Constants.amount,
+        Constants.user_id, Constants.seq, Constants.count, Constants.node
+    };
+
+    private static final HashMap<String, Byte> commandCodes  = codeTable(commands);
+    private static final HashMap<String, Byte> propertyCodes = codeTable(propertyNames);
+    private static final HashMap<String, Byte> intCodes      = codeTable(intProperties);
+
+    private boolean textSafe;
+
+    /**
+     * Returns true if the given command is one of the protocol
+     * @param command
+     * @return
+     */
+    public static boolean isCommand(String command)
+    {
+        return commandCodes.containsKey(command);
+    }
+
+    public BinaryCodec()
+    {
+        this(false);
+    }
+
+    /**
+     * @param textSafe true to refuse the strings the text protocol cannot carry
+     */
+    public BinaryCodec(boolean textSafe)
+    {
+        this.textSafe = textSafe;
+    }
+
+    private static HashMap<String, Byte> codeTable(String[] names)
+    {
+        HashMap<String, Byte> table = new HashMap<String, Byte>();
+        for (int i = 0; i < names.length; i++)
+            table.put(names[i], (byte) (i + 1));
+        return table;
+    }
+
+    /**
+     * Encodes the given message into a frame, ready to be written to a channel
+     * @param message
+     * @return
+     * @throws IllegalArgumentException if the message does not fit the frame layout
+     */
+    public ByteBuffer encode(Message message)
+    {
+        Map<String, Object> props = message.getValues();
+        if (props.size() > 0xff)
+            throw new IllegalArgumentException("Too many properties for a binary frame: " + props.size());
+        Byte commandCode = commandCodes.get(message.getCommand());
+        byte[] literalCommand = (commandCode == null) ? utf8(message.getCommand()) : null;
+
+        // first pass: convert the values and compute the frame size
+        int size = 2 + ((literalCommand == null) ? 0 : 2 + literalCommand.length);
+        ArrayList<Object> values = new ArrayList<Object>(props.size());
+        for (String key : props.keySet()) {
+            size += 2 + (propertyCodes.containsKey(key) ? 0 : 2 + utf8(key).length);
+            Object value = toWireValue(key, props.get(key));
+            size += (value instanceof Integer) ? 4 : 2 + ((byte[]) value).length;
+            values.add(value);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(headerLength + size);
+        buffer.putInt(size);
+        if (literalCommand == null) {
+            buffer.put(commandCode);
+        } else {
+            buffer.put(LITERAL);
+            putString(buffer, literalCommand);
+        }
+        buffer.put((byte) props.size());
+
+        int i = 0;
+        for (String key : props.keySet()) {
+            Byte keyCode = propertyCodes.get(key);
+            if (keyCode == null) {
+                buffer.put(LITERAL);
+                putString(buffer, utf8(key));
+            } else {
+                buffer.put(keyCode);
+            }
+            Object value = values.get(i++);
+            if (value instanceof Integer) {
+                buffer.put(TYPE_INT);
+                buffer.putInt((Integer) value);
+            } else {
+                buffer.put(TYPE_STRING);
+                putString(buffer, (byte[]) value);
+            }
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes the body of a single frame (the part after the length header)
+     * @param frame
+     * @return
+     * @throws ProtocolException if the frame is malformed
+     */
+    public Message decode(ByteBuffer frame) throws ProtocolException
+    {
+        require(frame, 2);
+        String command = checkText(lookup(commands, frame, "command"));
+        Message message = new Message(command);
+
+        require(frame, 1);
+        int count = frame.get() & 0xff;
+        for (int i = 0; i < count; i++) {
+            require(frame, 1);
+            String key = checkText(lookup(propertyNames, frame, "property"));
+            require(frame, 1);
+            byte type = frame.get();
+            if (type == TYPE_INT) {
+                require(frame, 4);
+                message.addProperty(key, frame.getInt());
+            } else if (type == TYPE_STRING) {
+                message.addProperty(key, checkText(getString(frame)));
+            } else {
+                throw new ProtocolException("Unknown value type " + type + " in a binary frame");
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Reads a code and returns the name it stands for, or the literal name following it
+     * @param names
+     * @param frame
+     * @param what
+     * @return
+     * @throws ProtocolException if the code is not in the table
+     */
+    private static String lookup(String[] names, ByteBuffer frame, String what) throws ProtocolException
+    {
+        int code = frame.get() & 0xff;
+        if (code == LITERAL)
+            return getString(frame);
+        if (code > names.length)
+            throw new ProtocolException("Unknown " + what + " code " + code + " in a binary frame");
+        return names[code - 1];
+    }
+
+    /**
+     * Returns the given string, checking it holds nothing that breaks the text protocol if
+     * this codec is text safe
+     * @param text
+     * @return
+     * @throws ProtocolException if it holds a \r, \n or "
+     */
+    private String checkText(String text) throws ProtocolException
+    {
+        if (textSafe) {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '\r' || c == '\n' || c == '"')
+                    throw new ProtocolException("Line break or quote in a string of a binary frame");
+            }
+        }
+        return text;
+    }
+
+    private static void require(ByteBuffer frame, int count) throws ProtocolException
+    {
+        if (frame.remaining() < count)
+            throw new ProtocolException("Truncated binary frame");
+    }
+
+    private Object toWireValue(String key, Object value)
+    {
+        if (intCodes.containsKey(key)) {
+            if (value instanceof Integer)
+                return value;
+            try {
+                return Integer.parseInt((String) value);
+            } catch (NumberFormatException e) {
+            }
+        }
+        return utf8(value.toString());
+    }
+
+    private static byte[] utf8(String s)
+    {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes)
+    {
+        if (bytes.length > 0xffff)
+            throw new IllegalArgumentException("String of " + bytes.length + " bytes is too long for a binary frame");
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) throws ProtocolException
+    {
+        require(buffer, 2);
+        int length = buffer.getShort() & 0xffff;
+        require(buffer, length);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
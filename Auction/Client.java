@@ -11,6 +11,7 @@ import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.text.DateFormat;
@@ -21,20 +22,24 @@ import java.io.PrintWriter;
 
  
 public class Client {
-    private static int port;
-    private static String host;
-    private static SocketChannel channel;
+    private int port;
+    private String host;
+    private SocketChannel channel;
     public Runnable listeningThread;
     public Runnable commandThread;
     ClientItem currentItem;
-    private static String bidderName;
-    private static ArrayList<ClientItem> boughtItems; 
+    private HashMap<Integer, ClientItem> items;  // items announced so far, several may be auctioned at once
+    private String bidderName;
+    private ArrayList<ClientItem> boughtItems; 
     private MessageFactory messageFactory;
-    private static String total;
+    private boolean binary;
+    private BinaryCodec binaryCodec;
+    private FrameDecoder decoder;
+    private CountDownLatch connected;
     private Lock itemLock;
     private PrintWriter writer; 
     
-    public Client(String host, int port, String bidderName, SocketChannel channel) {
+    public Client(String host, int port, String bidderName, SocketChannel channel, String protocol) {
         this.host = host;
         this.port = port;
         this.bidderName = bidderName;
@@ -47,7 +52,12 @@ public class Client {
         }
 
         boughtItems = new ArrayList<ClientItem>();
-        total = "";
+        items = new HashMap<Integer, ClientItem>();
+        binary = protocol.equals(Constants.protocol_binary);
+        binaryCodec = new BinaryCodec();
+        decoder = new FrameDecoder(binaryCodec);
+        decoder.setBinary(binary);
+        connected = new CountDownLatch(1);
         messageFactory  = new MessageFactory();
         itemLock = new ReentrantLock();
         listeningThread = new Runnable() {
@@ -76,6 +86,14 @@ public class Client {
         
         BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
         String input;
+        
+        // in binary mode nothing may be sent before the server has answered our connect
+        if (binary) {
+            try {
+                connected.await();
+            } catch (InterruptedException e) {
+            }
+        }
 
         while((input=br.readLine())!=null) {
             debug("User said: " + input);
@@ -114,27 +132,32 @@ public class Client {
                 writer.close();
                 System.exit(0);
             }
-            else if (input.equals("i_am_interested")) {
+            else if (input.startsWith("i_am_interested")) {
+                // i_am_interested [item id], defaults to the last announced item
+                String[] temp = input.split(" ");
                 itemLock.lock();
-                if (currentItem != null) 
-                    send(channel, messageFactory.createIAmInterestedMessage(bidderName, currentItem.getId()));
+                ClientItem item = (temp.length == 2) ? findItem(temp[1]) : currentItem;
+                if (item != null) 
+                    send(channel, messageFactory.createIAmInterestedMessage(bidderName, item.getId()));
                 else 
                     System.out.println("There is no item, currently auctioned");
                 itemLock.unlock();
             }
             else {
-                itemLock.lock();
+                // bid <amount> [item id], defaults to the last announced item
                 String[] temp = input.split(" ");
-                if (temp[0].equals("bid") && (temp.length == 2)) {
+                if (temp[0].equals("bid") && (temp.length == 2 || temp.length == 3)) {
                     System.out.println("You gave a new bid.");
                     int amount = Integer.parseInt(temp[1]);
-                    if (currentItem != null) {
-                        if (amount > currentItem.getCurrentPrice()) {
+                    itemLock.lock();
+                    ClientItem item = (temp.length == 3) ? findItem(temp[2]) : currentItem;
+                    if (item != null) {
+                        if (amount > item.getCurrentPrice()) {
                         //    System.out.println("Your bid got accepted.");
-                            send(channel, messageFactory.createMyBidMessage(bidderName, amount, currentItem.getId()));
+                            send(channel, messageFactory.createMyBidMessage(bidderName, amount, item.getId()));
                         }
                         else {
-                            System.out.println("Sorry we cannot accept bids less than "+currentItem.getCurrentPrice());
+                            System.out.println("Sorry we cannot accept bids less than "+item.getCurrentPrice());
                         }
                     }
                     else 
@@ -155,24 +178,13 @@ public class Client {
     protected void runListeningThread() throws IOException {
         
         
-        while (true) {
-            // see if any message has been received
-            ByteBuffer bufferA = ByteBuffer.allocate(256);
-            String message = "";
-            while ((channel.read(bufferA)) > 0) {
-                // flip the buffer to start reading
-                bufferA.flip();
-                message += Charset.defaultCharset().decode(bufferA);
- 
-            }
- 
-            if (message.length() > 0) {
-                //System.out.print(message);
-                processMessage(message);
-                //bufferA.clear();
-                //handleMessage(message);
-                //message = "";
-            }
+        // one buffer for the whole connection, the decoder keeps any incomplete frame itself
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (channel.read(buffer) >= 0) {
+            // flip the buffer to start reading
+            buffer.flip();
+            processMessage(buffer);
+            buffer.clear();
         }
         
     }
@@ -183,26 +195,23 @@ public class Client {
      */
     protected void send(SocketChannel channel, Message message) 
     {
-        CharBuffer buffer = CharBuffer.wrap(message.toString());
+        ByteBuffer buffer;
+        if (binary)
+            buffer = binaryCodec.encode(message);
+        else
+            buffer = Charset.defaultCharset().encode(CharBuffer.wrap(message.toString()));
         try {
             while (buffer.hasRemaining())
-                channel.write(Charset.defaultCharset().encode(buffer));
+                channel.write(buffer);
         } catch (IOException e) {
 //            e.printStackTrace();
         }
-        buffer.clear();
         debug("Sending message: " + message);
     }
 
-    public void processMessage(String s) {
-        //@SuppressWarnings("unchecked")
-        
-        total += s;
-        ArrayList<Message> messages = messageFactory.extractMessages(total);
-        String remaining = messageFactory.getRemaining();
-        total = remaining; 
-        
-        for (Message m : messages)
+    public void processMessage(ByteBuffer read) throws IOException {
+        Message m;
+        while ((m = decoder.next(read)) != null)
             handleMessage(m);
     }
 
@@ -210,6 +219,7 @@ public class Client {
     private void handleMessage(Message m) {
         String command = m.getCommand();
         HashMap<String, String> props = m.getProperties();
+        connected.countDown();
         debug("Got message: " +m);
         switch (command) {
         case Constants.duplicate_name:
@@ -245,17 +255,37 @@ public class Client {
     }        
 
 
+    // Returns the announced item with the given id, or null if there is none
+    private ClientItem findItem(String id) {
+        try {
+            return items.get(Integer.parseInt(id));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Returns the item a message refers to, falling back to the last announced one
+    private ClientItem itemOf(HashMap<String, String> props) {
+        String id = props.get(Constants.item_id);
+        ClientItem item = (id != null) ? findItem(id) : null;
+        return (item != null) ? item : currentItem;
+    }
+
     // Inform users about stop bidding
     // If client is the winner, inform him & add the item bought into his list! 
     private void handleStopBidding(HashMap<String, String> props) {
+        ClientItem item = itemOf(props);
         System.out.println("You shall now stop bidding for the item.");
         String winner = props.get(Constants.winner);
-        if (bidderName.equals(winner)) {
-            System.out.println("Congratulations! The item: " + currentItem.getDescription() + " is yours!"); // TODO check whether we should check the props.get("itemID")
-            boughtItems.add(currentItem);
-            currentItem = null;
+        if (bidderName.equals(winner) && item != null) {
+            System.out.println("Congratulations! The item: " + item.getDescription() + " is yours!");
+            boughtItems.add(item);
+        }
+        if (item != null) {
+            items.remove(item.getId());
+            if (item == currentItem)
+                currentItem = null;
         }
-        
     }
 
     // When you get info via the channel, just print it to the user
@@ -269,10 +299,13 @@ public class Client {
     
     // Inform users about new highest bid & holder
     private void handleNewHighBid(HashMap<String, String> props) {
-        System.out.println("New highest bid for current item belongs to " +props.get(Constants.username));
+        ClientItem item = itemOf(props);
+        if (item == null)
+            return;
+        System.out.println("New highest bid for item " + item.getId() + " belongs to " +props.get(Constants.username));
         System.out.println("New price: " + props.get(Constants.amount));
-        currentItem.setHolder(props.get(Constants.username));
-        currentItem.setCurrentPrice(Integer.parseInt(props.get(Constants.amount)));
+        item.setHolder(props.get(Constants.username));
+        item.setCurrentPrice(Integer.parseInt(props.get(Constants.amount)));
     }
 
     // Inform users about the info of the new item + create the new current Item 
@@ -286,13 +319,14 @@ public class Client {
         
         // create the new current Item with all of its details
         currentItem = new ClientItem(initial, props.get(Constants.description), id, Constants.no_holder);
+        items.put(id, currentItem);
     }
 
     private void handleStartBidding(HashMap<String, String> props) {
-        String temp  = props.get("item_id");
-        String descr = currentItem.getDescription();
-        System.out.println("You may now start bidding for item with description = " + descr + "!");
-        //currentItem.id = Integer.parseInt(temp);
+        ClientItem item = itemOf(props);
+        if (item == null)
+            return;
+        System.out.println("You may now start bidding for item " + item.getId() + " with description = " + item.getDescription() + "!");
     }
 
     // Inform users about the completion of the auction
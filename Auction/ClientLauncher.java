@@ -18,12 +18,19 @@ public class ClientLauncher {
     private static String host;
     private static SocketChannel channel;
     public static String bidderName;
+    private static String protocol;
     
     public static void main(String[] args) throws IOException, InterruptedException 
     {
-        if (args.length != 3) {
+        if (args.length != 3 && args.length != 4) {
             System.err.println("Wrong number of parameters.");
-            System.err.println("Usage: ClientLauncher <host> <port> <bidderName>");
+            System.err.println("Usage: ClientLauncher <host> <port> <bidderName> [text|binary]");
+            System.exit(1);
+        }
+        
+        protocol = (args.length == 4) ? args[3] : Constants.protocol_text;
+        if (!protocol.equals(Constants.protocol_text) && !protocol.equals(Constants.protocol_binary)) {
+            System.err.println("Argument [protocol] must be either text or binary.");
             System.exit(1);
         }
         
@@ -48,13 +55,14 @@ public class ClientLauncher {
         
         
         
-        CharBuffer buffer = CharBuffer.wrap("connect: username = \"" + bidderName + "\"\n");
+        Message connect = new MessageFactory().createConnectMessage(bidderName, protocol);
+        CharBuffer buffer = CharBuffer.wrap(connect.toString());
         while (buffer.hasRemaining()) {
             channel.write(Charset.defaultCharset().encode(buffer));
         }
         
 
-        Client client = new Client(host, port, bidderName, channel);
+        Client client = new Client(host, port, bidderName, channel, protocol);
         new Thread(client.listeningThread).start();
         new Thread(client.commandThread).start();
     }
@@ -0,0 +1,180 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * The auctioneers of a cluster, read from a file with one line per node:
+ *
+ *     <host> <port> [name]
+ *
+ * The node index is the position of the line, starting at 0; empty lines and lines starting
+ * with # are skipped. Bidders and the other nodes both connect to a node's port. A node dials
+ * every node listed after it and waits for the ones listed before it to dial in.
+ *
+ * Every item is owned by one node, found by consistent hashing of the item id on a ring where
+ * each node has a number of points derived from its name; the owner decides the bids for the
+ * item. Adding a node only moves the items that land on the new node's points.
+ */
+public class ClusterConfig
+{
+    public static class Node
+    {
+        private int index;
+        private String host;
+        private int port;
+        private String name;
+
+        public Node(int index, String host, int port, String name)
+        {
+            this.index = index;
+            this.host  = host;
+            this.port  = port;
+            this.name  = name;
+        }
+
+        public int getIndex()
+        {
+            return index;
+        }
+
+        public String getHost()
+        {
+            return host;
+        }
+
+        public int getPort()
+        {
+            return port;
+        }
+
+        /**
+         * The name the node goes by in logs, metrics and thread names
+         * @return
+         */
+        public String getName()
+        {
+            return name;
+        }
+    }
+
+    private static final int pointsPerNode = 64;
+
+    private ArrayList<Node> nodes;
+    private TreeMap<Integer, Node> ring;    // built on first use, the nodes are fixed by then
+
+    private ClusterConfig()
+    {
+        nodes = new ArrayList<Node>();
+    }
+
+    /**
+     * Reads a cluster file
+     * @param file
+     * @return
+     * @throws IOException if the file cannot be read or a line is malformed
+     */
+    public static ClusterConfig parse(String file) throws IOException
+    {
+        ClusterConfig cluster = new ClusterConfig();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("\\s+");
+                if (fields.length < 2 || fields.length > 3)
+                    throw new IOException(file + ":" + lineNumber + ": expected <host> <port> [name]");
+                int port;
+                try {
+                    port = Integer.parseInt(fields[1]);
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + ":" + lineNumber + ": invalid port " + fields[1]);
+                }
+                int index = cluster.nodes.size();
+                cluster.nodes.add(new Node(index, fields[0], port, (fields.length == 3) ? fields[2] : "node" + index));
+            }
+        } finally {
+            in.close();
+        }
+        if (cluster.nodes.isEmpty())
+            throw new IOException(file + ": no nodes");
+        return cluster;
+    }
+
+    /**
+     * The two auctioneers ServerLauncher runs when no cluster file is given
+     * @param callerPort
+     * @param calleePort
+     * @return
+     */
+    public static ClusterConfig pair(int callerPort, int calleePort)
+    {
+        ClusterConfig cluster = new ClusterConfig();
+        cluster.nodes.add(new Node(0, "localhost", callerPort, "caller"));
+        cluster.nodes.add(new Node(1, "localhost", calleePort, "callee"));
+        return cluster;
+    }
+
+    /**
+     * A cluster of one auctioneer, which validates bids on its own
+     * @param port
+     * @return
+     */
+    public static ClusterConfig single(int port)
+    {
+        ClusterConfig cluster = new ClusterConfig();
+        cluster.nodes.add(new Node(0, "localhost", port, "auctioneer"));
+        return cluster;
+    }
+
+    public int getNodeCount()
+    {
+        return nodes.size();
+    }
+
+    public Node getNode(int index)
+    {
+        return nodes.get(index);
+    }
+
+    /**
+     * Returns the index of the node that owns the given item
+     * Every node reads the same cluster file, so they all agree on it
+     * @param itemId
+     * @return
+     */
+    public synchronized int ownerOf(int itemId)
+    {
+        if (ring == null) {
+            ring = new TreeMap<Integer, Node>();
+            for (Node node : nodes)
+                for (int i = 0; i < pointsPerNode; i++)
+                    ring.put(hash((node.getName() + "#" + i).hashCode()), node);
+        }
+        Map.Entry<Integer, Node> point = ring.ceilingEntry(hash(itemId));
+        return ((point == null) ? ring.firstEntry() : point).getValue().getIndex();
+    }
+
+    /**
+     * Spreads close keys over the whole ring (the finalizer of MurmurHash3)
+     * @param key
+     * @return
+     */
+    private static int hash(int key)
+    {
+        key ^= key >>> 16;
+        key *= 0x85ebca6b;
+        key ^= key >>> 13;
+        key *= 0xc2b2ae35;
+        key ^= key >>> 16;
+        return key;
+    }
+}
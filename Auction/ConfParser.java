@@ -1,50 +1,244 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.ArrayList;
-
-
-public class ConfParser 
-{
-    private String confFile;
-    private int timeLapse;
-    private ArrayList<Item> items;
-    
-    public ConfParser(String confFile)
-    {
-        this.confFile = confFile;
-        items = new ArrayList<Item>();
-    }
-    
-    public void parse() throws IOException
-    {
-        BufferedReader in = new BufferedReader(new FileReader(confFile));
-        
-        String line = in.readLine();
-        timeLapse = Integer.parseInt(line.trim());
-        
-        line = in.readLine();
-        int numItems = Integer.parseInt(line.trim());
-        
-        for (int i = 0; i < numItems; i++) {
-            line = in.readLine().trim();
-            int splitPos = line.indexOf(' ');
-            int startingPrice = Integer.parseInt(line.substring(0, splitPos));
-            String description = line.substring(splitPos + 1);
-            items.add(new Item(startingPrice, description, i+1));
-        }
-        
-        in.close();
-    }
-
-    public ArrayList<Item> getItems()
-    {
-        return items;
-    }
-
-    public int getTimeLapse()
-    {
-        return timeLapse;
-    }
-
-}
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * Reads the configuration of the auctions:
+ *
+ *     <time lapse in seconds>
+ *     <number of items>
+ *     <starting price> <description>     one line per item, whose id is the line's position
+ *
+ * The file is memory-mapped. parse reads the first two lines and checks the item lines in
+ * place, without creating any object, so that a malformed catalog fails at startup rather than
+ * in a lane when its item comes up. The items are streamed by cursors, which parse a line only
+ * when its item comes up, so the heap only holds the items being auctioned. Every cursor reads
+ * through its own view of the mapping, so the lanes stream their items independently.
+ */
+public class ConfParser
+{
+    private static final Charset charset = Charset.defaultCharset();
+
+    private String confFile;
+    private int timeLapse;
+    private int itemCount;
+    private MappedByteBuffer mapped;
+    private int itemsStart;     // offset of the first item line
+
+    public ConfParser(String confFile)
+    {
+        this.confFile = confFile;
+    }
+
+    /**
+     * Maps the file, reads the time lapse and the number of items and checks the item lines
+     * @throws IOException if the file cannot be mapped or is malformed
+     */
+    public void parse() throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(confFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(confFile + " is too large to be mapped");
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            file.close();   // the mapping stays valid
+        }
+
+        ByteBuffer data = mapped.duplicate();
+        try {
+            timeLapse = Integer.parseInt(readLine(data).trim());
+            itemCount = Integer.parseInt(readLine(data).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException(confFile + ": invalid header, " + e.getMessage());
+        }
+        itemsStart = data.position();
+        for (int id = 1; id <= itemCount; id++) {
+            if (!data.hasRemaining())
+                throw new IOException(confFile + ": " + itemCount + " items announced, " + (id - 1) + " found");
+            String error = checkItemLine(data);
+            if (error != null)
+                throw new IOException(confFile + ": item " + id + " (line " + (id + 2) + "): " + error);
+        }
+    }
+
+    /**
+     * Checks that the line at the position of the data is "<starting price> <description>",
+     * the way Cursor.next reads it, and moves past its end
+     * @param data
+     * @return what is wrong with the line, or null if it is fine
+     */
+    private static String checkItemLine(ByteBuffer data)
+    {
+        while (data.hasRemaining() && data.get(data.position()) != '\n' && data.get(data.position()) <= ' ')
+            data.get();     // leading blanks, trimmed by next
+        long price = 0;
+        int digits = 0;
+        boolean negative = false;
+        if (data.hasRemaining() && (data.get(data.position()) == '-' || data.get(data.position()) == '+'))
+            negative = (data.get() == '-');
+        byte b = 0;
+        while (data.hasRemaining() && (b = data.get()) >= '0' && b <= '9') {
+            price = price * 10 + (b - '0');
+            if (price > Integer.MAX_VALUE + 1L)
+                break;
+            digits++;
+        }
+        String error = null;
+        if (price > (negative ? Integer.MAX_VALUE + 1L : Integer.MAX_VALUE))
+            error = "the starting price is out of range";
+        else if (digits == 0 || b != ' ')
+            error = "expected a starting price and a description";
+        boolean described = false;
+        while (b != '\n' && data.hasRemaining()) {
+            b = data.get();
+            described |= (b > ' ');
+        }
+        if (error == null && !described)
+            error = "the description is missing";
+        return error;
+    }
+
+    public int getTimeLapse()
+    {
+        return timeLapse;
+    }
+
+    public int getItemCount()
+    {
+        return itemCount;
+    }
+
+    /**
+     * Returns a cursor over the items with ids first, first + step, first + 2 * step...
+     * @param first
+     * @param step
+     * @return
+     */
+    public Cursor cursor(int first, int step)
+    {
+        return new Cursor(first, step);
+    }
+
+    /**
+     * Returns all the items in order, parsed as they are iterated
+     * @return
+     */
+    public Iterable<Item> items()
+    {
+        return new Iterable<Item>() {
+            @Override
+            public Iterator<Item> iterator() {
+                final Cursor cursor = cursor(1, 1);
+                return new Iterator<Item>() {
+                    @Override
+                    public boolean hasNext() {
+                        return cursor.hasNext();
+                    }
+
+                    @Override
+                    public Item next() {
+                        if (!cursor.hasNext())
+                            throw new NoSuchElementException();
+                        return cursor.next();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Streams some of the items of the catalog, in id order
+     * A cursor is used by one thread at a time, the lane it belongs to
+     */
+    public class Cursor
+    {
+        private ByteBuffer data;
+        private int lineId;     // the id of the item on the line at the position of data
+        private int nextId;
+        private int step;
+
+        private Cursor(int first, int step)
+        {
+            this.data   = mapped.duplicate();
+            this.lineId = 1;
+            this.nextId = first;
+            this.step   = step;
+            data.position(itemsStart);
+        }
+
+        public boolean hasNext()
+        {
+            return nextId <= itemCount;
+        }
+
+        /**
+         * Returns the id of the item next will return, for the snapshots
+         * @return
+         */
+        public int getNextId()
+        {
+            return nextId;
+        }
+
+        /**
+         * Moves the cursor on to the given id, which has to be one it would return later
+         * @param id
+         */
+        public void seek(int id)
+        {
+            nextId = id;
+        }
+
+        /**
+         * Parses the next item, skipping the lines of the items in between
+         * @return
+         */
+        public Item next()
+        {
+            while (lineId < nextId) {
+                skipLine(data);
+                lineId++;
+            }
+            String line = readLine(data).trim();
+            lineId++;
+            int splitPos = line.indexOf(' ');
+            int startingPrice = Integer.parseInt(line.substring(0, splitPos));
+            String description = line.substring(splitPos + 1);
+            Item item = new Item(startingPrice, description, nextId);
+            nextId += step;
+            return item;
+        }
+    }
+
+    /**
+     * Reads the line at the position of the data and moves past its end
+     * @param data
+     * @return
+     */
+    private static String readLine(ByteBuffer data)
+    {
+        int start = data.position();
+        skipLine(data);
+        int end = data.position();
+        if (end > start && data.get(end - 1) == '\n')
+            end--;
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = data.get(start + i);
+        return new String(bytes, charset);
+    }
+
+    private static void skipLine(ByteBuffer data)
+    {
+        while (data.hasRemaining() && data.get() != '\n')
+            ;
+    }
+}
@@ -1,103 +1,349 @@
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.util.ArrayList;
-
-public class DBServer
-{
-    private Connection conn = null;
-    private Auctioneer auctioneer;
-    
-    private static DBServer callerInstance;
-    private static DBServer calleeInstance;
-    
-    private DBServer() {}
-    
-    public static DBServer getCallerInstance()
-    {
-        if (callerInstance == null) {
-            callerInstance = new DBServer();
-            callerInstance.init("jdbc:mysql://localhost:3306/DB", "DB", "pass");
-        }
-        
-        return callerInstance;
-    }
-    
-    public static DBServer getCalleeInstance()
-    {
-        if (calleeInstance == null) {
-            calleeInstance = new DBServer();
-            calleeInstance.init("jdbc:mysql://localhost:3306/DB2", "DB2", "pass");
-        }
-        
-        return calleeInstance;
-    }
-    
-    private void init(String dbURL, String userName, String password) {
-        try {
-            Class.forName("com.mysql.jdbc.Driver").newInstance();
-            conn = DriverManager.getConnection(dbURL, userName, password);
-        } catch (Exception e) {
-        }
-    }
-    
-    public void initAuctions(ArrayList<Item> items)
-    {
-        String query = "Delete from items;";
-        if (executeUpdate(query) == -1)
-            auctioneer.debug("Unable to clear the existing items table in the database");
-        
-        for (Item i : items) {
-            query = "Insert into items values(\"" + 
-                    i.getId() + "\", \"" + 
-                    i.getStartingPrice() + "\", \"" +
-                    i.getDescription() + "\", null, null);";
-            if (executeUpdate(query) == -1)
-                auctioneer.debug("Insert Query Failed");
-        }
-    }
-    
-    public void updateItemPrice(int id, int bid, String bidder)
-    {
-        String query = "Update items set bid = \""+bid+"\", bidder = \""+bidder+"\" where id = \""+id+"\";";
-        if (executeUpdate(query) == -1)
-            auctioneer.debug("Bid insertion into the database failed");
-    }
-    
-    public ResultSet execute(String query) 
-    {
-        auctioneer.debug("Querying: " + query);
-        try {
-            PreparedStatement stmt = conn.prepareStatement(query);
-            return stmt.executeQuery();
-        } catch (Exception e) {
-            return null;
-        }
-    }
-    
-    public int executeUpdate(String query) 
-    {
-        auctioneer.debug("Querying: " + query);
-        try {
-            PreparedStatement stmt = conn.prepareStatement(query);
-            return stmt.executeUpdate();
-        } catch (Exception e) {
-            return -1;
-        }
-    }
-    
-    public void setAuctioneer(Auctioneer auctioneer)
-    {
-        this.auctioneer = auctioneer;
-    }
-
-    public void updateBid(Item item) 
-    {
-        String query = "Update items set bid = \""+item.getCurrentBid()+"\", bidder = " + 
-                    "\""+item.getCurrentBidder()+"\" where id = \""+item.getId()+"\";";
-        if (executeUpdate(query) == -1)
-            auctioneer.debug("Bid insertion into the database failed");    
-    }
-
-}
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persists the auctions to the configured storage backend, MySQL or an embedded mapped file
+ * Auction results are written behind: they are queued and a writer thread stores them in batches,
+ * one transaction per batch, so the auctions never wait on the database.
+ */
+public class DBServer
+{
+    public static final int queueCapacity = 1024;
+    public static final int maxBatchSize  = 64;
+    
+    private StorageBackend storage;   // used by the writer thread once the auctions are initialized
+    private Auctioneer auctioneer;
+    private BlockingQueue<AuctionResult> pendingResults;
+    private ConcurrentLinkedQueue<Item> pendingItems;     // appended while the auctions run
+    private Thread writer;
+    private volatile boolean running;
+    
+    // write path metrics
+    private volatile int lastBatchSize;
+    private volatile long lastCommitLatency;      // microseconds
+    private AtomicLong maxCommitLatency;
+    private AtomicLong batchesCommitted;
+    private AtomicLong resultsWritten;
+    private AtomicLong resultsFailed;
+    private volatile Histogram writeTime;
+    
+    private static HashMap<Integer, DBServer> instances = new HashMap<Integer, DBServer>();
+    
+    private DBServer(StorageBackend storage)
+    {
+        this.storage     = storage;
+        pendingResults   = new ArrayBlockingQueue<AuctionResult>(queueCapacity);
+        pendingItems     = new ConcurrentLinkedQueue<Item>();
+        maxCommitLatency = new AtomicLong();
+        batchesCommitted = new AtomicLong();
+        resultsWritten   = new AtomicLong();
+        resultsFailed    = new AtomicLong();
+    }
+    
+    /**
+     * Returns the database of the given node of the cluster, creating it on first use
+     * Node 0 keeps the database DB and node 1 DB2, as the caller and the callee did
+     * @param options
+     * @param nodeIndex
+     * @param nodeName used to name the writer thread
+     * @return
+     */
+    public static synchronized DBServer getInstance(ServerOptions options, int nodeIndex, String nodeName)
+    {
+        DBServer instance = instances.get(nodeIndex);
+        if (instance == null) {
+            instance = new DBServer(createStorage(options, (nodeIndex == 0) ? "DB" : "DB" + (nodeIndex + 1)));
+            instance.init();
+            instance.startWriter("db-writer-" + nodeName);
+            instances.put(nodeIndex, instance);
+        }
+        
+        return instance;
+    }
+    
+    /**
+     * Creates the storage backend selected by the options for the given database name
+     * @param options
+     * @param dbName
+     * @return
+     */
+    private static StorageBackend createStorage(ServerOptions options, String dbName)
+    {
+        if (ServerOptions.storageMapped.equals(options.getStorage()))
+            return new MappedStorage(new File(options.getStorageDir(), dbName + ".dat"));
+        return new JdbcStorage("jdbc:mysql://localhost:3306/" + dbName, dbName, "pass");
+    }
+    
+    private void init() {
+        try {
+            storage.open();
+        } catch (IOException e) {
+            System.err.println("Unable to open the storage, auction results will not be saved: " + e.getMessage());
+        }
+    }
+    
+    private void startWriter(String name)
+    {
+        running = true;
+        writer = new Thread(name) {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        };
+        writer.start();
+    }
+    
+    /**
+     * Clears the items table and inserts the items to be auctioned, in a single batch
+     * The items are read from the catalog as they are inserted
+     * @param items
+     */
+    public void initAuctions(Iterable<Item> items)
+    {
+        try {
+            storage.initItems(items);
+            auctioneer.debug("Storing the auctions in {}", storage.getName());
+        } catch (IOException e) {
+            auctioneer.warn("Insert Query Failed: {}", e.getMessage());
+        }
+    }
+    
+    /**
+     * Queues an item appended to the catalog to be stored by the writer, before the results
+     * that follow it
+     * @param item
+     */
+    public void addItem(Item item)
+    {
+        pendingItems.offer(item);
+    }
+    
+    /**
+     * Queues the result of an auction to be written to the database
+     * Only blocks if the writer has fallen queueCapacity results behind
+     * @param id
+     * @param bid
+     * @param bidder
+     */
+    public void updateItemPrice(int id, int bid, String bidder)
+    {
+        AuctionResult result = new AuctionResult(id, bid, bidder);
+        if (pendingResults.offer(result))
+            return;
+        
+        auctioneer.debug("Database writer is falling behind, waiting for room in its queue");
+        try {
+            pendingResults.put(result);
+        } catch (InterruptedException e) {
+            resultsFailed.incrementAndGet();
+            auctioneer.warn("Bid insertion into the database failed: {}", result);
+        }
+    }
+    
+    public void setAuctioneer(Auctioneer auctioneer)
+    {
+        this.auctioneer = auctioneer;
+        this.writeTime  = auctioneer.getMetrics().histogram(Metrics.dbWrite);
+        registerGauges(auctioneer.getMetrics());
+    }
+    
+    /**
+     * Publishes the write path metrics through JMX and /metrics
+     * @param metrics
+     */
+    private void registerGauges(Metrics metrics)
+    {
+        metrics.gauge(Metrics.dbQueueDepth, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return getQueueDepth();
+            }
+        });
+        metrics.gauge(Metrics.dbLastBatch, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return getLastBatchSize();
+            }
+        });
+        metrics.gauge(Metrics.dbLastCommit, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return getLastCommitLatency();
+            }
+        });
+        metrics.gauge(Metrics.dbMaxCommit, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return getMaxCommitLatency();
+            }
+        });
+        metrics.gauge(Metrics.dbBatches, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return getBatchesCommitted();
+            }
+        });
+        metrics.gauge(Metrics.dbResultsWritten, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return getResultsWritten();
+            }
+        });
+        metrics.gauge(Metrics.dbResultsFailed, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return getResultsFailed();
+            }
+        });
+    }
+    
+    /**
+     * Returns the stored result of the given item, or null if it has none
+     * To be called once the writer has been closed, the storage belongs to it before that
+     * @param itemId
+     * @return
+     */
+    public AuctionResult getResult(int itemId)
+    {
+        try {
+            return storage.getResult(itemId);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Writes out the results still queued and stops the writer thread
+     */
+    public void close()
+    {
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+        }
+        storage.close();
+        auctioneer.debug("Database writer: " + resultsWritten.get() + " results written in " +
+                batchesCommitted.get() + " batches, " + resultsFailed.get() + " failed, max commit latency = " +
+                maxCommitLatency.get() + "us");
+    }
+    
+    /**
+     * Takes the queued results in batches of up to maxBatchSize and writes every batch
+     * in its own transaction, until closed and the queue is empty
+     */
+    private void runWriter()
+    {
+        ArrayList<AuctionResult> batch = new ArrayList<AuctionResult>(maxBatchSize);
+        while (running || !pendingResults.isEmpty() || !pendingItems.isEmpty()) {
+            writeItems();
+            try {
+                AuctionResult first = pendingResults.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            pendingResults.drainTo(batch, maxBatchSize - 1);
+            writeItems();   // an item is stored before its result
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+    
+    /**
+     * Stores the items appended since the last call, in one transaction
+     */
+    private void writeItems()
+    {
+        if (pendingItems.isEmpty())
+            return;
+        ArrayList<Item> items = new ArrayList<Item>();
+        Item item;
+        while ((item = pendingItems.poll()) != null)
+            items.add(item);
+        try {
+            storage.addItems(items);
+        } catch (IOException e) {
+            auctioneer.warn("Insert Query Failed: {}", e.getMessage());
+        }
+    }
+    
+    private void writeBatch(ArrayList<AuctionResult> batch)
+    {
+        long start = System.nanoTime();
+        try {
+            storage.writeResults(batch);
+        } catch (IOException e) {
+            resultsFailed.addAndGet(batch.size());
+            for (AuctionResult result : batch)
+                auctioneer.warn("Bid insertion into the database failed: {}", result);
+            return;
+        }
+        
+        long elapsed = System.nanoTime() - start;
+        if (writeTime != null)
+            writeTime.record(elapsed);
+        long latency = TimeUnit.NANOSECONDS.toMicros(elapsed);
+        lastBatchSize     = batch.size();
+        lastCommitLatency = latency;
+        batchesCommitted.incrementAndGet();
+        resultsWritten.addAndGet(batch.size());
+        long max;
+        while (latency > (max = maxCommitLatency.get()) && !maxCommitLatency.compareAndSet(max, latency))
+            ;
+    }
+    
+    /**
+     * Number of results waiting to be written
+     * @return
+     */
+    public int getQueueDepth()
+    {
+        return pendingResults.size();
+    }
+    
+    public int getLastBatchSize()
+    {
+        return lastBatchSize;
+    }
+    
+    /**
+     * Duration of the last batch, from the first statement till the commit, in microseconds
+     * @return
+     */
+    public long getLastCommitLatency()
+    {
+        return lastCommitLatency;
+    }
+    
+    public long getMaxCommitLatency()
+    {
+        return maxCommitLatency.get();
+    }
+    
+    public long getBatchesCommitted()
+    {
+        return batchesCommitted.get();
+    }
+    
+    public long getResultsWritten()
+    {
+        return resultsWritten.get();
+    }
+    
+    public long getResultsFailed()
+    {
+        return resultsFailed.get();
+    }
+
+}
@@ -0,0 +1,46 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
+
+/**
+ * A message serialized at most once per protocol, so that it can be written
+ * to any number of channels without encoding it again.
+ */
+public class EncodedMessage
+{
+    private Message message;
+    private BinaryCodec binaryCodec;
+    private ByteBuffer text;
+    private ByteBuffer binary;
+
+    public EncodedMessage(Message message, BinaryCodec binaryCodec)
+    {
+        this.message     = message;
+        this.binaryCodec = binaryCodec;
+    }
+
+    /**
+     * Returns a buffer holding the message in the requested protocol
+     * Each call returns an independent view of the same read-only bytes
+     * @param binaryProtocol
+     * @return
+     */
+    public ByteBuffer getBuffer(boolean binaryProtocol)
+    {
+        if (binaryProtocol) {
+            if (binary == null)
+                binary = binaryCodec.encode(message).asReadOnlyBuffer();
+            return binary.duplicate();
+        } else {
+            if (text == null)
+                text = Charset.defaultCharset().encode(CharBuffer.wrap(message.toString())).asReadOnlyBuffer();
+            return text.duplicate();
+        }
+    }
+
+    public Message getMessage()
+    {
+        return message;
+    }
+}
@@ -0,0 +1,322 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+
+/**
+ * Append-only journal of every auction event, one record per event:
+ *   int64 sequence number, int64 time in ms, int32 origin, the message as a BinaryCodec frame
+ * where the origin is the id of the bidder the message came from, peer for the other nodes,
+ * or self for what this auctioneer decided or sent. Nothing a bidder sends can end a record
+ * early, the frame carrying its own length. The sequence numbers go on across restarts that
+ * recover from a snapshot, which tells from which event on the journal is to be replayed.
+ *
+ * Events are written with group commit: record() only queues the line, and the journal thread
+ * writes everything queued since its last pass with a single write and a single fsync.
+ * The sync interval trades latency for throughput: an event is on disk at most about
+ * syncMillis plus one fsync after it was recorded, 0 syncs as soon as anything is queued.
+ */
+public class EventJournal extends Thread
+{
+    // origins that are not a user id
+    public static final int self = -1;
+    public static final int peer = -2;
+
+    private static final int recordHeader = 8 + 8 + 4;
+
+    // local events that do not correspond to a message
+    public static final String item_discarded = "item_discarded";
+    public static final String bid_pending    = "bid_pending";
+
+    /**
+     * Receives the events read back from a journal file
+     */
+    public interface Replay
+    {
+        void event(long seq, int origin, Message message);
+    }
+
+    private File file;
+    private long syncMillis;
+    private FileChannel channel;
+    private ArrayList<ByteBuffer> pending;
+    private ByteBuffer writeBuffer;
+    private BinaryCodec codec;
+    private boolean enabled;
+    private volatile boolean running;
+    private long lastSeq;                       // of the last event recorded
+    private volatile long committedOffset;      // end of the file after the last commit
+
+    private volatile long eventsWritten;
+    private volatile long syncs;
+
+    /**
+     * @param file
+     * @param syncMillis
+     */
+    public EventJournal(File file, long syncMillis)
+    {
+        super("journal");
+        this.file        = file;
+        this.syncMillis  = Math.max(0, syncMillis);
+        this.pending     = new ArrayList<ByteBuffer>();
+        this.writeBuffer = ByteBuffer.allocate(64 * 1024);
+        this.codec       = new BinaryCodec();
+        this.enabled     = true;
+    }
+
+    /**
+     * Returns a journal that drops every event
+     * @return
+     */
+    public static EventJournal disabled()
+    {
+        EventJournal journal = new EventJournal(null, 0);
+        journal.enabled = false;
+        return journal;
+    }
+
+    /**
+     * Opens the journal file for appending and starts the journal thread
+     * @throws IOException
+     */
+    public void open() throws IOException
+    {
+        if (!enabled)
+            return;
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        committedOffset = channel.size();
+        running = true;
+        start();
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled && running;
+    }
+
+    /**
+     * Queues an event, never waits for the disk
+     * @param origin the id of the user the message came from, self or peer
+     * @param message
+     */
+    public void record(int origin, Message message)
+    {
+        if (!isEnabled())
+            return;
+        ByteBuffer frame;
+        try {
+            frame = codec.encode(message);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unable to journal a " + message.getCommand() + ": " + e.getMessage());
+            return;
+        }
+        ByteBuffer event = ByteBuffer.allocate(recordHeader + frame.remaining());
+        event.putLong(0).putLong(System.currentTimeMillis()).putInt(origin).put(frame);
+        event.flip();
+        synchronized (this) {
+            event.putLong(0, ++lastSeq);
+            pending.add(event);
+            if (syncMillis == 0)
+                notify();
+        }
+    }
+
+    /**
+     * Records a local event about an item
+     * @param event
+     * @param itemId
+     */
+    public void record(String event, int itemId)
+    {
+        if (!isEnabled())
+            return;
+        Message message = new Message(event);
+        message.addProperty(Constants.item_id, itemId);
+        record(self, message);
+    }
+
+    /**
+     * Numbers the events from the one after the given sequence number, to be called before open
+     * @param seq
+     */
+    public synchronized void resumeAfter(long seq)
+    {
+        lastSeq = seq;
+    }
+
+    /**
+     * Returns the sequence number of the last event recorded, written out or not
+     * @return
+     */
+    public synchronized long getLastSeq()
+    {
+        return lastSeq;
+    }
+
+    /**
+     * Returns the length of the file once the events committed so far are written, every
+     * event recorded later is written after it
+     * @return
+     */
+    public long getCommittedOffset()
+    {
+        return committedOffset;
+    }
+
+    /**
+     * Reads back the events written to the journal file from the given offset on, in order
+     * A record cut short by a crash, or one that does not decode, ends the replay
+     * @param offset
+     * @param replay
+     * @return the sequence number of the last event read, 0 if none
+     * @throws IOException
+     */
+    public long replay(long offset, Replay replay) throws IOException
+    {
+        if (file == null || !file.exists())
+            return 0;
+        ByteBuffer data;
+        FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            data = ByteBuffer.allocate((int) Math.max(0, in.size() - offset));
+            in.position(offset);
+            while (data.hasRemaining() && in.read(data) >= 0)
+                ;
+        } finally {
+            in.close();
+        }
+
+        long last = 0;
+        data.flip();
+        while (data.remaining() >= recordHeader + BinaryCodec.headerLength) {
+            long seq = data.getLong();
+            data.getLong();     // time
+            int origin = data.getInt();
+            int length = data.getInt();
+            if (length < 0 || length > data.remaining())
+                break;
+            ByteBuffer frame = data.slice();
+            frame.limit(length);
+            data.position(data.position() + length);
+            Message message;
+            try {
+                message = codec.decode(frame);
+            } catch (ProtocolException e) {
+                break;
+            }
+            last = seq;
+            replay.event(seq, origin, message);
+        }
+        return last;
+    }
+
+    /**
+     * Writes out the queued events and closes the journal
+     */
+    public void close()
+    {
+        if (!isEnabled())
+            return;
+        running = false;
+        synchronized (this) {
+            notify();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    public void run()
+    {
+        ArrayList<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+        while (running) {
+            synchronized (this) {
+                try {
+                    if (syncMillis > 0)
+                        wait(syncMillis);     // let events pile up for the group
+                    else if (pending.isEmpty())
+                        wait();
+                } catch (InterruptedException e) {
+                }
+                ArrayList<ByteBuffer> queued = pending;
+                pending = batch;
+                batch = queued;
+            }
+            commit(batch);
+            batch.clear();
+        }
+        synchronized (this) {
+            commit(pending);
+            pending.clear();
+        }
+    }
+
+    /**
+     * Writes a group of events and forces them to disk
+     * @param batch
+     */
+    private void commit(ArrayList<ByteBuffer> batch)
+    {
+        if (batch.isEmpty())
+            return;
+        try {
+            for (ByteBuffer event : batch) {
+                if (event.remaining() > writeBuffer.remaining())
+                    drain();
+                if (event.remaining() > writeBuffer.capacity())
+                    write(event);
+                else
+                    writeBuffer.put(event);
+            }
+            drain();
+            channel.force(false);
+            committedOffset = channel.size();
+            eventsWritten += batch.size();
+            syncs++;
+        } catch (IOException e) {
+            writeBuffer.clear();
+            System.err.println("Unable to write to the journal " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void drain() throws IOException
+    {
+        writeBuffer.flip();
+        write(writeBuffer);
+        writeBuffer.clear();
+    }
+
+    private void write(ByteBuffer data) throws IOException
+    {
+        while (data.hasRemaining())
+            channel.write(data);
+    }
+
+    public long getEventsWritten()
+    {
+        return eventsWritten;
+    }
+
+    /**
+     * Number of fsyncs, each one covering a group of events
+     * @return
+     */
+    public long getSyncs()
+    {
+        return syncs;
+    }
+}
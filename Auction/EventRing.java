@@ -0,0 +1,94 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A bounded ring buffer that any number of threads offer to and a single thread polls from
+ *
+ * Every slot has a sequence number telling whose turn it is: a producer claims the next
+ * position with a compare-and-set on the tail, fills the slot and publishes it by advancing
+ * the slot's sequence; the consumer takes the slot once the sequence says it is published
+ * and hands it back to the producers one lap later. No lock is taken on either side and
+ * the slots are reused, so a steady stream of events allocates nothing here.
+ */
+public class EventRing<T>
+{
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail;
+    private long head;      // only read and written by the consumer
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public EventRing(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots     = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask      = size - 1;
+        this.tail      = new AtomicLong();
+        this.head      = 0;
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+    }
+
+    public int capacity()
+    {
+        return slots.length;
+    }
+
+    /**
+     * Adds an event, from any thread
+     * @param event
+     * @return false if the ring is full
+     */
+    public boolean offer(T event)
+    {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;       // the slot of the previous lap has not been taken yet
+            } else {
+                position = tail.get();
+            }
+        }
+        int index = (int) (position & mask);
+        slots[index] = event;
+        sequences.set(index, position + 1);   // a full fence, so a consumer going to sleep sees it
+        return true;
+    }
+
+    /**
+     * Takes the oldest event, to be called by the consumer thread only
+     * @return null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T poll()
+    {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1)
+            return null;
+        T event = (T) slots[index];
+        slots[index] = null;
+        sequences.lazySet(index, head + slots.length);
+        head++;
+        return event;
+    }
+
+    /**
+     * Returns true if there is no event to poll, to be called by the consumer thread only
+     * @return
+     */
+    public boolean isEmpty()
+    {
+        return sequences.get((int) (head & mask)) != head + 1;
+    }
+}
@@ -0,0 +1,229 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+
+/**
+ * Incremental decoder for the frames arriving on a single connection.
+ *
+ * Complete frames are parsed straight out of the socket buffer. Only the
+ * incomplete frame at the end of a read is copied, into a buffer that is kept
+ * and reused for the lifetime of the connection. A frame larger than the
+ * maximum frame size is a protocol violation and fails the connection, as
+ * does a binary frame the codec cannot decode.
+ */
+public class FrameDecoder
+{
+    public static final int defaultMaxFrameSize = 64 * 1024;
+
+    private static final Charset charset = Charset.defaultCharset();
+
+    private int maxFrameSize;
+    private boolean binary;
+    private ByteBuffer partial;
+    private BinaryCodec binaryCodec;
+
+    public FrameDecoder(BinaryCodec binaryCodec)
+    {
+        this(binaryCodec, defaultMaxFrameSize);
+    }
+
+    public FrameDecoder(BinaryCodec binaryCodec, int maxFrameSize)
+    {
+        this.binaryCodec  = binaryCodec;
+        this.maxFrameSize = maxFrameSize;
+        this.partial      = ByteBuffer.allocate(256);
+        this.binary       = false;
+    }
+
+    /**
+     * Switches the decoder to binary frames, starting with the next frame
+     * @param binary
+     */
+    public void setBinary(boolean binary)
+    {
+        this.binary = binary;
+    }
+
+    public boolean isBinary()
+    {
+        return binary;
+    }
+
+    /**
+     * Returns the next complete message found in the given data (in read mode) and
+     * advances the data past it. Returns null once the data is exhausted, in which
+     * case any trailing incomplete frame has been kept for the next call.
+     * @param data
+     * @return
+     * @throws ProtocolException if a frame is malformed or exceeds the maximum frame size
+     */
+    public Message next(ByteBuffer data) throws ProtocolException
+    {
+        Message message = null;
+        while (message == null && data.hasRemaining())
+            message = binary ? nextBinary(data) : nextText(data);
+        return message;
+    }
+
+    private Message nextText(ByteBuffer data) throws ProtocolException
+    {
+        int end = indexOf(data, (byte) '\n');
+        if (end == -1) {
+            keep(data, data.remaining());
+            return null;
+        }
+
+        int length = end - data.position();
+        if (partial.position() == 0) {  // the whole line is in the socket buffer
+            Message message = parseText(data, data.position(), end);
+            data.position(end + 1);
+            return message;
+        }
+
+        keep(data, length);
+        data.get();  // skip the newline
+        Message message = parseText(partial, 0, partial.position());
+        partial.clear();
+        return message;
+    }
+
+    private Message nextBinary(ByteBuffer data) throws ProtocolException
+    {
+        if (partial.position() == 0) {
+            if (data.remaining() >= BinaryCodec.headerLength) {
+                int length = checkLength(data.getInt(data.position()));
+                if (data.remaining() >= BinaryCodec.headerLength + length) {  // the whole frame is in the socket buffer
+                    int end = data.position() + BinaryCodec.headerLength + length;
+                    data.position(data.position() + BinaryCodec.headerLength);
+                    ByteBuffer frame = data.slice();
+                    frame.limit(length);
+                    data.position(end);
+                    return binaryCodec.decode(frame);
+                }
+            }
+            keep(data, data.remaining());
+            return null;
+        }
+
+        // complete the header first, then the body of the frame we are holding
+        if (partial.position() < BinaryCodec.headerLength) {
+            keep(data, Math.min(data.remaining(), BinaryCodec.headerLength - partial.position()));
+            if (partial.position() < BinaryCodec.headerLength)
+                return null;
+        }
+        int length = checkLength(partial.getInt(0));
+        int missing = BinaryCodec.headerLength + length - partial.position();
+        keep(data, Math.min(data.remaining(), missing));
+        if (partial.position() < BinaryCodec.headerLength + length)
+            return null;
+
+        partial.flip();
+        partial.position(BinaryCodec.headerLength);
+        Message message = binaryCodec.decode(partial);
+        partial.clear();
+        return message;
+    }
+
+    private int checkLength(int length) throws ProtocolException
+    {
+        if (length < 0 || length > maxFrameSize)
+            throw new ProtocolException("Frame of " + length + " bytes exceeds the maximum frame size");
+        return length;
+    }
+
+    /**
+     * Moves the given number of bytes from the data into the partial frame buffer,
+     * growing the buffer up to the maximum frame size
+     * @param data
+     * @param count
+     * @throws ProtocolException
+     */
+    private void keep(ByteBuffer data, int count) throws ProtocolException
+    {
+        int needed = partial.position() + count;
+        if (needed > maxFrameSize + BinaryCodec.headerLength)
+            throw new ProtocolException("Incomplete frame exceeds the maximum frame size");
+
+        if (needed > partial.capacity()) {
+            int capacity = Math.min(Math.max(2 * partial.capacity(), needed), maxFrameSize + BinaryCodec.headerLength);
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            partial.flip();
+            grown.put(partial);
+            partial = grown;
+        }
+
+        int limit = data.limit();
+        data.limit(data.position() + count);
+        partial.put(data);
+        data.limit(limit);
+    }
+
+    private static int indexOf(ByteBuffer data, byte b)
+    {
+        for (int i = data.position(); i < data.limit(); i++)
+            if (data.get(i) == b)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Parses a text frame of the form
+     *     command: key = "value", key = "value"
+     * directly from the bytes between start and end
+     * Returns null for a malformed (e.g. empty) line
+     * @param buffer
+     * @param start
+     * @param end
+     * @return
+     */
+    private static Message parseText(ByteBuffer buffer, int start, int end)
+    {
+        if (end > start && buffer.get(end - 1) == '\r')
+            end--;
+
+        int pos = start;
+        while (pos < end && buffer.get(pos) != ':')
+            pos++;
+        if (pos == start)
+            return null;
+
+        Message message = new Message(string(buffer, start, pos));
+        pos += 2;  // skip ": "
+
+        while (pos < end) {
+            int keyStart = pos;
+            while (pos < end && buffer.get(pos) != '=')
+                pos++;
+            if (pos >= end)
+                break;
+            int keyEnd = (pos > keyStart && buffer.get(pos - 1) == ' ') ? pos - 1 : pos;
+            String key = string(buffer, keyStart, keyEnd);
+
+            pos += 2;  // skip "= "
+            if (pos < end && buffer.get(pos) == '"')
+                pos++;
+            int valueStart = pos;
+
+            // the value ends at a quote followed by ", " or by the end of the line
+            while (pos < end && !(buffer.get(pos) == '"' && (pos + 1 == end || buffer.get(pos + 1) == ',')))
+                pos++;
+            message.addProperty(key, string(buffer, valueStart, pos));
+            pos += 3;  // skip "\", "
+        }
+        return message;
+    }
+
+    private static String string(ByteBuffer buffer, int start, int end)
+    {
+        if (end <= start)
+            return "";
+        if (buffer.hasArray())
+            return new String(buffer.array(), buffer.arrayOffset() + start, end - start, charset);
+
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(start + i);
+        return new String(bytes, charset);
+    }
+}
@@ -0,0 +1,126 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Lock-free histogram of non-negative values with log-linear buckets
+ *
+ * With a precision of p bits, the values below 2^p are exact and every higher power of two is
+ * split into 2^(p-1) linear buckets, so a percentile is known to within a factor of 1 + 2^(1-p).
+ * The default precision of 1 gives power of two buckets, enough to spot a latency going from
+ * microseconds to milliseconds; LoadGenerator uses 7 bits to report its percentiles within 2%.
+ * Recording is a few atomic adds and never allocates, and memory stays constant however many
+ * values are recorded.
+ */
+public class Histogram
+{
+    public static final int defaultPrecision = 1;
+    public static final int maxPrecision     = 16;
+
+    private int subBucketBits;
+    private int subBuckets;
+    private AtomicLongArray buckets;
+    private LongAdder count;
+    private LongAdder sum;
+    private AtomicLong max;
+
+    public Histogram()
+    {
+        this(defaultPrecision);
+    }
+
+    /**
+     * Creates a histogram with the given precision
+     * @param subBucketBits 1 to maxPrecision
+     */
+    public Histogram(int subBucketBits)
+    {
+        if (subBucketBits < 1 || subBucketBits > maxPrecision)
+            throw new IllegalArgumentException("Invalid histogram precision: " + subBucketBits);
+        this.subBucketBits = subBucketBits;
+        this.subBuckets    = 1 << subBucketBits;
+        this.buckets       = new AtomicLongArray(subBuckets + (63 - subBucketBits) * (subBuckets / 2));
+        this.count         = new LongAdder();
+        this.sum           = new LongAdder();
+        this.max           = new AtomicLong();
+    }
+
+    public void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+        buckets.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value))
+            ;
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    public long getSum()
+    {
+        return sum.sum();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public long getMean()
+    {
+        long n = count.sum();
+        return (n == 0) ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile, the highest value of the bucket it falls
+     * in, never above the largest value recorded
+     * @param percentile between 0 and 100
+     * @return
+     */
+    public long getPercentile(double percentile)
+    {
+        long total = 0;
+        long[] snapshot = new long[buckets.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(max.get(), highestValueOf(i));
+        }
+        return max.get();
+    }
+
+    private int indexOf(long value)
+    {
+        if (value < subBuckets)
+            return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - subBucketBits + 1;    // >= 1
+        int subBucket = (int) (value >>> magnitude) - subBuckets / 2;                // 0 .. subBuckets/2 - 1
+        return subBuckets + (magnitude - 1) * (subBuckets / 2) + subBucket;
+    }
+
+    private long highestValueOf(int index)
+    {
+        if (index < subBuckets)
+            return index;
+        int magnitude = (index - subBuckets) / (subBuckets / 2) + 1;
+        long subBucket = (index - subBuckets) % (subBuckets / 2) + subBuckets / 2;
+        return ((subBucket + 1) << magnitude) - 1;
+    }
+}
@@ -1,119 +1,156 @@
-import java.util.ArrayList;
-import java.util.HashMap;
-
-
-public class Item
-{
-    private int id;
-    private int startingPrice;
-    private String description;
-    private ArrayList<String> interestedUsers;
-    private String currentBidder;
-    private int currentBid;
-    private int tempBid;
-    private HashMap<String, Message> pendingBids;
-    private int peerInterestedCount;
-    private int discountRound;
-    
-    public Item(int startingPrice, String description, int id)
-    {
-        this.id              = id;
-        this.startingPrice   = startingPrice;
-        this.description     = description;
-        this.interestedUsers = new ArrayList<String>();
-        this.pendingBids     = new HashMap<String, Message>();
-        this.currentBidder   = Constants.no_holder;
-        this.currentBid      = startingPrice; 
-        this.tempBid         = startingPrice;
-    }
-    
-    public void addUser(String username)
-    {
-        this.interestedUsers.add(username);
-    }
-    
-    public int getId() 
-    {
-        return id;
-    }
-
-    public int getStartingPrice() {
-        return startingPrice;
-    }
-
-    public String getDescription() {
-        return description;
-    }
-
-    public ArrayList<String> getInterestedUsers()
-    {
-        return interestedUsers;
-    }
-
-    public String getCurrentBidder()
-    {
-        return currentBidder;
-    }
-    
-    public int getCurrentBid()
-    {
-        return currentBid;
-    }
-    
-    public void setCurrentBidder(String currentBidder)
-    {
-        this.currentBidder = currentBidder;
-    }
-    
-    public void setCurrentBid(int currentBid)
-    {
-        this.currentBid = currentBid;
-    }
-
-    public HashMap<String, Message> getPendingBids() 
-    {
-        return pendingBids;
-    }
-
-    public void addPendingBid(String userName, Message pendingBid) 
-    {
-        pendingBids.put(userName, pendingBid);
-    }
-    
-    public void clearPendingBids()
-    {
-        pendingBids.clear();
-    }
-
-    public int getTempBid() 
-    {
-        return tempBid;
-    }
-
-    public void setTempBid(int tempBid) 
-    {
-        this.tempBid = tempBid;
-    }
-
-    public int getPeerInterestedCount() 
-    {
-        return peerInterestedCount;
-    }
-
-    public void setPeerInterestedCount(int peerInterestedCount) 
-    {
-        this.peerInterestedCount = peerInterestedCount;
-    }
-
-    public int getDiscountRound() 
-    {
-        return discountRound;
-    }
-
-    public void incrDiscountRound() 
-    {
-        this.discountRound++;
-    }
-}
-
-
+import java.util.BitSet;
+import java.util.HashMap;
+
+
+public class Item
+{
+    private int id;
+    private int startingPrice;
+    private String description;
+    private BitSet interestedUsers;   // user ids, fan-out goes in id order
+    private int interestedCount;
+    private int currentBidder;        // user id
+    private int currentBid;
+    private int tempBid;
+    private HashMap<Integer, Message> pendingBids;
+    private int peerInterestedCount;
+    private int discountRound;
+    
+    public Item(int startingPrice, String description, int id)
+    {
+        this.id              = id;
+        this.startingPrice   = startingPrice;
+        this.description     = description;
+        this.interestedUsers = new BitSet();
+        this.pendingBids     = new HashMap<Integer, Message>();
+        this.currentBidder   = UserRegistry.noUser;
+        this.currentBid      = startingPrice; 
+        this.tempBid         = startingPrice;
+    }
+    
+    /**
+     * Adds a user to the interested users
+     * @param userId
+     * @return false if the user was already interested
+     */
+    public boolean addUser(int userId)
+    {
+        if (interestedUsers.get(userId))
+            return false;
+        interestedUsers.set(userId);
+        interestedCount++;
+        return true;
+    }
+    
+    public boolean isInterested(int userId)
+    {
+        return interestedUsers.get(userId);
+    }
+    
+    public void removeUser(int userId)
+    {
+        if (interestedUsers.get(userId)) {
+            interestedUsers.clear(userId);
+            interestedCount--;
+        }
+    }
+    
+    public int getId() 
+    {
+        return id;
+    }
+
+    public int getStartingPrice() {
+        return startingPrice;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public BitSet getInterestedUsers()
+    {
+        return interestedUsers;
+    }
+
+    public int getInterestedCount()
+    {
+        return interestedCount;
+    }
+
+    /**
+     * Returns the id of the highest bidder, UserRegistry.noUser while nobody has bid
+     * @return
+     */
+    public int getCurrentBidder()
+    {
+        return currentBidder;
+    }
+    
+    public int getCurrentBid()
+    {
+        return currentBid;
+    }
+    
+    public void setCurrentBidder(int currentBidder)
+    {
+        this.currentBidder = currentBidder;
+    }
+    
+    public void setCurrentBid(int currentBid)
+    {
+        this.currentBid = currentBid;
+    }
+
+    public HashMap<Integer, Message> getPendingBids() 
+    {
+        return pendingBids;
+    }
+
+    public void addPendingBid(int userId, Message pendingBid) 
+    {
+        pendingBids.put(userId, pendingBid);
+    }
+    
+    public void clearPendingBids()
+    {
+        pendingBids.clear();
+    }
+
+    public int getTempBid() 
+    {
+        return tempBid;
+    }
+
+    public void setTempBid(int tempBid) 
+    {
+        this.tempBid = tempBid;
+    }
+
+    public int getPeerInterestedCount() 
+    {
+        return peerInterestedCount;
+    }
+
+    public void setPeerInterestedCount(int peerInterestedCount) 
+    {
+        this.peerInterestedCount = peerInterestedCount;
+    }
+
+    public int getDiscountRound() 
+    {
+        return discountRound;
+    }
+
+    public void incrDiscountRound() 
+    {
+        this.discountRound++;
+    }
+
+    public void setDiscountRound(int discountRound) 
+    {
+        this.discountRound = discountRound;
+    }
+}
+
+
@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+
+/**
+ * Storage in a MySQL database, through JDBC
+ * Statements are parameterized and prepared once, and every batch is one transaction.
+ */
+public class JdbcStorage implements StorageBackend
+{
+    private static final String deleteItemsQuery = "Delete from items;";
+    private static final String insertItemQuery  = "Insert into items values(?, ?, ?, null, null);";
+    private static final String addItemQuery     = "Insert ignore into items values(?, ?, ?, null, null);";
+    private static final String updateBidQuery   = "Update items set bid = ?, bidder = ? where id = ?;";
+    private static final String selectBidQuery   = "Select bid, bidder from items where id = ? and bidder is not null;";
+
+    private String dbURL;
+    private String userName;
+    private String password;
+    private Connection conn;
+    private PreparedStatement updateBidStatement;
+    private PreparedStatement selectBidStatement;
+
+    public JdbcStorage(String dbURL, String userName, String password)
+    {
+        this.dbURL    = dbURL;
+        this.userName = userName;
+        this.password = password;
+    }
+
+    public void open() throws IOException
+    {
+        try {
+            Class.forName("com.mysql.jdbc.Driver");
+            conn = DriverManager.getConnection(dbURL, userName, password);
+            conn.setAutoCommit(false);
+        } catch (Exception e) {
+            throw new IOException("Unable to connect to " + dbURL + ": " + e, e);
+        }
+    }
+
+    public void initItems(Iterable<Item> items) throws IOException
+    {
+        try {
+            PreparedStatement delete = connection().prepareStatement(deleteItemsQuery);
+            delete.executeUpdate();
+            delete.close();
+            insertItems(insertItemQuery, items);
+        } catch (SQLException e) {
+            rollback();
+            throw new IOException(e);
+        }
+    }
+
+    public void addItems(List<Item> items) throws IOException
+    {
+        try {
+            connection();
+            insertItems(addItemQuery, items);   // an item replayed after a restart may be stored already
+        } catch (SQLException e) {
+            rollback();
+            throw new IOException(e);
+        }
+    }
+
+    private void insertItems(String query, Iterable<Item> items) throws SQLException
+    {
+        PreparedStatement insert = conn.prepareStatement(query);
+        for (Item i : items) {
+            insert.setInt(1, i.getId());
+            insert.setInt(2, i.getStartingPrice());
+            insert.setString(3, i.getDescription());
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        insert.close();
+        conn.commit();
+    }
+
+    public void writeResults(List<AuctionResult> results) throws IOException
+    {
+        try {
+            if (updateBidStatement == null)
+                updateBidStatement = connection().prepareStatement(updateBidQuery);
+            for (AuctionResult result : results) {
+                updateBidStatement.setInt(1, result.getBid());
+                updateBidStatement.setString(2, result.getBidder());
+                updateBidStatement.setInt(3, result.getItemId());
+                updateBidStatement.addBatch();
+            }
+            updateBidStatement.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            try {
+                updateBidStatement.clearBatch();
+            } catch (Exception e1) {
+            }
+            rollback();
+            throw new IOException(e);
+        }
+    }
+
+    public AuctionResult getResult(int itemId) throws IOException
+    {
+        try {
+            if (selectBidStatement == null)
+                selectBidStatement = connection().prepareStatement(selectBidQuery);
+            selectBidStatement.setInt(1, itemId);
+            ResultSet rs = selectBidStatement.executeQuery();
+            AuctionResult result = null;
+            if (rs.next())
+                result = new AuctionResult(itemId, rs.getInt(1), rs.getString(2));
+            rs.close();
+            conn.commit();
+            return result;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public void close()
+    {
+        try {
+            if (conn != null)
+                conn.close();
+        } catch (SQLException e) {
+        }
+    }
+
+    public String getName()
+    {
+        return dbURL;
+    }
+
+    private Connection connection() throws SQLException
+    {
+        if (conn == null)
+            throw new SQLException("Not connected to " + dbURL);
+        return conn;
+    }
+
+    private void rollback()
+    {
+        try {
+            if (conn != null)
+                conn.rollback();
+        } catch (SQLException e) {
+        }
+    }
+}
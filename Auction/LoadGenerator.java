@@ -0,0 +1,497 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Headless load generator: replays a scenario in the testcases format with any number of
+ * simulated bidders, all served by one selector thread, speaking the same protocol as Client
+ *
+ *   java LoadGenerator <scenario> [-copies 1] [-spread 0] [-protocol text|binary|mixed]
+ *                      [-host localhost] [-speed 1.0] [-timeout 600]
+ *
+ * The scenario is the one driver.py replays: the number of bidders, a "name port" line per bidder,
+ * an empty line, then "<ms> <name> <command>" lines, where the command is launch, i_am_interested,
+ * bid <amount>, quit or one of the local list_* commands (with an optional item id, as in Client).
+ * Every bidder of the scenario is simulated -copies times, as <name>-<copy>; copy i runs the
+ * bidder's commands i * spread / copies ms later and bids the scenario amount plus i, so the
+ * copies of a bid rise one above the other. -speed > 1 replays the scenario faster.
+ *
+ * Latencies are measured from the time a bid was scheduled to be sent, not from when it was
+ * actually written: if the generator or the server falls behind, the delay it causes is part of
+ * the latency instead of silently postponing the next requests (coordinated omission).
+ * - bid acceptance: until the bidder receives the new_high_bid naming it with its amount
+ * - broadcast delivery: until each bidder interested in the item receives that new_high_bid
+ */
+public class LoadGenerator
+{
+    private static final Charset charset = Charset.defaultCharset();
+    private static final int latencyPrecision = 7;  // percentiles within 2%
+    private static final long lingerNanos     = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * One command of the scenario, for one simulated bidder
+     */
+    private static class Event
+    {
+        long time;          // ms from the start
+        Bidder bidder;
+        String[] command;
+
+        Event(long time, Bidder bidder, String[] command)
+        {
+            this.time    = time;
+            this.bidder  = bidder;
+            this.command = command;
+        }
+    }
+
+    /**
+     * A bid one of the simulated bidders sent first
+     */
+    private static class SentBid
+    {
+        long scheduled;     // System.nanoTime() of its scheduled send time
+        Bidder sender;
+
+        SentBid(long scheduled, Bidder sender)
+        {
+            this.scheduled = scheduled;
+            this.sender    = sender;
+        }
+    }
+
+    /**
+     * The state of one simulated bidder
+     */
+    private class Bidder
+    {
+        String name;
+        int port;
+        int copy;
+        boolean binary;
+        SocketChannel channel;
+        SelectionKey key;
+        FrameDecoder decoder;
+        ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+        HashMap<Integer, Integer> prices = new HashMap<Integer, Integer>();  // announced items, by id
+        int currentItem = -1;
+        boolean connected;
+        boolean closed;
+
+        Bidder(String name, int port, int copy, boolean binary)
+        {
+            this.name    = name + "@" + host + ":" + port;
+            this.port    = port;
+            this.copy    = copy;
+            this.binary  = binary;
+            this.decoder = new FrameDecoder(binaryCodec);
+            this.decoder.setBinary(binary);
+        }
+    }
+
+    private String host = "localhost";
+    private int copies = 1;
+    private long spread = 0;
+    private String protocol = Constants.protocol_text;
+    private double speed = 1.0;
+    private long timeoutSeconds = 600;
+
+    private BinaryCodec binaryCodec = new BinaryCodec();
+    private MessageFactory messageFactory = new MessageFactory();
+    private Selector selector;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    private ArrayList<Event> events = new ArrayList<Event>();
+    private HashMap<String, Bidder> bidders = new HashMap<String, Bidder>();
+    private long start;
+
+    // the bids sent for the items still being auctioned, by item and amount; the bids of an
+    // item are dropped lingerNanos after a bidder first sees it sold, once the other bidders
+    // have read its last new_high_bid
+    private HashMap<Integer, HashMap<Integer, SentBid>> bidsSent = new HashMap<Integer, HashMap<Integer, SentBid>>();
+    private HashMap<Integer, Long> itemsSold = new HashMap<Integer, Long>();
+
+    private Histogram acceptance = new Histogram(latencyPrecision);
+    private Histogram delivery = new Histogram(latencyPrecision);
+    private long launched;
+    private long connectFailures;
+    private long messagesSent;
+    private long messagesReceived;
+    private long bidsScheduled;
+    private long bidsSkipped;
+    private long open;
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 1) {
+            System.err.println("Usage: java LoadGenerator <scenario> [-copies n] [-spread ms] " +
+                    "[-protocol text|binary|mixed] [-host host] [-speed factor] [-timeout seconds]");
+            System.exit(1);
+        }
+        LoadGenerator generator = new LoadGenerator();
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+            case "-copies":   generator.copies = Math.max(1, Integer.parseInt(args[++i])); break;
+            case "-spread":   generator.spread = Long.parseLong(args[++i]); break;
+            case "-protocol": generator.protocol = args[++i]; break;
+            case "-host":     generator.host = args[++i]; break;
+            case "-speed":    generator.speed = Double.parseDouble(args[++i]); break;
+            case "-timeout":  generator.timeoutSeconds = Long.parseLong(args[++i]); break;
+            default:
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+        generator.readScenario(args[0]);
+        generator.run();
+        generator.report();
+    }
+
+    /**
+     * Reads the bidders and their commands, and expands them into the copies
+     * @param file
+     * @throws IOException
+     */
+    private void readScenario(String file) throws IOException
+    {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            int count = Integer.parseInt(in.readLine().trim());
+            HashMap<String, Integer> ports = new HashMap<String, Integer>();
+            for (int i = 0; i < count; i++) {
+                String[] fields = in.readLine().trim().split("\\s+");
+                ports.put(fields[0], Integer.parseInt(fields[1]));
+            }
+
+            int created = 0;
+            for (String name : ports.keySet()) {
+                for (int copy = 0; copy < copies; copy++) {
+                    boolean binary = protocol.equals(Constants.protocol_binary) ||
+                            (protocol.equals("mixed") && created % 2 == 1);
+                    bidders.put(name + "/" + copy, new Bidder(name + "-" + copy, ports.get(name), copy, binary));
+                    created++;
+                }
+            }
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 3)
+                    continue;
+                long time = Long.parseLong(fields[0]);
+                String[] command = new String[fields.length - 2];
+                System.arraycopy(fields, 2, command, 0, command.length);
+                for (int copy = 0; copy < copies; copy++) {
+                    Bidder bidder = bidders.get(fields[1] + "/" + copy);
+                    if (bidder == null)
+                        continue;
+                    long offset = spread * copy / copies;
+                    events.add(new Event((long) ((time + offset) / speed), bidder, command));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        Collections.sort(events, new Comparator<Event>() {
+            public int compare(Event a, Event b) {
+                return Long.compare(a.time, b.time);
+            }
+        });
+    }
+
+    /**
+     * Replays the events on schedule and serves every connection, until all the bidders
+     * have been closed by the server or by quit, or the timeout
+     * @throws IOException
+     */
+    private void run() throws IOException
+    {
+        selector = Selector.open();
+        start = System.nanoTime();
+        long deadline = start + timeoutSeconds * 1000000000L;
+        int next = 0;
+
+        while (System.nanoTime() < deadline) {
+            long now = System.nanoTime();
+            while (next < events.size() && scheduledNanos(events.get(next)) <= now)
+                execute(events.get(next++));
+            if (next == events.size() && open == 0)
+                break;
+
+            long wait = (next < events.size()) ? (scheduledNanos(events.get(next)) - now) / 1000000 : 100;
+            selector.select(Math.max(1, Math.min(wait, 100)));
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                Bidder bidder = (Bidder) key.attachment();
+                try {
+                    if (key.isValid() && key.isConnectable())
+                        finishConnect(bidder);
+                    if (key.isValid() && key.isReadable())
+                        read(bidder);
+                    if (key.isValid() && key.isWritable())
+                        flush(bidder);
+                } catch (IOException e) {
+                    close(bidder);
+                }
+            }
+        }
+        for (Bidder bidder : bidders.values())
+            close(bidder);
+    }
+
+    private long scheduledNanos(Event event)
+    {
+        return start + event.time * 1000000L;
+    }
+
+    private void execute(Event event)
+    {
+        Bidder bidder = event.bidder;
+        String[] command = event.command;
+        if (command[0].equals("launch")) {
+            launch(bidder);
+            return;
+        }
+        if (bidder.channel == null || bidder.closed)
+            return;
+
+        switch (command[0]) {
+        case "i_am_interested": {
+            int item = (command.length == 2) ? Integer.parseInt(command[1]) : bidder.currentItem;
+            if (item >= 0 && bidder.prices.containsKey(item))
+                send(bidder, messageFactory.createIAmInterestedMessage(bidder.name, item));
+            break;
+        }
+        case "bid": {
+            if (command.length < 2)
+                break;
+            int amount = Integer.parseInt(command[1]) + bidder.copy;
+            int item = (command.length == 3) ? Integer.parseInt(command[2]) : bidder.currentItem;
+            Integer price = bidder.prices.get(item);
+            if (price == null || amount <= price) {    // Client does not send these either
+                bidsSkipped++;
+                break;
+            }
+            HashMap<Integer, SentBid> bids = bidsSent.get(item);
+            if (bids == null) {
+                bids = new HashMap<Integer, SentBid>();
+                bidsSent.put(item, bids);
+            }
+            if (!bids.containsKey(amount))
+                bids.put(amount, new SentBid(scheduledNanos(event), bidder));
+            bidsScheduled++;
+            send(bidder, messageFactory.createMyBidMessage(bidder.name, amount, item));
+            break;
+        }
+        case "quit":
+            send(bidder, messageFactory.createQuitMessage(bidder.name));
+            flushQuietly(bidder);
+            close(bidder);
+            break;
+        default:
+            // list_high_bid and list_description are answered by Client itself
+        }
+    }
+
+    private void launch(Bidder bidder)
+    {
+        if (bidder.channel != null)
+            return;
+        launched++;
+        try {
+            bidder.channel = SocketChannel.open();
+            bidder.channel.configureBlocking(false);
+            bidder.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            bidder.channel.connect(new InetSocketAddress(host, bidder.port));
+            bidder.key = bidder.channel.register(selector, SelectionKey.OP_CONNECT, bidder);
+            open++;
+        } catch (IOException e) {
+            connectFailures++;
+            bidder.closed = true;
+        }
+
+        String protocol = bidder.binary ? Constants.protocol_binary : Constants.protocol_text;
+        Message connect = messageFactory.createConnectMessage(bidder.name, protocol);
+        bidder.outbound.add(charset.encode(CharBuffer.wrap(connect.toString())));
+        messagesSent++;
+    }
+
+    private void finishConnect(Bidder bidder) throws IOException
+    {
+        try {
+            bidder.channel.finishConnect();
+        } catch (IOException e) {
+            connectFailures++;
+            throw e;
+        }
+        bidder.connected = true;
+        bidder.key.interestOps(SelectionKey.OP_READ);
+        flush(bidder);
+    }
+
+    private void send(Bidder bidder, Message message)
+    {
+        ByteBuffer buffer = bidder.binary ? binaryCodec.encode(message)
+                                          : charset.encode(CharBuffer.wrap(message.toString()));
+        bidder.outbound.add(buffer);
+        messagesSent++;
+        flushQuietly(bidder);
+    }
+
+    private void flushQuietly(Bidder bidder)
+    {
+        try {
+            flush(bidder);
+        } catch (IOException e) {
+            close(bidder);
+        }
+    }
+
+    /**
+     * Writes what the socket accepts, keeping OP_WRITE while something is left
+     */
+    private void flush(Bidder bidder) throws IOException
+    {
+        if (!bidder.connected || bidder.closed)
+            return;
+        while (!bidder.outbound.isEmpty()) {
+            ByteBuffer buffer = bidder.outbound.peek();
+            bidder.channel.write(buffer);
+            if (buffer.hasRemaining())
+                break;
+            bidder.outbound.poll();
+        }
+        int ops = bidder.outbound.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        if (bidder.key.interestOps() != ops)
+            bidder.key.interestOps(ops);
+    }
+
+    private void read(Bidder bidder) throws IOException
+    {
+        readBuffer.clear();
+        int read = bidder.channel.read(readBuffer);
+        if (read < 0) {
+            close(bidder);
+            return;
+        }
+        readBuffer.flip();
+        Message m;
+        while ((m = bidder.decoder.next(readBuffer)) != null) {
+            messagesReceived++;
+            handle(bidder, m);
+        }
+    }
+
+    /**
+     * Tracks what a Client would, and records the latencies of the bids
+     */
+    private void handle(Bidder bidder, Message m)
+    {
+        switch (m.getCommand()) {
+        case Constants.bid_item: {
+            int item = m.getInt(Constants.item_id);
+            bidder.prices.put(item, m.getInt(Constants.starting_price));
+            bidder.currentItem = item;
+            break;
+        }
+        case Constants.new_high_bid: {
+            int item = m.getInt(Constants.item_id);
+            int amount = m.getInt(Constants.amount);
+            bidder.prices.put(item, amount);
+            HashMap<Integer, SentBid> bids = bidsSent.get(item);
+            SentBid bid = (bids == null) ? null : bids.get(amount);
+            if (bid == null)
+                break;     // a discount, or a bid of a bidder that is not ours
+            long latency = System.nanoTime() - bid.scheduled;
+            delivery.record(latency);
+            if (bid.sender == bidder && bidder.name.equals(m.getProperty(Constants.username)))
+                acceptance.record(latency);
+            break;
+        }
+        case Constants.stop_bidding: {
+            int item = m.getInt(Constants.item_id);
+            bidder.prices.remove(item);
+            itemSold(item);
+            break;
+        }
+        case Constants.auction_complete:
+        case Constants.duplicate_name:
+            close(bidder);
+            break;
+        default:
+        }
+    }
+
+    private void close(Bidder bidder)
+    {
+        if (bidder.closed || bidder.channel == null)
+            return;
+        bidder.closed = true;
+        open--;
+        try {
+            bidder.channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Notes that a bidder saw the given item sold and drops the bids of the items sold long
+     * enough ago, so that the bids sent do not pile up over the run
+     * @param item
+     */
+    private void itemSold(int item)
+    {
+        long now = System.nanoTime();
+        if (!itemsSold.containsKey(item))
+            itemsSold.put(item, now);
+        Iterator<Map.Entry<Integer, Long>> sold = itemsSold.entrySet().iterator();
+        while (sold.hasNext()) {
+            Map.Entry<Integer, Long> entry = sold.next();
+            if (now - entry.getValue() > lingerNanos) {
+                bidsSent.remove(entry.getKey());
+                sold.remove();
+            }
+        }
+    }
+
+    private void report()
+    {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf(Locale.ROOT, "%d bidders launched (%d connections failed) in %.1f s%n",
+                launched, connectFailures, seconds);
+        System.out.printf(Locale.ROOT, "messages: %d sent (%.0f/s), %d received (%.0f/s)%n",
+                messagesSent, messagesSent / seconds, messagesReceived, messagesReceived / seconds);
+        System.out.printf(Locale.ROOT, "bids: %d sent, %d accepted, %d not sent (not above the known price)%n",
+                bidsScheduled, acceptance.getCount(), bidsSkipped);
+        System.out.println("latency from the scheduled send time, ms:");
+        System.out.printf("%-20s %10s %10s %10s %10s %10s%n", "", "count", "p50", "p99", "p999", "max");
+        printLatencies("bid acceptance", acceptance);
+        printLatencies("broadcast delivery", delivery);
+    }
+
+    private static void printLatencies(String name, Histogram recorder)
+    {
+        System.out.printf(Locale.ROOT, "%-20s %10d %10.3f %10.3f %10.3f %10.3f%n", name, recorder.getCount(),
+                recorder.getPercentile(50) / 1e6, recorder.getPercentile(99) / 1e6,
+                recorder.getPercentile(99.9) / 1e6, recorder.getMax() / 1e6);
+    }
+}
@@ -0,0 +1,350 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Asynchronous leveled logger
+ *
+ * Logging threads only claim a slot of a preallocated ring buffer and store the format string
+ * and its arguments there; the text is built, or the binary record encoded, by the log thread.
+ * Nothing is formatted for a disabled level, and a full ring drops the entry rather than
+ * making an auction thread wait.
+ *
+ * Formats use {} for every argument, e.g. log.debug(source, "Received: {}", message).
+ * Arguments are formatted later, so they must not be changed after being logged.
+ * In binary mode every format string is written once and entries only refer to it;
+ * LogDecoder turns such a file back into text.
+ */
+public class Log extends Thread
+{
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    public static final int defaultRingSize = 8192;
+
+    // binary format
+    static final int magic        = 0x414c4f47;   // "ALOG"
+    static final byte defineText  = 1;
+    static final byte entryRecord = 2;
+    static final byte argNull     = 0;
+    static final byte argInt      = 1;
+    static final byte argLong     = 2;
+    static final byte argString   = 3;
+
+    private static class Entry
+    {
+        volatile long published = -1;   // the sequence of the entry stored in the slot
+        long time;
+        Level level;
+        String source;
+        String format;
+        int argCount;
+        Object arg0;
+        Object arg1;
+        Object arg2;
+    }
+
+    private Level level;
+    private Entry[] ring;
+    private int mask;
+    private AtomicLong claimed;
+    private volatile long consumed;
+    private AtomicLong dropped;
+    private volatile boolean running;
+
+    // used by the log thread only
+    private PrintStream textOut;
+    private DataOutputStream binaryOut;
+    private HashMap<String, Integer> textIds;
+    private SimpleDateFormat dateFormat;
+    private StringBuilder line;
+
+    private Log(Level level, int ringSize)
+    {
+        super("log");
+        setDaemon(true);
+        int size = Integer.highestOneBit(Math.max(2, ringSize - 1)) << 1;
+        this.level    = level;
+        this.ring     = new Entry[size];
+        this.mask     = size - 1;
+        this.claimed  = new AtomicLong();
+        this.consumed = 0;
+        this.dropped  = new AtomicLong();
+        this.textIds  = new HashMap<String, Integer>();
+        this.line     = new StringBuilder(256);
+        this.dateFormat = new SimpleDateFormat("HH:mm:ss : ");
+        for (int i = 0; i < size; i++)
+            ring[i] = new Entry();
+    }
+
+    /**
+     * Creates a logger writing lines of text to the given stream
+     * @param level
+     * @param out
+     * @return
+     */
+    public static Log text(Level level, PrintStream out)
+    {
+        Log log = new Log(level, defaultRingSize);
+        log.textOut = out;
+        log.start();
+        return log;
+    }
+
+    /**
+     * Creates a logger writing compact binary records to the given file
+     * @param level
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static Log binary(Level level, File file) throws IOException
+    {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+        OutputStream out = new FileOutputStream(file);
+        Log log = new Log(level, defaultRingSize);
+        log.binaryOut = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        log.binaryOut.writeInt(magic);
+        log.start();
+        return log;
+    }
+
+    /**
+     * Creates the logger selected by the options
+     * @param options
+     * @return
+     */
+    public static Log fromOptions(ServerOptions options)
+    {
+        if (options.isBinaryLog()) {
+            try {
+                return binary(options.getLogLevel(), new File(options.getLogFile()));
+            } catch (IOException e) {
+                System.err.println("Unable to open the log file, logging as text: " + e.getMessage());
+            }
+        }
+        return text(options.getLogLevel(), System.out);
+    }
+
+    public boolean isEnabled(Level level)
+    {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    public void debug(String source, String format)
+    {
+        if (isEnabled(Level.DEBUG))
+            publish(Level.DEBUG, source, format, 0, null, null, null);
+    }
+
+    public void debug(String source, String format, Object arg0)
+    {
+        if (isEnabled(Level.DEBUG))
+            publish(Level.DEBUG, source, format, 1, arg0, null, null);
+    }
+
+    public void debug(String source, String format, Object arg0, Object arg1)
+    {
+        if (isEnabled(Level.DEBUG))
+            publish(Level.DEBUG, source, format, 2, arg0, arg1, null);
+    }
+
+    public void debug(String source, String format, Object arg0, Object arg1, Object arg2)
+    {
+        if (isEnabled(Level.DEBUG))
+            publish(Level.DEBUG, source, format, 3, arg0, arg1, arg2);
+    }
+
+    public void info(String source, String format, Object arg0)
+    {
+        if (isEnabled(Level.INFO))
+            publish(Level.INFO, source, format, 1, arg0, null, null);
+    }
+
+    public void warn(String source, String format, Object arg0)
+    {
+        if (isEnabled(Level.WARN))
+            publish(Level.WARN, source, format, 1, arg0, null, null);
+    }
+
+    /**
+     * Number of entries dropped because the ring was full
+     * @return
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Writes out every entry logged so far and stops the log thread
+     */
+    public void close()
+    {
+        running = false;
+        LockSupport.unpark(this);
+        try {
+            join();
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private void publish(Level level, String source, String format, int argCount, Object arg0, Object arg1, Object arg2)
+    {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Entry entry    = ring[(int) (sequence & mask)];
+        entry.time     = System.currentTimeMillis();
+        entry.level    = level;
+        entry.source   = source;
+        entry.format   = format;
+        entry.argCount = argCount;
+        entry.arg0     = arg0;
+        entry.arg1     = arg1;
+        entry.arg2     = arg2;
+        entry.published = sequence;
+    }
+
+    public void run()
+    {
+        running = true;
+        long next = 0;
+        while (true) {
+            Entry entry = ring[(int) (next & mask)];
+            if (entry.published != next) {
+                // nothing new, write out what we have and wait a little
+                flush();
+                if (!running && claimed.get() == next)
+                    break;
+                LockSupport.parkNanos(1000000);
+                continue;
+            }
+            try {
+                write(entry);
+            } catch (IOException e) {
+            }
+            entry.source = entry.format = null;
+            entry.arg0 = entry.arg1 = entry.arg2 = null;
+            consumed = ++next;
+        }
+        flush();
+        if (binaryOut != null) {
+            try {
+                binaryOut.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void write(Entry entry) throws IOException
+    {
+        if (textOut != null) {
+            line.setLength(0);
+            line.append(entry.source).append(": ").append(dateFormat.format(new Date(entry.time)));
+            if (entry.level.compareTo(Level.WARN) >= 0)
+                line.append(entry.level).append(": ");
+            format(line, entry.format, entry.argCount, entry.arg0, entry.arg1, entry.arg2);
+            if (line.length() == 0 || line.charAt(line.length() - 1) != '\n')
+                line.append('\n');
+            textOut.append(line);
+            return;
+        }
+
+        int sourceId = textId(entry.source);
+        int formatId = textId(entry.format);
+        binaryOut.writeByte(entryRecord);
+        binaryOut.writeLong(entry.time);
+        binaryOut.writeByte(entry.level.ordinal());
+        binaryOut.writeInt(sourceId);
+        binaryOut.writeInt(formatId);
+        binaryOut.writeByte(entry.argCount);
+        if (entry.argCount > 0)
+            writeArg(entry.arg0);
+        if (entry.argCount > 1)
+            writeArg(entry.arg1);
+        if (entry.argCount > 2)
+            writeArg(entry.arg2);
+    }
+
+    /**
+     * Returns the id of a source or format string, defining it in the binary log the first time
+     */
+    private int textId(String text) throws IOException
+    {
+        Integer id = textIds.get(text);
+        if (id != null)
+            return id;
+        int newId = textIds.size();
+        textIds.put(text, newId);
+        binaryOut.writeByte(defineText);
+        binaryOut.writeInt(newId);
+        binaryOut.writeUTF(text);
+        return newId;
+    }
+
+    private void writeArg(Object arg) throws IOException
+    {
+        if (arg == null) {
+            binaryOut.writeByte(argNull);
+        } else if (arg instanceof Integer) {
+            binaryOut.writeByte(argInt);
+            binaryOut.writeInt((Integer) arg);
+        } else if (arg instanceof Long) {
+            binaryOut.writeByte(argLong);
+            binaryOut.writeLong((Long) arg);
+        } else {
+            String text = arg.toString();
+            if (text.length() > 16384)
+                text = text.substring(0, 16384);
+            binaryOut.writeByte(argString);
+            binaryOut.writeUTF(text);
+        }
+    }
+
+    private void flush()
+    {
+        if (textOut != null)
+            textOut.flush();
+        else if (binaryOut != null) {
+            try {
+                binaryOut.flush();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Appends the format to the builder, replacing every {} with the next argument
+     */
+    static void format(StringBuilder out, String format, int argCount, Object arg0, Object arg1, Object arg2)
+    {
+        int arg = 0;
+        int start = 0;
+        int index;
+        while (arg < argCount && (index = format.indexOf("{}", start)) >= 0) {
+            out.append(format, start, index);
+            out.append(arg == 0 ? arg0 : (arg == 1 ? arg1 : arg2));
+            start = index + 2;
+            arg++;
+        }
+        out.append(format, start, format.length());
+    }
+}
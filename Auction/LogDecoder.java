@@ -0,0 +1,103 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+
+/**
+ * Prints a binary log written by Log as text, in the same format as the text log
+ * (e.g. java LogDecoder auction.log)
+ */
+public class LogDecoder
+{
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 1) {
+            System.out.println("Usage: java LogDecoder <binary log file>");
+            return;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])));
+        try {
+            if (in.readInt() != Log.magic) {
+                System.err.println(args[0] + " is not a binary auction log");
+                return;
+            }
+            decode(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void decode(DataInputStream in) throws IOException
+    {
+        ArrayList<String> texts = new ArrayList<String>();
+        Log.Level[] levels = Log.Level.values();
+        SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss : ");
+        StringBuilder line = new StringBuilder(256);
+        Object[] args = new Object[3];
+
+        while (true) {
+            byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException e) {
+                break;
+            }
+
+            try {
+                if (type == Log.defineText) {
+                    int id = in.readInt();
+                    while (texts.size() <= id)
+                        texts.add(null);
+                    texts.set(id, in.readUTF());
+                    continue;
+                }
+                if (type != Log.entryRecord) {
+                    System.err.println("Corrupted log record, stopping");
+                    break;
+                }
+
+                long time = in.readLong();
+                Log.Level level = levels[in.readByte()];
+                String source = texts.get(in.readInt());
+                String format = texts.get(in.readInt());
+                int argCount = in.readByte();
+                for (int i = 0; i < argCount; i++)
+                    args[i] = readArg(in);
+
+                line.setLength(0);
+                line.append(source).append(": ").append(dateFormat.format(new Date(time)));
+                if (level.compareTo(Log.Level.WARN) >= 0)
+                    line.append(level).append(": ");
+                Log.format(line, format, argCount, args[0], args[1], args[2]);
+                if (line.length() == 0 || line.charAt(line.length() - 1) != '\n')
+                    line.append('\n');
+                System.out.print(line);
+            } catch (EOFException e) {
+                System.err.println("Truncated log record at the end of the file");
+                break;
+            }
+        }
+        System.out.flush();
+    }
+
+    private static Object readArg(DataInputStream in) throws IOException
+    {
+        byte type = in.readByte();
+        switch (type) {
+        case Log.argInt:
+            return in.readInt();
+        case Log.argLong:
+            return in.readLong();
+        case Log.argString:
+            return in.readUTF();
+        default:
+            return null;
+        }
+    }
+}
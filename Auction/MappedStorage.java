@@ -0,0 +1,231 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+
+/**
+ * Embedded storage in an append-only record file, accessed through a MappedByteBuffer
+ *
+ * The file starts with a header holding the end of the committed records, followed by the records:
+ *   int32 body length, byte type, body, int32 CRC32 of the body
+ * A batch is appended after the committed end and becomes visible at once when the header is
+ * updated, so a crash in the middle of a batch loses the whole batch and nothing else.
+ * The offset of the latest record of every item is kept in memory, and the index is rebuilt
+ * by scanning the file when it is opened.
+ * Writes go to the page cache at memory speed; the file is forced to disk when closed.
+ * A MappedByteBuffer maps at most 2GB, so a batch that would grow the file past maxSize fails.
+ */
+public class MappedStorage implements StorageBackend
+{
+    public static final int initialSize = 1024 * 1024;
+    public static final int maxSize     = Integer.MAX_VALUE;
+
+    private static final int magic        = 0x41554354;  // "AUCT"
+    private static final int headerLength = 16;          // magic, unused, committed end
+    private static final int endOffset    = 8;
+    private static final byte itemRecord   = 1;
+    private static final byte resultRecord = 2;
+
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int committedEnd;
+    private HashMap<Integer, Integer> itemIndex;
+    private HashMap<Integer, Integer> resultIndex;
+    private CRC32 crc;
+
+    public MappedStorage(File file)
+    {
+        this.file        = file;
+        this.itemIndex   = new HashMap<Integer, Integer>();
+        this.resultIndex = new HashMap<Integer, Integer>();
+        this.crc         = new CRC32();
+    }
+
+    public void open() throws IOException
+    {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        boolean created = (channel.size() < headerLength);
+        map(Math.max(initialSize, (int) channel.size()));
+
+        if (created || buffer.getInt(0) != magic) {
+            buffer.putInt(0, magic);
+            commit(headerLength);
+        } else {
+            committedEnd = buffer.getInt(endOffset);
+            rebuildIndex();
+        }
+    }
+
+    public void initItems(Iterable<Item> items) throws IOException
+    {
+        itemIndex.clear();
+        resultIndex.clear();
+        appendItems(headerLength, items);
+    }
+
+    public void addItems(List<Item> items) throws IOException
+    {
+        ArrayList<Item> added = new ArrayList<Item>(items.size());
+        for (Item i : items)
+            if (!itemIndex.containsKey(i.getId()))  // replayed after a restart
+                added.add(i);
+        appendItems(committedEnd, added);
+    }
+
+    private void appendItems(int position, Iterable<Item> items) throws IOException
+    {
+        for (Item i : items) {
+            byte[] description = i.getDescription().getBytes(StandardCharsets.UTF_8);
+            int offset = position;
+            position = append(position, itemRecord, i.getId(), i.getStartingPrice(), description);
+            itemIndex.put(i.getId(), offset);
+        }
+        commit(position);
+    }
+
+    public void writeResults(List<AuctionResult> results) throws IOException
+    {
+        HashMap<Integer, Integer> written = new HashMap<Integer, Integer>();
+        int position = committedEnd;
+        for (AuctionResult result : results) {
+            byte[] bidder = result.getBidder().getBytes(StandardCharsets.UTF_8);
+            int offset = position;
+            position = append(position, resultRecord, result.getItemId(), result.getBid(), bidder);
+            written.put(result.getItemId(), offset);
+        }
+        commit(position);
+        resultIndex.putAll(written);
+    }
+
+    public AuctionResult getResult(int itemId) throws IOException
+    {
+        Integer offset = resultIndex.get(itemId);
+        if (offset == null)
+            return null;
+        int length = buffer.getInt(offset);
+        int bid    = buffer.getInt(offset + 9);
+        String bidder = readString(offset + 13, length - 8);
+        return new AuctionResult(itemId, bid, bidder);
+    }
+
+    /**
+     * Returns the starting price of a stored item, or -1 if there is no such item
+     * @param itemId
+     * @return
+     */
+    public int getStartingPrice(int itemId)
+    {
+        Integer offset = itemIndex.get(itemId);
+        return (offset == null) ? -1 : buffer.getInt(offset + 9);
+    }
+
+    public void close()
+    {
+        try {
+            if (buffer != null)
+                buffer.force();
+            if (raf != null)
+                raf.close();
+        } catch (IOException e) {
+        }
+    }
+
+    public String getName()
+    {
+        return file.getPath();
+    }
+
+    /**
+     * Writes a record at the given position, growing the file if needed
+     * @return the position after the record
+     * @throws IOException if the record would end past maxSize
+     */
+    private int append(int position, byte type, int id, int value, byte[] text) throws IOException
+    {
+        int length = 8 + text.length;
+        long recordEnd = (long) position + 4 + 1 + length + 4;
+        if (recordEnd > maxSize)
+            throw new IOException(file + " is full: a record at " + position + " would end past " + maxSize + " bytes");
+        int end = (int) recordEnd;
+        if (end > buffer.capacity())
+            map((int) Math.max(end, Math.min(2L * buffer.capacity(), maxSize)));
+
+        buffer.position(position);
+        buffer.putInt(length);
+        buffer.put(type);
+        int bodyStart = buffer.position();
+        buffer.putInt(id);
+        buffer.putInt(value);
+        buffer.put(text);
+        buffer.putInt(checksum(bodyStart, length));
+        return end;
+    }
+
+    /**
+     * Makes everything written up to the given position part of the file
+     * @param end
+     */
+    private void commit(int end)
+    {
+        buffer.putInt(endOffset, end);
+        committedEnd = end;
+    }
+
+    /**
+     * Scans the committed records, stopping at the first one that does not check out
+     */
+    private void rebuildIndex()
+    {
+        int position = headerLength;
+        while (position + 9 <= committedEnd) {
+            int length = buffer.getInt(position);
+            int end = position + 4 + 1 + length + 4;
+            if (length < 8 || end > committedEnd || buffer.getInt(end - 4) != checksum(position + 5, length))
+                break;
+            int id = buffer.getInt(position + 5);
+            if (buffer.get(position + 4) == itemRecord)
+                itemIndex.put(id, position);
+            else
+                resultIndex.put(id, position);
+            position = end;
+        }
+        committedEnd = position;
+    }
+
+    private void map(int size) throws IOException
+    {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private int checksum(int offset, int length)
+    {
+        crc.reset();
+        ByteBuffer body = buffer.duplicate();
+        body.limit(offset + length).position(offset);
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private String readString(int offset, int length)
+    {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = buffer.get(offset + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,37 +1,81 @@
 import java.util.HashMap;
+import java.util.Map;
 
 
-public class Message 
+/**
+ * A command and its properties
+ * Int properties keep their type: the binary protocol writes and reads them as ints and
+ * getInt returns them as they are, only the text protocol turns them into strings.
+ */
+public class Message
 {
     private String command;
-    private HashMap<String, String> properties;
-        
+    private HashMap<String, Object> properties;     // String or Integer values
+
     public Message(String command)
     {
         this.command = command;
-        properties = new HashMap<String, String>();
+        properties = new HashMap<String, Object>();
     }
-    
+
     public void addProperty(String name, String value)
     {
         properties.put(name, value);
     }
-    
+
     public void addProperty(String name, int value)
     {
-        properties.put(name, String.format("%d", value));
+        properties.put(name, value);
     }
-    
+
+    /**
+     * Returns the properties with their values as strings, in a new map
+     * @return
+     */
     public HashMap<String, String> getProperties()
+    {
+        HashMap<String, String> strings = new HashMap<String, String>();
+        for (Map.Entry<String, Object> entry : properties.entrySet())
+            strings.put(entry.getKey(), entry.getValue().toString());
+        return strings;
+    }
+
+    /**
+     * Returns the properties as they were added, a value being a String or an Integer
+     * @return
+     */
+    public Map<String, Object> getValues()
     {
         return properties;
     }
-    
+
+    public boolean hasProperty(String name)
+    {
+        return properties.containsKey(name);
+    }
+
     public String getProperty(String name)
     {
-        return properties.get(name);
+        Object value = properties.get(name);
+        return (value == null) ? null : value.toString();
     }
-    
+
+    /**
+     * Returns an int property, parsing it only if it arrived as a string
+     * @param name
+     * @return
+     * @throws NumberFormatException if the property is missing or not a number
+     */
+    public int getInt(String name)
+    {
+        Object value = properties.get(name);
+        if (value instanceof Integer)
+            return (Integer) value;
+        if (value == null)
+            throw new NumberFormatException("Missing property " + name);
+        return Integer.parseInt((String) value);
+    }
+
     public String toString()
     {
         String message = command + ": ";
@@ -43,10 +87,9 @@ public class Message
         else
             return message.substring(0, message.length() - 2) + "\n";
     }
-    
+
     public String getCommand()
     {
         return command;
     }
 }
-
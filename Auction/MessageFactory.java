@@ -1,10 +1,13 @@
+import java.net.ProtocolException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 
 public class MessageFactory
 {
-    private String remaining;
+    // a binary frame has at most 255 properties, a peer_batch one and up to five per entry
+    public static final int maxPeerBatch = (0xff - 1) / 5;
     
     /**
      * Creates a message object with no properties
@@ -56,6 +59,21 @@ public class MessageFactory
         message.addProperty(Constants.item_id, itemId);
         return message;
     }
+    /**
+     * Creates the connect message a client sends first, always as text: it selects the
+     * protocol of everything after it, starting with the auctioneer's reply
+     * @param username
+     * @param protocol Constants.protocol_text or Constants.protocol_binary
+     */
+    public Message createConnectMessage(String username, String protocol)
+    {
+        Message message = createMessage(Constants.connect);
+        message.addProperty(Constants.username, username);
+        if (Constants.protocol_binary.equals(protocol))
+            message.addProperty(Constants.protocol, Constants.protocol_binary);
+        return message;
+    }
+    
     //TODO chara 5/5
     /**
      * Creates a message for quitting a user and shutting his/her channel down
@@ -99,130 +117,265 @@ public class MessageFactory
         return message;
     }
     
-    public Message createInterestedCountMessage(int count)
+    /**
+     * Creates a bid that asks the auctioneer for a bid_ack carrying the given request id
+     * @param username
+     * @param amount
+     * @param itemId
+     * @param requestId
+     */
+    public Message createMyBidMessage(String username, int amount, int itemId, int requestId)
     {
-        Message message = createMessage(Constants.interested_count);
-        message.addProperty(Constants.amount, count);
+        Message message = createMyBidMessage(username, amount, itemId);
+        message.addProperty(Constants.request_id, requestId);
         return message;
     }
     
-    public Message createInfoMessage(String message)
+    public Message createInterestedCountMessage(int count, int itemId)
     {
-        Message m = createMessage(Constants.info);
-        m.addProperty(Constants.message, message);
-        return m;
+        Message message = createMessage(Constants.interested_count);
+        message.addProperty(Constants.amount, count);
+        message.addProperty(Constants.item_id, itemId);
+        return message;
     }
-        
-    public Message createGotBidMessage(String userName, int amount)
+    
+    /**
+     * Creates the ready_to_end a node sends the owner of the item when its bid timer ends
+     * @param itemId
+     * @param currentBid the highest bid the node knows of, so that the owner can tell a
+     * ready_to_end sent before the node saw the latest bid
+     * @return
+     */
+    public Message createReadyToEndMessage(int itemId, int currentBid)
     {
-        Message message = createMessage(Constants.got_bid);
-        message.addProperty(Constants.username, userName);
-        message.addProperty(Constants.amount, amount);
+        Message message = createMessage(Constants.ready_to_end);
+        message.addProperty(Constants.item_id, itemId);
+        message.addProperty(Constants.amount, currentBid);
         return message;
     }
     
-    public Message createBidOkMessage(String userName, int amount)
+    /**
+     * Creates the message the owner of an item sends the other nodes when it lowers the price
+     * @param itemId
+     * @param price
+     * @return
+     */
+    public Message createDiscountRoundMessage(int itemId, int price)
     {
-        Message message = createMessage(Constants.bid_ok);
-        message.addProperty(Constants.username, userName);
-        message.addProperty(Constants.amount, amount);
+        Message message = createMessage(Constants.discount_round);
+        message.addProperty(Constants.item_id, itemId);
+        message.addProperty(Constants.amount, price);
         return message;
     }
     
-    public Message createNewHighBidMessage(String userName, int amount)
+    /**
+     * Creates the message the owner of an item sends the other nodes when the auction ends
+     * @param itemId
+     * @param userId the winner, or UserRegistry.noUser
+     * @param amount
+     * @return
+     */
+    public Message createItemSoldMessage(int itemId, int userId, int amount)
     {
-        Message message = createMessage(Constants.new_high_bid);
-        message.addProperty(Constants.username, userName);
+        Message message = createMessage(Constants.item_sold);
+        message.addProperty(Constants.item_id, itemId);
+        message.addProperty(Constants.user_id, userId);
         message.addProperty(Constants.amount, amount);
         return message;
     }
-        
+    
     /**
-     * Creates a message object from its String representation
-     * @param rawMessage
+     * Creates the message a node sends the first node of the cluster to append an item
+     * @param startingPrice
+     * @param description
      * @return
      */
-    public Message fromRawMessage(String rawMessage)
+    public Message createAddItemMessage(int startingPrice, String description)
     {
-        String command = getCommand(rawMessage);
-        HashMap<String, String> props = getProperties(rawMessage);
-        
-        return createMessage(command, props);
+        Message message = createMessage(Constants.add_item);
+        message.addProperty(Constants.starting_price, startingPrice);
+        message.addProperty(Constants.description, description);
+        return message;
     }
     
     /**
-     * Returns a HashMap containing all the arguments and their values found in the message
-     * @param message
+     * Creates the message the first node of the cluster sends the others for an appended item
+     * @param itemId
+     * @param startingPrice
+     * @param description
      * @return
      */
-    private HashMap<String, String> getProperties(String message)
+    public Message createItemAddedMessage(int itemId, int startingPrice, String description)
     {
-        int pos = message.indexOf(": ");
-        String props = message.substring(pos + 2);
-        HashMap<String, String> properties = new HashMap<String, String>();
-        
-        for (String prop : props.split(", ")) {
-            String[] pair = prop.split(" = ");
-            if (pair.length == 2)
-                properties.put(pair[0], pair[1].replace("\"", ""));
-        }
-        return properties;
+        Message message = createMessage(Constants.item_added);
+        message.addProperty(Constants.item_id, itemId);
+        message.addProperty(Constants.starting_price, startingPrice);
+        message.addProperty(Constants.description, description);
+        return message;
     }
-
+    
+    public Message createInfoMessage(String message)
+    {
+        Message m = createMessage(Constants.info);
+        m.addProperty(Constants.message, message);
+        return m;
+    }
+    
     /**
-     * Returns the command of the given message
-     * @param message
-     * @return
+     * Creates the outcome of a bid that carried a request id
+     * @param requestId
+     * @param itemId
+     * @param amount
+     * @param status bid_accepted or bid_rejected
+     * @param reason why a bid was rejected, or null
      */
-    private String getCommand(String message)
+    public Message createBidAckMessage(String requestId, int itemId, int amount, String status, String reason)
     {
-        int pos = message.indexOf(": ");
-        return message.substring(0, pos);
+        Message message = createMessage(Constants.bid_ack);
+        message.addProperty(Constants.request_id, requestId);
+        message.addProperty(Constants.item_id, itemId);
+        message.addProperty(Constants.amount, amount);
+        message.addProperty(Constants.status, status);
+        if (reason != null)
+            message.addProperty(Constants.message, reason);
+        return message;
     }
-
+        
     /**
-     * Extracts the complete messages contained in the given data
-     * Stores temporarily the remaining data to be retrieved through getRemaining()
-     * @param data
+     * Creates the first message a node sends on a connection it opened to another node
+     * @param nodeIndex the index of the sending node in the cluster
      * @return
      */
-    public ArrayList<Message> extractMessages(String data)
+    public Message createPeerHelloMessage(int nodeIndex)
+    {
+        Message message = createMessage(Constants.peer_hello);
+        message.addProperty(Constants.node, nodeIndex);
+        return message;
+    }
+    
+    public Message createGotBidMessage(int userId, int amount, int itemId)
     {
-        ArrayList<String> rawMessages = extractRawMessages(data);
-        ArrayList<Message> messages = new ArrayList<Message>();
-        for (String m : rawMessages)
-            messages.add(fromRawMessage(m));
-        return messages;
+        Message message = createMessage(Constants.got_bid);
+        message.addProperty(Constants.user_id, userId);
+        message.addProperty(Constants.amount, amount);
+        message.addProperty(Constants.item_id, itemId);
+        return message;
     }
     
+    public Message createBidOkMessage(int userId, int amount, int itemId)
+    {
+        Message message = createMessage(Constants.bid_ok);
+        message.addProperty(Constants.user_id, userId);
+        message.addProperty(Constants.amount, amount);
+        message.addProperty(Constants.item_id, itemId);
+        return message;
+    }
     
     /**
-     * Breaks a string of received data into separate messages
-     * Stores temporarily the remaining data to be retrieved through getRemaining()
-     * @param data
-     * @return
+     * Creates a got_bid or bid_ok carrying the sequence number of the validation
+     * @param command Constants.got_bid or Constants.bid_ok
+     * @param userId
+     * @param amount
+     * @param itemId
+     * @param seq
      */
-    private ArrayList<String> extractRawMessages(String data)
+    public Message createValidationMessage(String command, int userId, int amount, int itemId, int seq)
     {
-        ArrayList<String> list = new ArrayList<String>();
-        int pos;
-        while ((pos = data.indexOf('\n')) != -1) {
-            String message = data.substring(0, pos);
-            data = data.substring(pos+1);
-            list.add(message);
+        Message message = createMessage(command);
+        message.addProperty(Constants.user_id, userId);
+        message.addProperty(Constants.amount, amount);
+        message.addProperty(Constants.item_id, itemId);
+        message.addProperty(Constants.seq, seq);
+        return message;
+    }
+    
+    /**
+     * Packs several got_bid and bid_ok messages into one peer_batch, in order
+     * Every field of the i-th one becomes its own property "<field>.<i>", the ids and the
+     * amount as ints, so they stay ints on the binary protocol; the seq is left out of a
+     * bid_ok that answers no got_bid of the receiver
+     * @param validations at most maxPeerBatch
+     */
+    public Message createPeerBatchMessage(List<Message> validations)
+    {
+        Message message = createMessage(Constants.peer_batch);
+        message.addProperty(Constants.count, validations.size());
+        for (int i = 0; i < validations.size(); i++) {
+            Message m = validations.get(i);
+            message.addProperty(batchField(Constants.command, i), m.getCommand());
+            message.addProperty(batchField(Constants.item_id, i), m.getInt(Constants.item_id));
+            message.addProperty(batchField(Constants.user_id, i), m.getInt(Constants.user_id));
+            message.addProperty(batchField(Constants.amount, i), m.getInt(Constants.amount));
+            if (m.hasProperty(Constants.seq))
+                message.addProperty(batchField(Constants.seq, i), m.getInt(Constants.seq));
         }
-        
-        this.remaining = data;
-        return list;
+        return message;
     }
     
     /**
-     * Returns the remaining data left over from the last extractMessages call
-     * @return
+     * Unpacks the messages of a peer_batch, in the order they were packed
+     * @param batch
+     * @throws ProtocolException if an entry is missing a field or the batch has fields
+     *         that belong to no entry
      */
-    public String getRemaining()
+    public ArrayList<Message> unpackPeerBatch(Message batch) throws ProtocolException
     {
-        return remaining;
+        int count;
+        try {
+            count = batch.getInt(Constants.count);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Missing count in " + Constants.peer_batch);
+        }
+        if (count < 0 || count > maxPeerBatch)
+            throw new ProtocolException("Invalid count in " + Constants.peer_batch + ": " + count);
+        ArrayList<Message> validations = new ArrayList<Message>(count);
+        int fields = 1;
+        try {
+            for (int i = 0; i < count; i++) {
+                String command = batch.getProperty(batchField(Constants.command, i));
+                if (!Constants.got_bid.equals(command) && !Constants.bid_ok.equals(command))
+                    throw new ProtocolException("Invalid command in entry " + i + " of " + Constants.peer_batch);
+                Message m = createMessage(command);
+                m.addProperty(Constants.item_id, batch.getInt(batchField(Constants.item_id, i)));
+                m.addProperty(Constants.user_id, batch.getInt(batchField(Constants.user_id, i)));
+                m.addProperty(Constants.amount, batch.getInt(batchField(Constants.amount, i)));
+                fields += 4;
+                String seq = batchField(Constants.seq, i);
+                if (batch.hasProperty(seq)) {
+                    m.addProperty(Constants.seq, batch.getInt(seq));
+                    fields++;
+                }
+                validations.add(m);
+            }
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid " + Constants.peer_batch + ": " + e.getMessage());
+        }
+        if (batch.getValues().size() != fields)
+            throw new ProtocolException(Constants.peer_batch + " of " + count + " entries has "
+                    + batch.getValues().size() + " fields, expected " + fields);
+        return validations;
+    }
+    
+    private static String batchField(String name, int index)
+    {
+        return name + "." + index;
+    }
+    
+    public Message createNewHighBidMessage(String userName, int amount, int itemId)
+    {
+        Message message = createMessage(Constants.new_high_bid);
+        message.addProperty(Constants.username, userName);
+        message.addProperty(Constants.amount, amount);
+        message.addProperty(Constants.item_id, itemId);
+        return message;
+    }
+    
+    public Message createUserJoinedMessage(int userId, String userName)
+    {
+        Message message = createMessage(Constants.user_joined);
+        message.addProperty(Constants.user_id, userId);
+        message.addProperty(Constants.username, userName);
+        return message;
     }
     
 }
@@ -0,0 +1,276 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+
+/**
+ * The counters, gauges and histograms of one auctioneer
+ *
+ * A series is named like a Prometheus one, e.g. auction_messages_total{command="my_bid"}.
+ * Looking a series up goes through a concurrent map, so the hot paths look theirs up once
+ * and keep the LongAdder or Histogram; updating them is lock-free. A gauge is read from its
+ * owner whenever the metrics are.
+ * The registry is readable through JMX, as auction:type=Metrics,auctioneer=<type>, and as text
+ * through MetricsServer.
+ */
+public class Metrics implements DynamicMBean
+{
+    // series names
+    public static final String messages           = "auction_messages_total";
+    public static final String selectorLoop       = "auction_selector_loop_nanos";
+    public static final String lockWait           = "auction_lock_wait_nanos";
+    public static final String lockHold           = "auction_lock_hold_nanos";
+    public static final String laneLockWait       = "auction_lane_lock_wait_nanos";
+    public static final String laneLockHold       = "auction_lane_lock_hold_nanos";
+    public static final String peerRoundTrip      = "auction_peer_round_trip_nanos";
+    public static final String bidLatency         = "auction_bid_latency_nanos";
+    public static final String outboundBytes      = "auction_outbound_bytes_total";
+    public static final String connectionOutbound = "auction_connection_outbound_bytes";
+    public static final String dbWrite            = "auction_db_write_nanos";
+    public static final String peerBatch          = "auction_peer_batch_validations";
+    public static final String coalescedBids      = "auction_coalesced_bids_total";
+    public static final String engineBatch        = "auction_engine_batch_events";
+    public static final String engineRingFull     = "auction_engine_ring_full_total";
+    public static final String snapshotWrite      = "auction_snapshot_write_nanos";
+    public static final String dbQueueDepth       = "auction_db_queue_depth";
+    public static final String dbLastBatch        = "auction_db_last_batch_results";
+    public static final String dbLastCommit       = "auction_db_last_commit_micros";
+    public static final String dbMaxCommit        = "auction_db_max_commit_micros";
+    public static final String dbBatches          = "auction_db_batches_committed_total";
+    public static final String dbResultsWritten   = "auction_db_results_written_total";
+    public static final String dbResultsFailed    = "auction_db_results_failed_total";
+
+    /**
+     * A value its owner keeps, read when the metrics are
+     */
+    public interface Gauge
+    {
+        long value();
+    }
+
+    private static final double[] quantiles = { 0.5, 0.9, 0.99, 0.999 };
+
+    private String auctioneer;
+    private ConcurrentSkipListMap<String, LongAdder> counters;
+    private ConcurrentSkipListMap<String, Histogram> histograms;
+    private ConcurrentSkipListMap<String, Gauge> gauges;
+    private ObjectName objectName;
+
+    public Metrics()
+    {
+        this.auctioneer = "";
+        this.counters   = new ConcurrentSkipListMap<String, LongAdder>();
+        this.histograms = new ConcurrentSkipListMap<String, Histogram>();
+        this.gauges     = new ConcurrentSkipListMap<String, Gauge>();
+    }
+
+    /**
+     * Returns the counter of the given series, creating it if needed
+     * @param name
+     * @return
+     */
+    public LongAdder counter(String name)
+    {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            LongAdder created = new LongAdder();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null)
+                counter = created;
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the counter of the series with the given label, creating it if needed
+     * @param name
+     * @param label
+     * @param value escaped here
+     * @return
+     */
+    public LongAdder counter(String name, String label, String value)
+    {
+        return counter(name + "{" + label + "=\"" + escape(value) + "\"}");
+    }
+
+    /**
+     * Returns the histogram of the given series, creating it if needed
+     * @param name
+     * @return
+     */
+    public Histogram histogram(String name)
+    {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null)
+                histogram = created;
+        }
+        return histogram;
+    }
+
+    /**
+     * Adds a gauge under the given series, replacing the one it had
+     * @param name
+     * @param gauge
+     */
+    public void gauge(String name, Gauge gauge)
+    {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Makes the metrics visible through the platform MBean server
+     * @param auctioneer the type of the auctioneer, labels every series
+     */
+    public void register(String auctioneer)
+    {
+        this.auctioneer = auctioneer;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("auction:type=Metrics,auctioneer=" + auctioneer);
+            if (!server.isRegistered(name))
+                server.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            System.err.println("Unable to register the metrics of the " + auctioneer + " with JMX: " + e.getMessage());
+        }
+    }
+
+    public void unregister()
+    {
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+        }
+        objectName = null;
+    }
+
+    /**
+     * Appends every series in the Prometheus text format, histograms as summaries
+     * @param out
+     */
+    public void writeText(StringBuilder out)
+    {
+        for (Map.Entry<String, LongAdder> e : counters.entrySet())
+            appendSeries(out, e.getKey(), null, e.getValue().sum());
+        for (Map.Entry<String, Gauge> e : gauges.entrySet())
+            appendSeries(out, e.getKey(), null, e.getValue().value());
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            Histogram h = e.getValue();
+            for (double q : quantiles)
+                appendSeries(out, e.getKey(), "quantile=\"" + q + "\"", h.getPercentile(q * 100));
+            appendSeries(out, e.getKey() + "_count", null, h.getCount());
+            appendSeries(out, e.getKey() + "_sum", null, h.getSum());
+            appendSeries(out, e.getKey() + "_max", null, h.getMax());
+        }
+    }
+
+    private void appendSeries(StringBuilder out, String series, String extraLabel, long value)
+    {
+        int brace = series.indexOf('{');
+        String name   = (brace < 0) ? series : series.substring(0, brace);
+        String labels = (brace < 0) ? "" : series.substring(brace + 1, series.length() - 1);
+        out.append(name).append("{auctioneer=\"").append(escape(auctioneer)).append('"');
+        if (!labels.isEmpty())
+            out.append(',').append(labels);
+        if (extraLabel != null)
+            out.append(',').append(extraLabel);
+        out.append("} ").append(value).append('\n');
+    }
+
+    /**
+     * Escapes a label value the way the Prometheus text format requires
+     * @param value
+     * @return
+     */
+    private static String escape(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // JMX: every counter and gauge is an attribute, every histogram a few: <name>.count, .mean, .p50, ...
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException
+    {
+        LongAdder counter = counters.get(attribute);
+        if (counter != null)
+            return counter.sum();
+        Gauge gauge = gauges.get(attribute);
+        if (gauge != null)
+            return gauge.value();
+
+        int dot = attribute.lastIndexOf('.');
+        Histogram h = (dot < 0) ? null : histograms.get(attribute.substring(0, dot));
+        if (h != null) {
+            switch (attribute.substring(dot + 1)) {
+            case "count": return h.getCount();
+            case "mean":  return h.getMean();
+            case "max":   return h.getMax();
+            case "p50":   return h.getPercentile(50);
+            case "p90":   return h.getPercentile(90);
+            case "p99":   return h.getPercentile(99);
+            case "p999":  return h.getPercentile(99.9);
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    public AttributeList getAttributes(String[] attributes)
+    {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+            }
+        }
+        return list;
+    }
+
+    public MBeanInfo getMBeanInfo()
+    {
+        ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (String name : counters.keySet())
+            attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+        for (String name : gauges.keySet())
+            attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+        String[] stats = { "count", "mean", "max", "p50", "p90", "p99", "p999" };
+        for (String name : histograms.keySet())
+            for (String stat : stats)
+                attributes.add(new MBeanAttributeInfo(name + "." + stat, "long", name, true, false, false));
+        return new MBeanInfo(getClass().getName(), "Auctioneer metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException("The metrics are read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+    {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "The metrics have no operations");
+    }
+}
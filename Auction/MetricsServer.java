@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Serves the metrics of the auctioneers as text on http://localhost:<port>/metrics
+ * Only bound to the loopback interface, it is meant to be scraped by a local agent
+ */
+public class MetricsServer implements HttpHandler
+{
+    private int port;
+    private ArrayList<Metrics> registries;
+    private HttpServer server;
+
+    public MetricsServer(int port)
+    {
+        this.port       = port;
+        this.registries = new ArrayList<Metrics>();
+    }
+
+    public void add(Metrics metrics)
+    {
+        registries.add(metrics);
+    }
+
+    public void start() throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/metrics", this);
+        server.start();
+    }
+
+    public void stop()
+    {
+        if (server != null)
+            server.stop(0);
+    }
+
+    public void handle(HttpExchange exchange) throws IOException
+    {
+        StringBuilder text = new StringBuilder(4096);
+        for (Metrics metrics : registries)
+            metrics.writeText(text);
+        byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+}
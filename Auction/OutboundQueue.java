@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+
+
+/**
+ * The bounded queue of encoded messages waiting to be written to one connection.
+ *
+ * Messages are only queued by send(); the selector thread flushes everything
+ * queued for a connection with a single gathering write, and keeps OP_WRITE
+ * registered for as long as some of it is still pending.
+ * The lanes queue messages from their own threads, so the queue is guarded by its monitor.
+ */
+public class OutboundQueue
+{
+    public static final int defaultMaxPendingBytes = 1024 * 1024;
+
+    private GatheringByteChannel channel;
+    private ArrayDeque<ByteBuffer> pending;
+    private int pendingBytes;
+    private int maxPendingBytes;
+    private long bytesWritten;
+
+    public OutboundQueue(GatheringByteChannel channel)
+    {
+        this(channel, defaultMaxPendingBytes);
+    }
+
+    public OutboundQueue(GatheringByteChannel channel, int maxPendingBytes)
+    {
+        this.channel         = channel;
+        this.maxPendingBytes = maxPendingBytes;
+        this.pending         = new ArrayDeque<ByteBuffer>();
+        this.pendingBytes    = 0;
+    }
+
+    /**
+     * Queues the given buffer for writing
+     * Returns false if the connection already has too much data pending, i.e. the peer
+     * is not reading fast enough and should be dropped
+     * @param buffer
+     * @return
+     */
+    public synchronized boolean enqueue(ByteBuffer buffer)
+    {
+        if (pendingBytes + buffer.remaining() > maxPendingBytes)
+            return false;
+        pending.add(buffer);
+        pendingBytes += buffer.remaining();
+        return true;
+    }
+
+    /**
+     * Writes as much of the pending data as the channel accepts, in one gathering write
+     * Returns true if nothing is left pending
+     * @return
+     * @throws IOException
+     */
+    public synchronized boolean flush() throws IOException
+    {
+        if (pending.isEmpty())
+            return true;
+
+        ByteBuffer[] buffers = pending.toArray(new ByteBuffer[pending.size()]);
+        long written = channel.write(buffers);
+        pendingBytes -= written;
+        bytesWritten += written;
+
+        while (!pending.isEmpty() && !pending.peek().hasRemaining())
+            pending.poll();
+        return pending.isEmpty();
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return pending.isEmpty();
+    }
+
+    public synchronized int getPendingBytes()
+    {
+        return pendingBytes;
+    }
+
+    /**
+     * Total number of bytes written to the connection so far
+     * @return
+     */
+    public synchronized long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+}
@@ -1,363 +1,564 @@
-import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.locks.Lock;
-
-
-public class Proxy
-{
-    private int port;
-    private int peerPort;
-    private Auctioneer auctioneer;
-    private SocketChannel peerChannel;
-    private HashMap<String, SocketChannel> activeChannels;
-    private Lock lock;
-    private long timeToCheck;
-    private Selector selector;
-    
-    /**
-     * Constructor for the proxy server
-     * @param port
-     * @param auctioneer
-     */
-    public Proxy(int port, Auctioneer auctioneer)
-    {
-        this.port       = port;
-        this.auctioneer = auctioneer;
-        this.lock       = auctioneer.getLock();
-        timeToCheck     = 1000;
-        activeChannels  = new HashMap<String, SocketChannel>();
-    }
-    
-    /**
-     * Returns true if a username is already in use
-     * @param username
-     * @return
-     */
-    public boolean isUserActive (String username)
-    {
-        return activeChannels.containsKey(username);
-    }
-    
-    /**
-     * Adds user to the proxy's list of active users
-     * @param username
-     * @param channel
-     */
-    public void addUser(String username, SocketChannel channel)
-    {
-        activeChannels.put(username, channel);
-    }
-    
-    /**
-     * Removes user from the proxy's list of active users
-     * @param username
-     * @param channel
-     */
-    public void removeUser(String username)
-    {
-        activeChannels.remove(username);
-    }
-    
-    /**
-     * Connects to an Auctioneer peer
-     * @param peerPort
-     * @throws IOException 
-     */
-    private void connectToPeer(int peerPort) throws IOException
-    {
-        auctioneer.debug("Connecting to remote peer");
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-//            e.printStackTrace();
-        }
-        
-        peerChannel = SocketChannel.open();
-        peerChannel.configureBlocking(false);
-        peerChannel.connect(new InetSocketAddress("localhost", peerPort));
-
-        while (!peerChannel.finishConnect())
-            auctioneer.debug("Connecting to peer ...");
-        
-        auctioneer.debug("Connected to remote peer");
-    }
-    
-    /**
-     * Accepts a connection from a remote peer
-     * @param channel
-     * @throws IOException
-     */
-    private void acceptPeer(ServerSocketChannel channel) throws IOException
-    {
-        auctioneer.debug("Now accepting peers!");
-        while (peerChannel == null) {
-            peerChannel = channel.accept();
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-//                e.printStackTrace();
-            }
-        }
-        peerChannel.configureBlocking(false);
-        
-        auctioneer.debug("Peer accepted!");
-    }
-    
-    /**
-     * Register the given selector to the peer channel
-     * @param selector
-     * @throws ClosedChannelException
-     */
-    private void registerPeer(Selector selector) throws ClosedChannelException
-    {
-        SelectionKey peerKey = peerChannel.register(
-                selector, SelectionKey.OP_READ,
-                SelectionKey.OP_WRITE);
-        
-        Map<String, String> clientproperties = new HashMap<String, String>();
-        clientproperties.put(Auctioneer.channelType, Auctioneer.clientChannel);
-        clientproperties.put(Auctioneer.bytesReadString, "");
-        clientproperties.put(Auctioneer.clientName, Auctioneer.peerName);
-        peerKey.attach(clientproperties);
-        
-    }
-    
-    public void setPeerPort(int peerPort)
-    {
-        this.peerPort = peerPort;
-    }
-
-    /**
-     * Broadcast a message to all the connected bidders
-     * @param message
-     */
-    public void broadcast(Message message)
-    {
-        CharBuffer buffer;
-        for (SocketChannel channel : activeChannels.values())
-        {
-            buffer = CharBuffer.wrap(message.toString());
-            try {
-                while (buffer.hasRemaining())
-                    channel.write(Charset.defaultCharset().encode(buffer));
-            } catch (IOException e) {
-//                e.printStackTrace();
-            }
-            buffer.clear();
-        }
-    }
-    
-    /**
-     * Broadcast a message to all the interested bidders
-     * @param message
-     */
-    public void broadcast(ArrayList<String> users, Message message)
-    {
-        for (String user : users)
-            send(user, message);
-    }
-    
-    /**
-     * Send a message to a user
-     * @param user
-     * @param message
-     */
-    public void send(String user, Message message)
-    {
-        if (Auctioneer.peerName.equals(user)) {
-            send(peerChannel, message);
-        } else {
-            SocketChannel channel = activeChannels.get(user);
-            send(channel, message);
-        }
-    }
-    
-    /**
-     * Sends the message to the specified channel
-     * @param channel
-     * @param message
-     */
-    public void send(SocketChannel channel, Message message) 
-    {
-        CharBuffer buffer = CharBuffer.wrap(message.toString());
-        try {
-            while (buffer.hasRemaining())
-                channel.write(Charset.defaultCharset().encode(buffer));
-        } catch (IOException e) {
-//            e.printStackTrace();
-        }
-        buffer.clear();
-    }
-    
-    /**
-     * Listens for incoming messages and connections
-     * @throws IOException 
-     */
-    public void run() throws IOException
-    {
-        auctioneer.debug("Auctioneer starting ...");
-        
-        ServerSocketChannel channel = ServerSocketChannel.open();
-        channel.bind(new InetSocketAddress("localhost", port));
-        channel.configureBlocking(false);
-        selector = Selector.open();
-        SelectionKey socketServerSelectionKey = channel.register(selector, SelectionKey.OP_ACCEPT);
-        
-        Map<String, String> properties = new HashMap<String, String>();
-        properties.put(Auctioneer.channelType, Auctioneer.serverChannel);
-        socketServerSelectionKey.attach(properties);
-        
-        if (auctioneer.getType().equals("caller"))
-            connectToPeer(peerPort);
-        else
-            acceptPeer(channel);
-
-        registerPeer(selector);
-        
-        
-        // wait for the selected keys
-        for (;;) {
-            
-            try {
-                if (selector.select(timeToCheck) == 0) {
-                    if (auctioneer.haveAuctionsEnded()) {
-                        shutdown();
-                        break;                    
-                    }
-                    else 
-                        continue;
-                }
-            } catch (IOException e1) {
-                auctioneer.debug("Selector throwed exception: " + e1);
-                continue;
-            }
-            
-            lock.lock();
-
-            Set<SelectionKey> selectedKeys = selector.selectedKeys();
-            Iterator<SelectionKey> iterator = selectedKeys.iterator();
-            while (iterator.hasNext()) {
-                SelectionKey key = iterator.next();
-                
-                // An incoming connection
-                if (((Map<?, ?>) key.attachment()).get(Auctioneer.channelType).equals(Auctioneer.serverChannel)) {
-                    ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
-                    SocketChannel clientSocketChannel;
-                    try {
-                        clientSocketChannel = serverSocketChannel.accept();
-
-                        if (clientSocketChannel != null) {
-                            // set the client connection to be non blocking
-                            clientSocketChannel.configureBlocking(false);
-                            SelectionKey clientKey = clientSocketChannel
-                                    .register(selector, SelectionKey.OP_READ,
-                                            SelectionKey.OP_WRITE);
-
-                            Map<String, String> clientproperties = new HashMap<String, String>();
-                            clientproperties.put(Auctioneer.channelType,
-                                    Auctioneer.clientChannel);
-                            clientproperties
-                                    .put(Auctioneer.bytesReadString, "");
-                            clientproperties.put(Auctioneer.clientName, null);
-                            clientKey.attach(clientproperties);
-
-                            auctioneer.debug("Connection accepted!");
-                        }
-                    } catch (IOException e) {
-                        auctioneer.debug("Accepting client connection exception: " + e);
-                        continue;
-                    }
-                } else {
-                    // data is available for read
-                    ByteBuffer buffer = ByteBuffer.allocate(256);
-                    SocketChannel clientChannel = (SocketChannel) key.channel();
-
-                    int bytesRead = 0;
-                    if (key.isReadable()) {
-                        try {
-                            if ((bytesRead = clientChannel.read(buffer)) > 0) {
-                                buffer.flip();
-                                String s = Charset.defaultCharset().decode(buffer).toString();
-                                //auctioneer.debug("Got message: " + s);
-                                auctioneer.processMessage(s, key);
-                                buffer.clear();
-                            }
-                        } catch (IOException e) {
-                            try {
-                                clientChannel.close();
-                            } catch (IOException e1) {
-                            }
-                            @SuppressWarnings("unchecked")
-                            Map<String, String> clientProps = (Map<String, String>) key.attachment();
-                            String userName  = clientProps.get(Auctioneer.clientName);
-                            if (userName != null) {
-                                if (userName.equals(Auctioneer.peerName)) {
-                                    auctioneer.debug("Connection with the peer was dropped, exiting...");
-                                    shutdown();
-                                    break;
-                                } else {
-                                    activeChannels.remove(userName);
-                                    auctioneer.removeUserFromInterested(userName);
-                                    auctioneer.debug("User " + userName + " disconnected.");
-                                }
-                            }
-                        }
-                        
-                        if (bytesRead < 0)
-                            try {
-                                clientChannel.close();
-                            } catch (IOException e) {
-                            }
-                    }
-                }
- 
-                iterator.remove();
-            }
-            lock.unlock();
-        }
-    }
-
-    private void shutdown()
-    {
-        for (SocketChannel c: activeChannels.values()) {
-            try {
-                c.close();
-            } catch (IOException e) {
-//                e.printStackTrace();
-            }
-        }
-        try {
-            peerChannel.close();
-        } catch (IOException e) {
-//            e.printStackTrace();
-        }
-        try {
-            selector.close();
-        } catch (IOException e) {
-//            e.printStackTrace();
-        }
-    }
-
-    public void closeConnection(String userName) 
-    {
-        try {
-            activeChannels.remove(userName).close();
-            auctioneer.debug("User \"" + userName + "\" quit.");
-        } catch (IOException e) {
-//            e.printStackTrace();
-        }
-    }
-}
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Accepts the connections and keeps the tables of connected users and linked peers
+ *
+ * The tables are changed holding the Auctioneer lock, which guards the connection registry,
+ * and read without it: the lanes send to users and peers holding only their own lane lock.
+ * The user table grows by copy and is published through a volatile field, so a reader sees
+ * either the old or the new table, both complete. A peer's pending batch is guarded by its own
+ * monitor, as is every connection's outbound queue.
+ */
+public class Proxy
+{
+    private int port;
+    private String host;
+    private Auctioneer auctioneer;
+    private ServerOptions options;
+    private ClusterConfig cluster;
+    private int nodeIndex;
+    private AtomicReferenceArray<SelectionKey> peerKeys;             // indexed by node, null until the node has linked
+    private volatile AtomicReferenceArray<SelectionKey> userKeys;    // indexed by user id, null when not connected here
+    private long timeToCheck;
+    private Selector acceptSelector;
+    private Reactor[] reactors;
+    private BinaryCodec binaryCodec;
+    private Histogram connectionOutbound;
+    private Histogram peerBatchSizes;
+    private MessageFactory messageFactory;
+    private ArrayList<ArrayList<Message>> peerBatches;  // by node, validations waiting for the peer's reactor pass
+    private volatile boolean running;
+    
+    /**
+     * Constructor for the proxy server
+     * @param port
+     * @param auctioneer
+     * @param options
+     */
+    public Proxy(int port, Auctioneer auctioneer, ServerOptions options)
+    {
+        this.port       = port;
+        this.auctioneer = auctioneer;
+        this.options    = options;
+        timeToCheck     = 1000;
+        userKeys        = new AtomicReferenceArray<SelectionKey>(64);
+        binaryCodec     = new BinaryCodec(true);   // the messages of binary clients reach text ones
+        connectionOutbound = auctioneer.getMetrics().histogram(Metrics.connectionOutbound);
+        peerBatchSizes  = auctioneer.getMetrics().histogram(Metrics.peerBatch);
+        messageFactory  = new MessageFactory();
+        setCluster(ClusterConfig.single(port), 0);
+    }
+    
+    /**
+     * Makes this proxy the given node of the cluster, listening on the node's address
+     * @param cluster
+     * @param nodeIndex
+     */
+    public void setCluster(ClusterConfig cluster, int nodeIndex)
+    {
+        this.cluster     = cluster;
+        this.nodeIndex   = nodeIndex;
+        this.port        = cluster.getNode(nodeIndex).getPort();
+        this.host        = cluster.getNode(nodeIndex).getHost();
+        this.peerKeys    = new AtomicReferenceArray<SelectionKey>(cluster.getNodeCount());
+        this.peerBatches = new ArrayList<ArrayList<Message>>();
+        for (int i = 0; i < cluster.getNodeCount(); i++)
+            peerBatches.add(new ArrayList<Message>());
+    }
+    
+    /**
+     * Returns true if the user is connected to this proxy
+     * @param userId
+     * @return
+     */
+    public boolean isUserActive(int userId)
+    {
+        return keyOf(userId) != null;
+    }
+    
+    /**
+     * Adds user to the proxy's list of active users
+     * This method is to be called holding the lock
+     * @param userId
+     * @param key
+     */
+    public void addUser(int userId, SelectionKey key)
+    {
+        AtomicReferenceArray<SelectionKey> keys = userKeys;
+        if (userId >= keys.length()) {
+            AtomicReferenceArray<SelectionKey> grown = new AtomicReferenceArray<SelectionKey>(Math.max(userId + 1, keys.length() * 2));
+            for (int i = 0; i < keys.length(); i++)
+                grown.set(i, keys.get(i));
+            grown.set(userId, key);
+            userKeys = grown;
+        } else {
+            keys.set(userId, key);
+        }
+    }
+    
+    /**
+     * Removes user from the proxy's list of active users
+     * This method is to be called holding the lock
+     * @param userId
+     * @return the key of the user's connection, or null if the user was not connected
+     */
+    public SelectionKey removeUser(int userId)
+    {
+        SelectionKey key = keyOf(userId);
+        if (key != null)
+            userKeys.set(userId, null);
+        return key;
+    }
+    
+    private SelectionKey keyOf(int userId)
+    {
+        AtomicReferenceArray<SelectionKey> keys = userKeys;
+        return (userId >= 0 && userId < keys.length()) ? keys.get(userId) : null;
+    }
+    
+    /**
+     * Dials the given node, retrying until it listens, and introduces this node to it
+     * The nodes listed before this one dial in themselves and introduce themselves with their
+     * own peer_hello, see linkPeer
+     * @param node
+     * @throws IOException
+     */
+    private void connectToPeer(ClusterConfig.Node node) throws IOException
+    {
+        auctioneer.debug("Connecting to peer {} at {}", node.getName(), node.getHost() + ":" + node.getPort());
+        SocketChannel peerChannel = null;
+        while (peerChannel == null) {
+            try {
+                peerChannel = SocketChannel.open(new InetSocketAddress(node.getHost(), node.getPort()));
+            } catch (IOException e) {   // not listening yet
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e1) {
+                    throw new IOException("Interrupted while connecting to " + node.getName());
+                }
+            }
+        }
+        peerChannel.configureBlocking(false);
+        configureSocket(peerChannel);
+        Map<String, Object> clientproperties = newConnectionProperties(peerChannel);
+        SelectionKey key = reactors[0].registerNow(peerChannel, clientproperties);
+        
+        auctioneer.getLock().lock();
+        try {
+            send(key, messageFactory.createPeerHelloMessage(nodeIndex));
+            linkPeer(node.getIndex(), key);
+        } finally {
+            auctioneer.getLock().unlock();
+        }
+        auctioneer.debug("Connected to peer {}", node.getName());
+    }
+    
+    /**
+     * Records the connection of a node of the cluster, from then on its messages are
+     * handled as peer messages
+     * Returns false if the node is unknown or already linked
+     * This method is to be called holding the lock
+     * @param node
+     * @param key
+     * @return
+     */
+    public boolean linkPeer(int node, SelectionKey key)
+    {
+        if (node < 0 || node >= peerKeys.length() || node == nodeIndex || peerKeys.get(node) != null)
+            return false;
+        @SuppressWarnings("unchecked")
+        Map<String, Object> clientProps = (Map<String, Object>) key.attachment();
+        clientProps.put(Auctioneer.clientName, Auctioneer.peerName);
+        clientProps.put(Auctioneer.nodeIndex, node);
+        peerKeys.set(node, key);
+        auctioneer.peerLinked(node);
+        return true;
+    }
+    
+    /**
+     * Returns the node at the other end of the given connection, or null if it is not a peer
+     * @param key
+     * @return
+     */
+    public Integer nodeOf(SelectionKey key)
+    {
+        return (Integer) ((Map<?, ?>) key.attachment()).get(Auctioneer.nodeIndex);
+    }
+    
+    /**
+     * Creates the properties attached to the key of a new connection
+     * @param channel
+     * @return
+     */
+    private Map<String, Object> newConnectionProperties(SocketChannel channel)
+    {
+        Map<String, Object> clientproperties = new HashMap<String, Object>();
+        clientproperties.put(Auctioneer.channelType, Auctioneer.clientChannel);
+        clientproperties.put(Auctioneer.channel, channel);
+        clientproperties.put(Auctioneer.decoder, new FrameDecoder(binaryCodec));
+        clientproperties.put(Auctioneer.outbound, new OutboundQueue(channel));
+        clientproperties.put(Auctioneer.clientName, null);
+        return clientproperties;
+    }
+    
+    /**
+     * Applies the configured socket options to a connection
+     * @param channel
+     * @throws IOException
+     */
+    private void configureSocket(SocketChannel channel) throws IOException
+    {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, options.isTcpNoDelay());
+        if (options.getSendBufferSize() > 0)
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, options.getSendBufferSize());
+        if (options.getReceiveBufferSize() > 0)
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, options.getReceiveBufferSize());
+    }
+    
+    
+    /**
+     * Broadcast a message to all the connected bidders
+     * @param message
+     */
+    public void broadcast(Message message)
+    {
+        EncodedMessage encoded = new EncodedMessage(message, binaryCodec);
+        AtomicReferenceArray<SelectionKey> keys = userKeys;
+        for (int i = 0; i < keys.length(); i++)
+            send(keys.get(i), encoded);
+    }
+    
+    /**
+     * Broadcast a message to all the interested bidders
+     * The message is serialized once and every bidder is written from a view of the same bytes
+     * @param users the ids of the bidders
+     * @param message
+     */
+    public void broadcast(BitSet users, Message message)
+    {
+        EncodedMessage encoded = new EncodedMessage(message, binaryCodec);
+        for (int id = users.nextSetBit(0); id >= 0; id = users.nextSetBit(id + 1))
+            send(keyOf(id), encoded);
+    }
+    
+    /**
+     * Send a message to a user
+     * @param userId
+     * @param message
+     */
+    public void send(int userId, Message message)
+    {
+        send(keyOf(userId), message);
+    }
+    
+    /**
+     * Send a message to every peer auctioneer
+     * Validations queued before it are sent first, so the peers see everything in order
+     * @param message
+     */
+    public void sendToPeer(Message message)
+    {
+        EncodedMessage encoded = new EncodedMessage(message, binaryCodec);
+        for (int node = 0; node < peerKeys.length(); node++) {
+            SelectionKey key = peerKeys.get(node);
+            if (key != null) {
+                synchronized (peerBatches.get(node)) {
+                    flushPeerBatch(node);
+                    send(key, encoded);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Send a message to one peer auctioneer
+     * @param node
+     * @param message
+     */
+    public void sendToPeer(int node, Message message)
+    {
+        synchronized (peerBatches.get(node)) {
+            flushPeerBatch(node);
+            send(peerKeys.get(node), message);
+        }
+    }
+    
+    /**
+     * Queues a got_bid or bid_ok for the given peer
+     * Everything queued until the peer connection's reactor flushes it goes out in one
+     * peer_batch frame, so a burst of bids costs the peer link one frame rather than one
+     * frame and one round trip each. The validations carry sequence numbers, so many of
+     * them can be in flight at once.
+     * @param node
+     * @param message
+     */
+    public void queueForPeer(int node, Message message)
+    {
+        SelectionKey key = peerKeys.get(node);
+        if (key == null || !key.isValid())  // no peer to validate with
+            return;
+        if (options.getPeerBatchSize() <= 1) {
+            sendToPeer(node, message);
+            return;
+        }
+        ArrayList<Message> peerBatch = peerBatches.get(node);
+        synchronized (peerBatch) {
+            peerBatch.add(message);
+        }
+        Reactor reactor = (Reactor) ((Map<?, ?>) key.attachment()).get(Auctioneer.reactor);
+        reactor.markDirty(key);
+    }
+    
+    /**
+     * Moves the validations queued for a peer to its outbound queue, a lone one as a plain
+     * message and the others in frames of at most the configured batch size
+     * The batch stays locked until they are queued, so that a message sent to the peer right
+     * after cannot overtake them
+     * @param node
+     */
+    public void flushPeerBatch(int node)
+    {
+        ArrayList<Message> peerBatch = peerBatches.get(node);
+        synchronized (peerBatch) {
+            int batchSize = options.getPeerBatchSize();
+            for (int i = 0; i < peerBatch.size(); i += batchSize) {
+                List<Message> validations = peerBatch.subList(i, Math.min(i + batchSize, peerBatch.size()));
+                Message m = (validations.size() == 1) ? validations.get(0) : messageFactory.createPeerBatchMessage(validations);
+                peerBatchSizes.record(validations.size());
+                enqueue(peerKeys.get(node), new EncodedMessage(m, binaryCodec));
+            }
+            peerBatch.clear();
+        }
+    }
+    
+    /**
+     * Sends the message to the connection of the specified key
+     * @param key
+     * @param message
+     */
+    public void send(SelectionKey key, Message message)
+    {
+        send(key, new EncodedMessage(message, binaryCodec));
+    }
+    
+    /**
+     * Queues an already encoded message on the outbound queue of the specified connection
+     * Nothing is written here; the connection's reactor flushes every connection that got data
+     * during its current pass, so this never blocks on a slow bidder.
+     * Any thread may send, the outbound queue keeps the messages of each sender in order
+     * @param key
+     * @param encoded
+     */
+    private void send(SelectionKey key, EncodedMessage encoded)
+    {
+        if (enqueue(key, encoded)) {
+            Reactor reactor = (Reactor) ((Map<?, ?>) key.attachment()).get(Auctioneer.reactor);
+            reactor.markDirty(key);
+        }
+    }
+    
+    /**
+     * Queues an encoded message without marking the connection for flushing
+     * Returns true if the message was queued
+     * @param key
+     * @param encoded
+     * @return
+     */
+    private boolean enqueue(SelectionKey key, EncodedMessage encoded)
+    {
+        if (key == null || !key.isValid())  // the user has disconnected
+            return false;
+        
+        Map<?, ?> clientProps = (Map<?, ?>) key.attachment();
+        OutboundQueue queue = (OutboundQueue) clientProps.get(Auctioneer.outbound);
+        if (queue.enqueue(encoded.getBuffer(isBinary(clientProps))))
+            return true;
+        ((Reactor) clientProps.get(Auctioneer.reactor)).markOverflowed(key);
+        return false;
+    }
+    
+    /**
+     * Returns true if the connection with the given properties has switched to the binary protocol
+     * @param clientProps
+     * @return
+     */
+    private boolean isBinary(Map<?, ?> clientProps)
+    {
+        return Constants.protocol_binary.equals(clientProps.get(Auctioneer.protocol));
+    }
+    
+    /**
+     * Closes the connection of the given key and forgets its user
+     * Losing a peer shuts the proxy down
+     * This method takes the lock, and must not be called holding it or a lane lock
+     * @param key
+     */
+    public void dropConnection(SelectionKey key)
+    {
+        if (key.channel().isOpen())
+            connectionClosed(key);
+        try {
+            key.channel().close();
+        } catch (IOException e1) {
+        }
+        Map<?, ?> clientProps = (Map<?, ?>) key.attachment();
+        String userName  = (String) clientProps.get(Auctioneer.clientName);
+        Integer userId   = (Integer) clientProps.get(Auctioneer.userId);
+        if (nodeOf(key) != null) {
+            auctioneer.debug("Connection with peer {} was dropped, exiting...", cluster.getNode(nodeOf(key)).getName());
+            shutdown();
+            return;
+        }
+        if (userId == null)
+            return;
+        boolean removed = false;
+        auctioneer.getLock().lock();
+        try {
+            if (keyOf(userId) == key) {
+                removeUser(userId);
+                removed = true;
+            }
+        } finally {
+            auctioneer.getLock().unlock();
+        }
+        if (removed) {  // the lanes are locked after the registry, never while holding it
+            auctioneer.removeUserFromInterested(userId);
+            auctioneer.debug("User {} disconnected.", userName);
+        }
+    }
+    
+    /**
+     * Records how much was written to a connection that is being closed
+     * @param key
+     */
+    public void connectionClosed(SelectionKey key)
+    {
+        OutboundQueue queue = (OutboundQueue) ((Map<?, ?>) key.attachment()).get(Auctioneer.outbound);
+        if (queue != null)
+            connectionOutbound.record(queue.getBytesWritten());
+    }
+    
+    /**
+     * Accepts incoming connections and spreads them across the reactor threads
+     * Returns once the auctions have ended or a peer was lost
+     * @throws IOException
+     */
+    public void run() throws IOException
+    {
+        auctioneer.debug("Auctioneer starting ...");
+        
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        if (options.isReusePort())
+            enableReusePort(channel);
+        channel.bind(new InetSocketAddress(host, port));
+        channel.configureBlocking(false);
+        
+        reactors = new Reactor[options.getReactorCount()];
+        for (int i = 0; i < reactors.length; i++)
+            reactors[i] = new Reactor(this, auctioneer, i);
+        
+        // the nodes before this one dial in like bidders and say peer_hello
+        for (int i = nodeIndex + 1; i < cluster.getNodeCount(); i++)
+            connectToPeer(cluster.getNode(i));
+        
+        running = true;
+        acceptSelector = Selector.open();
+        channel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        for (Reactor reactor : reactors)
+            reactor.start();
+        auctioneer.debug("Serving connections with {} reactor thread(s)", reactors.length);
+        
+        int nextReactor = 0;
+        while (running) {
+            try {
+                acceptSelector.select(timeToCheck);
+            } catch (IOException e1) {
+                auctioneer.debug("Selector throwed exception: {}", e1);
+                continue;
+            }
+            acceptSelector.selectedKeys().clear();
+            
+            if (auctioneer.haveAuctionsEnded()) {
+                shutdown();
+                break;
+            }
+            
+            // An incoming connection
+            SocketChannel clientSocketChannel;
+            try {
+                while ((clientSocketChannel = channel.accept()) != null) {
+                    // set the client connection to be non blocking
+                    clientSocketChannel.configureBlocking(false);
+                    configureSocket(clientSocketChannel);
+                    reactors[nextReactor].register(newConnectionProperties(clientSocketChannel));
+                    nextReactor = (nextReactor + 1) % reactors.length;
+                    
+                    auctioneer.debug("Connection accepted!");
+                }
+            } catch (IOException e) {
+                auctioneer.debug("Accepting client connection exception: {}", e);
+            }
+        }
+        
+        for (Reactor reactor : reactors) {
+            try {
+                reactor.join();
+            } catch (InterruptedException e) {
+            }
+        }
+        try {
+            acceptSelector.close();
+            channel.close();
+        } catch (IOException e) {
+//            e.printStackTrace();
+        }
+    }
+    
+    private void enableReusePort(ServerSocketChannel channel) throws IOException
+    {
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        } catch (UnsupportedOperationException e) {
+            auctioneer.debug("SO_REUSEPORT is not supported on this platform");
+        }
+    }
+    
+    /**
+     * Stops accepting connections and asks every reactor to flush and close its connections
+     */
+    private void shutdown()
+    {
+        running = false;
+        for (Reactor reactor : reactors)
+            reactor.shutdown();
+        if (acceptSelector != null)
+            acceptSelector.wakeup();
+    }
+    
+    public void closeConnection(int userId, String userName)
+    {
+        try {
+            SelectionKey key = removeUser(userId);
+            if (key != null) {
+                connectionClosed(key);
+                key.channel().close();
+            }
+            auctioneer.debug("User \"{}\" quit.", userName);
+        } catch (IOException e) {
+//            e.printStackTrace();
+        }
+    }
+}
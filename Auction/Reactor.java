@@ -0,0 +1,267 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * An I/O thread with its own selector, serving the connections handed to it by the Proxy.
+ *
+ * Reading and decoding run without any lock, so several reactors work in parallel;
+ * handling a decoded message takes the lock of the lane it is about, or the Auctioneer lock
+ * for the connection registry. Flushing takes no lock: the keys marked for this pass are
+ * taken out under the reactor's monitor and every outbound queue guards itself.
+ */
+public class Reactor extends Thread
+{
+    private Proxy proxy;
+    private Auctioneer auctioneer;
+    private Selector selector;
+    private ByteBuffer readBuffer;
+    private long timeToCheck;
+    private volatile boolean running;
+    private Histogram loopTime;
+    private LongAdder outboundBytes;
+
+    // connections accepted by the Proxy, waiting to be registered with our selector
+    private ConcurrentLinkedQueue<Map<String, Object>> registrations;
+
+    // guarded by this reactor's monitor, marked from any thread
+    private LinkedHashSet<SelectionKey> dirtyKeys;
+    private ArrayList<SelectionKey> overflowedKeys;
+
+    // swapped with the two above at the end of a pass, used by this thread only
+    private LinkedHashSet<SelectionKey> flushingKeys;
+    private ArrayList<SelectionKey> droppingKeys;
+
+    public Reactor(Proxy proxy, Auctioneer auctioneer, int index) throws IOException
+    {
+        super("reactor-" + auctioneer.getType() + "-" + index);
+        this.proxy          = proxy;
+        this.auctioneer     = auctioneer;
+        this.selector       = Selector.open();
+        this.readBuffer     = ByteBuffer.allocate(8192);
+        this.timeToCheck    = 1000;
+        this.registrations  = new ConcurrentLinkedQueue<Map<String, Object>>();
+        this.dirtyKeys      = new LinkedHashSet<SelectionKey>();
+        this.overflowedKeys = new ArrayList<SelectionKey>();
+        this.flushingKeys   = new LinkedHashSet<SelectionKey>();
+        this.droppingKeys   = new ArrayList<SelectionKey>();
+        this.running        = true;
+        this.loopTime       = auctioneer.getMetrics().histogram(Metrics.selectorLoop);
+        this.outboundBytes  = auctioneer.getMetrics().counter(Metrics.outboundBytes);
+    }
+
+    /**
+     * Hands a connection over to this reactor
+     * The properties become the attachment of the connection's key, and must hold the channel
+     * @param clientProps
+     */
+    public void register(Map<String, Object> clientProps)
+    {
+        registrations.add(clientProps);
+        selector.wakeup();
+    }
+
+    /**
+     * Registers a connection right away, to be used before the reactor is started
+     * @param channel
+     * @param clientProps
+     * @return
+     * @throws ClosedChannelException
+     */
+    public SelectionKey registerNow(SocketChannel channel, Map<String, Object> clientProps) throws ClosedChannelException
+    {
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ, clientProps);
+        clientProps.put(Auctioneer.reactor, this);
+        return key;
+    }
+
+    /**
+     * Marks the given key as having data queued for this selector pass
+     * @param key
+     */
+    public void markDirty(SelectionKey key)
+    {
+        boolean added;
+        synchronized (this) {
+            added = dirtyKeys.add(key);
+        }
+        if (added && Thread.currentThread() != this)
+            selector.wakeup();
+    }
+
+    /**
+     * Marks the given key as not keeping up with its outbound messages
+     * @param key
+     */
+    public void markOverflowed(SelectionKey key)
+    {
+        synchronized (this) {
+            overflowedKeys.add(key);
+        }
+        if (Thread.currentThread() != this)
+            selector.wakeup();
+    }
+
+    /**
+     * Asks the reactor to flush what is pending, close its connections and exit
+     */
+    public void shutdown()
+    {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void run()
+    {
+        ArrayList<SelectionKey> writable = new ArrayList<SelectionKey>();
+        ArrayList<SelectionKey> dropped  = new ArrayList<SelectionKey>();
+
+        while (running) {
+            try {
+                selector.select(timeToCheck);
+            } catch (IOException e) {
+                auctioneer.warn("Selector throwed exception: {}", e);
+                continue;
+            }
+            long start = System.nanoTime();
+            registerPending();
+
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+
+                // the socket has room again for data we could not write earlier
+                if (key.isValid() && key.isWritable())
+                    writable.add(key);
+
+                if (key.isValid() && key.isReadable()) {
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    // the read buffer is reused, the decoders copy out any partial frame they keep
+                    readBuffer.clear();
+                    try {
+                        int bytesRead = channel.read(readBuffer);
+                        if (bytesRead > 0) {
+                            readBuffer.flip();
+                            auctioneer.processMessage(readBuffer, key);
+                        } else if (bytesRead < 0) {
+                            dropped.add(key);
+                        }
+                    } catch (ProtocolException e) {
+                        auctioneer.warn("Dropping a connection that broke the protocol: {}", e.getMessage());
+                        dropped.add(key);
+                    } catch (IOException e) {
+                        dropped.add(key);
+                    } catch (RuntimeException e) {   // a bug handling one connection must not stop the others
+                        auctioneer.warn("Dropping a connection after an unexpected error: {}", e);
+                        dropped.add(key);
+                    }
+                }
+            }
+
+            for (SelectionKey key : writable)
+                markDirty(key);
+            for (SelectionKey key : dropped)
+                proxy.dropConnection(key);
+            flushPending();
+            writable.clear();
+            dropped.clear();
+            loopTime.record(System.nanoTime() - start);
+        }
+
+        flushPending();
+        closeAll();
+    }
+
+    private void registerPending()
+    {
+        Map<String, Object> clientProps;
+        while ((clientProps = registrations.poll()) != null) {
+            SocketChannel channel = (SocketChannel) clientProps.get(Auctioneer.channel);
+            try {
+                registerNow(channel, clientProps);
+            } catch (ClosedChannelException e) {
+            }
+        }
+    }
+
+    /**
+     * Flushes every connection that got data queued during this selector pass and
+     * drops the connections whose outbound queue overflowed
+     * Keys marked while this runs are flushed on the next pass, marking them wakes the selector
+     */
+    private void flushPending()
+    {
+        synchronized (this) {
+            LinkedHashSet<SelectionKey> dirty = dirtyKeys;
+            dirtyKeys    = flushingKeys;
+            flushingKeys = dirty;
+            ArrayList<SelectionKey> overflowed = overflowedKeys;
+            overflowedKeys = droppingKeys;
+            droppingKeys   = overflowed;
+        }
+        for (SelectionKey key : flushingKeys)
+            flush(key);
+        flushingKeys.clear();
+
+        for (SelectionKey key : droppingKeys) {
+            if (key.isValid()) {
+                auctioneer.debug("Dropping connection that is not keeping up with its messages");
+                proxy.dropConnection(key);
+            }
+        }
+        droppingKeys.clear();
+    }
+
+    /**
+     * Writes out the outbound queue of the given key, keeping OP_WRITE registered only
+     * while some data is still pending
+     * @param key
+     */
+    private void flush(SelectionKey key)
+    {
+        if (!key.isValid())
+            return;
+        Integer node = proxy.nodeOf(key);
+        if (node != null)
+            proxy.flushPeerBatch(node);
+        OutboundQueue queue = (OutboundQueue) ((Map<?, ?>) key.attachment()).get(Auctioneer.outbound);
+        long written = queue.getBytesWritten();
+        try {
+            if (queue.flush())
+                key.interestOps(SelectionKey.OP_READ);
+            else
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            proxy.dropConnection(key);
+        }
+        outboundBytes.add(queue.getBytesWritten() - written);
+    }
+
+    private void closeAll()
+    {
+        for (SelectionKey key : selector.keys()) {
+            if (key.channel().isOpen())
+                proxy.connectionClosed(key);
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -1,50 +1,108 @@
-import java.io.IOException;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
-
-
-public class ServerLauncher 
-{
-    static final int callerPort = 4444;
-    static final int calleePort = 5556;
-    
-    public static void main(String[] args) throws IOException
-    {
-        String confFile = getConfFile(args);
-        if (confFile == null) 
-            return;
-        
-        Lock debugLock    = new ReentrantLock();
-        Auctioneer caller = new Auctioneer(callerPort, debugLock);
-        Auctioneer callee = new Auctioneer(calleePort, debugLock);
-        caller.makeCaller(calleePort);
-        
-        caller.configure(confFile);
-        callee.configure(confFile);
-        caller.start();
-        callee.start();
-        
-        try {
-            caller.join();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        try {
-            callee.join();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        System.exit(0);
-    }
-    
-    private static String getConfFile(String[] args)
-    {
-        if (args.length != 1) {
-            System.out.println("Usage: java ServerLauncher <configuration file>");
-            return null;
-        } else {
-            return args[0];
-        }
-    }
-}
+import java.io.IOException;
+import java.util.ArrayList;
+
+
+
+public class ServerLauncher 
+{
+    static final int callerPort = 4444;
+    static final int calleePort = 5556;
+    
+    /**
+     * With only a configuration file, runs the two auctioneers of ports 4444 and 5556 in this
+     * process; with a cluster file and a node index, runs that node of the cluster, the others
+     * being started the same way with their own index
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException
+    {
+        String confFile = getConfFile(args);
+        if (confFile == null) 
+            return;
+        
+        ClusterConfig cluster;
+        ArrayList<Integer> nodes = new ArrayList<Integer>();
+        if (args.length == 1) {
+            cluster = ClusterConfig.pair(callerPort, calleePort);
+            nodes.add(0);
+            nodes.add(1);
+        } else {
+            cluster = ClusterConfig.parse(args[1]);
+            int node;
+            try {
+                node = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                node = -1;
+            }
+            if (node < 0 || node >= cluster.getNodeCount()) {
+                System.out.println("Node index must be between 0 and " + (cluster.getNodeCount() - 1));
+                return;
+            }
+            nodes.add(node);
+        }
+        
+        ServerOptions options = ServerOptions.fromSystemProperties();
+        Log log               = Log.fromOptions(options);
+        ArrayList<Auctioneer> auctioneers = new ArrayList<Auctioneer>();
+        for (int node : nodes) {
+            Auctioneer auctioneer = new Auctioneer(cluster.getNode(node).getPort(), log, options);
+            auctioneer.joinCluster(cluster, node);
+            auctioneers.add(auctioneer);
+        }
+        
+        MetricsServer metricsServer = null;
+        if (options.getMetricsPort() > 0) {
+            metricsServer = new MetricsServer(options.getMetricsPort());
+            for (Auctioneer auctioneer : auctioneers)
+                metricsServer.add(auctioneer.getMetrics());
+            try {
+                metricsServer.start();
+            } catch (IOException e) {
+                System.err.println("Unable to serve the metrics on port " + options.getMetricsPort() + ": " + e.getMessage());
+                metricsServer = null;
+            }
+        }
+        
+        for (Auctioneer auctioneer : auctioneers)
+            auctioneer.configure(confFile);
+        
+        AdminServer adminServer = null;
+        if (options.getAdminPort() > 0) {
+            adminServer = new AdminServer(options.getAdminPort(), auctioneers.get(0));
+            try {
+                adminServer.start();
+            } catch (IOException e) {
+                System.err.println("Unable to serve the admin endpoint on port " + options.getAdminPort() + ": " + e.getMessage());
+                adminServer = null;
+            }
+        }
+        
+        for (Auctioneer auctioneer : auctioneers)
+            auctioneer.start();
+        
+        for (Auctioneer auctioneer : auctioneers) {
+            try {
+                auctioneer.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        if (adminServer != null)
+            adminServer.stop();
+        if (metricsServer != null)
+            metricsServer.stop();
+        log.close();
+        System.exit(0);
+    }
+    
+    private static String getConfFile(String[] args)
+    {
+        if (args.length != 1 && args.length != 3) {
+            System.out.println("Usage: java ServerLauncher <configuration file> [<cluster file> <node index>]");
+            return null;
+        } else {
+            return args[0];
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/**
+ * Tunable settings of an auctioneer, read from system properties
+ * (e.g. java -Dauction.reactors=4 ServerLauncher auct_conf.txt)
+ */
+public class ServerOptions
+{
+    // property names
+    public static final String reactors          = "auction.reactors";
+    public static final String reusePort         = "auction.reusePort";
+    public static final String tcpNoDelay        = "auction.tcpNoDelay";
+    public static final String sendBufferSize    = "auction.sendBufferSize";
+    public static final String receiveBufferSize = "auction.receiveBufferSize";
+    public static final String lanes             = "auction.lanes";
+    public static final String timerTick         = "auction.timerTickMillis";
+    public static final String storage           = "auction.storage";
+    public static final String storageDir        = "auction.storageDir";
+    public static final String journal           = "auction.journal";
+    public static final String journalSync       = "auction.journalSyncMillis";
+    public static final String logLevel          = "auction.logLevel";
+    public static final String logFormat         = "auction.logFormat";
+    public static final String logFile           = "auction.logFile";
+    public static final String metricsPort       = "auction.metricsPort";
+    public static final String adminPort         = "auction.adminPort";
+    public static final String peerBatch         = "auction.peerBatch";
+    public static final String bidCoalesce       = "auction.bidCoalesceMillis";
+    public static final String engine            = "auction.engine";
+    public static final String engineRing        = "auction.engineRingSize";
+    public static final String snapshot          = "auction.snapshotMillis";
+
+    // values of the storage property
+    public static final String storageMySql      = "mysql";
+    public static final String storageMapped     = "mapped";
+
+    // values of the engine property
+    public static final String engineLocks       = "locks";
+    public static final String engineSingleWriter = "single-writer";
+
+    // values of the log format property
+    public static final String logText           = "text";
+    public static final String logBinary         = "binary";
+
+    private int reactorCount;
+    private boolean reusePortEnabled;
+    private boolean tcpNoDelayEnabled;
+    private int sendBuffer;
+    private int receiveBuffer;
+    private int laneCount;
+    private int timerTickMillis;
+    private String storageType;
+    private String storageDirectory;
+    private boolean journalEnabled;
+    private int journalSyncMillis;
+    private Log.Level level;
+    private boolean binaryLog;
+    private String logPath;
+    private int metricsHttpPort;
+    private int adminHttpPort;
+    private int peerBatchSize;
+    private int bidCoalesceMillis;
+    private boolean singleWriterEngine;
+    private int engineRingSize;
+    private int snapshotMillis;
+
+    /**
+     * Reads the options from the system properties, using the defaults for missing ones
+     * @return
+     */
+    public static ServerOptions fromSystemProperties()
+    {
+        ServerOptions options = new ServerOptions();
+        options.reactorCount      = Math.max(1, getInt(reactors, Runtime.getRuntime().availableProcessors()));
+        options.reusePortEnabled  = getBoolean(reusePort, false);
+        options.tcpNoDelayEnabled = getBoolean(tcpNoDelay, true);
+        options.sendBuffer        = getInt(sendBufferSize, 0);
+        options.receiveBuffer     = getInt(receiveBufferSize, 0);
+        options.laneCount         = Math.max(1, getInt(lanes, 1));
+        options.timerTickMillis   = Math.max(1, getInt(timerTick, (int) TimerWheel.defaultTickMillis));
+        options.storageType       = System.getProperty(storage, storageMySql).trim();
+        options.storageDirectory  = System.getProperty(storageDir, "data").trim();
+        options.journalEnabled    = getBoolean(journal, false);
+        options.journalSyncMillis = Math.max(0, getInt(journalSync, 10));
+        options.level             = getLevel(logLevel, Log.Level.DEBUG);
+        options.binaryLog         = System.getProperty(logFormat, logText).trim().equals(logBinary);
+        options.logPath           = System.getProperty(logFile, "auction.log").trim();
+        options.metricsHttpPort   = getInt(metricsPort, 0);
+        options.adminHttpPort     = getInt(adminPort, 0);
+        options.peerBatchSize     = Math.max(1, Math.min(getInt(peerBatch, MessageFactory.maxPeerBatch), MessageFactory.maxPeerBatch));
+        options.bidCoalesceMillis = Math.max(0, getInt(bidCoalesce, 0));
+        options.engineRingSize    = Math.max(2, getInt(engineRing, AuctionEngine.defaultRingSize));
+        options.snapshotMillis    = Math.max(0, getInt(snapshot, 0));
+        if (options.snapshotMillis > 0 && !options.journalEnabled) {
+            // a snapshot alone would lose every event after it, the journal replays them
+            System.err.println(snapshot + " needs the journal, enabling " + journal);
+            options.journalEnabled = true;
+        }
+        String engineType = System.getProperty(engine, engineLocks).trim();
+        options.singleWriterEngine = engineType.equals(engineSingleWriter);
+        if (!options.singleWriterEngine && !engineType.equals(engineLocks))
+            System.err.println("Ignoring invalid value \"" + engineType + "\" for " + engine);
+        if (!options.storageType.equals(storageMySql) && !options.storageType.equals(storageMapped)) {
+            System.err.println("Ignoring invalid value \"" + options.storageType + "\" for " + storage);
+            options.storageType = storageMySql;
+        }
+        return options;
+    }
+
+    private static int getInt(String name, int defaultValue)
+    {
+        String value = System.getProperty(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid value \"" + value + "\" for " + name);
+            return defaultValue;
+        }
+    }
+
+    private static Log.Level getLevel(String name, Log.Level defaultValue)
+    {
+        String value = System.getProperty(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Log.Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ignoring invalid value \"" + value + "\" for " + name);
+            return defaultValue;
+        }
+    }
+
+    private static boolean getBoolean(String name, boolean defaultValue)
+    {
+        String value = System.getProperty(name);
+        return (value == null) ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * Number of I/O reactor threads the connections are spread across
+     * @return
+     */
+    public int getReactorCount()
+    {
+        return reactorCount;
+    }
+
+    public boolean isReusePort()
+    {
+        return reusePortEnabled;
+    }
+
+    public boolean isTcpNoDelay()
+    {
+        return tcpNoDelayEnabled;
+    }
+
+    /**
+     * SO_SNDBUF for the accepted connections, 0 keeps the system default
+     * @return
+     */
+    public int getSendBufferSize()
+    {
+        return sendBuffer;
+    }
+
+    /**
+     * SO_RCVBUF for the accepted connections, 0 keeps the system default
+     * @return
+     */
+    public int getReceiveBufferSize()
+    {
+        return receiveBuffer;
+    }
+
+    /**
+     * Number of items auctioned in parallel, must be the same on both auctioneers
+     * @return
+     */
+    public int getLaneCount()
+    {
+        return laneCount;
+    }
+
+    /**
+     * Precision of the auction timers
+     * @return
+     */
+    public int getTimerTickMillis()
+    {
+        return timerTickMillis;
+    }
+
+    /**
+     * Storage backend of the auction results, mysql or mapped
+     * @return
+     */
+    public String getStorage()
+    {
+        return storageType;
+    }
+
+    /**
+     * Directory of the files of the mapped storage
+     * @return
+     */
+    public String getStorageDir()
+    {
+        return storageDirectory;
+    }
+
+    /**
+     * Whether every auction event is journaled, in the storage directory
+     * @return
+     */
+    public boolean isJournalEnabled()
+    {
+        return journalEnabled;
+    }
+
+    /**
+     * Group commit window of the journal, 0 syncs as soon as there are events
+     * @return
+     */
+    public int getJournalSyncMillis()
+    {
+        return journalSyncMillis;
+    }
+
+    /**
+     * Lowest level that is logged
+     * @return
+     */
+    public Log.Level getLogLevel()
+    {
+        return level;
+    }
+
+    /**
+     * Whether the log is written in the compact binary format, to be read with LogDecoder
+     * @return
+     */
+    public boolean isBinaryLog()
+    {
+        return binaryLog;
+    }
+
+    /**
+     * File of the binary log, text is logged to the standard output
+     * @return
+     */
+    public String getLogFile()
+    {
+        return logPath;
+    }
+
+    /**
+     * Local port of the metrics endpoint, 0 if the metrics are only available through JMX
+     * @return
+     */
+    public int getMetricsPort()
+    {
+        return metricsHttpPort;
+    }
+
+    /**
+     * Local port of the endpoint appending items to the catalog, 0 to append none at runtime
+     * @return
+     */
+    public int getAdminPort()
+    {
+        return adminHttpPort;
+    }
+
+    /**
+     * Most bid validations sent to the peer in one frame, 1 to send each one on its own and
+     * at most MessageFactory.maxPeerBatch
+     * @return
+     */
+    public int getPeerBatchSize()
+    {
+        return peerBatchSize;
+    }
+
+    /**
+     * How long a lane holds the highest of the bids arriving for its item before sending only
+     * that one to the peer, 0 to send every bid that raises the price right away
+     * @return
+     */
+    public int getBidCoalesceMillis()
+    {
+        return bidCoalesceMillis;
+    }
+
+    /**
+     * Whether the auction state is changed by a single engine thread fed through a ring buffer,
+     * rather than by the reactor and timer threads holding the lane locks
+     * @return
+     */
+    public boolean isSingleWriterEngine()
+    {
+        return singleWriterEngine;
+    }
+
+    /**
+     * Most events waiting for the single writer engine, rounded up to a power of two
+     * @return
+     */
+    public int getEngineRingSize()
+    {
+        return engineRingSize;
+    }
+
+    /**
+     * Interval of the snapshots of the auctions in progress, in the storage directory, 0 for
+     * none; a restart carries on from the last snapshot and the journal events after it, so
+     * the journal is enabled with the snapshots
+     * @return
+     */
+    public int getSnapshotMillis()
+    {
+        return snapshotMillis;
+    }
+}
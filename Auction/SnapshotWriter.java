@@ -0,0 +1,79 @@
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Takes a snapshot of the auctioneer every interval and writes it out, on its own thread so
+ * that neither the lanes nor the timers wait for the disk
+ *
+ * A restart with the same storage directory carries on from the last snapshot, see
+ * Auctioneer.recover. The snapshot is deleted when the auctions end, so the next start
+ * begins a new auction from the catalog.
+ */
+public class SnapshotWriter extends Thread
+{
+    private Auctioneer auctioneer;
+    private File file;
+    private long intervalMillis;
+    private Histogram writeTime;
+    private volatile boolean running;
+
+    /**
+     * @param auctioneer
+     * @param file
+     * @param intervalMillis
+     */
+    public SnapshotWriter(Auctioneer auctioneer, File file, long intervalMillis)
+    {
+        super("snapshot");
+        setDaemon(true);
+        this.auctioneer     = auctioneer;
+        this.file           = file;
+        this.intervalMillis = intervalMillis;
+        this.writeTime      = auctioneer.getMetrics().histogram(Metrics.snapshotWrite);
+        this.running        = true;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Stops taking snapshots, waiting for one being written to be done
+     */
+    public void shutdown()
+    {
+        running = false;
+        synchronized (this) {
+            notify();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+        }
+    }
+
+    public void run()
+    {
+        while (running) {
+            synchronized (this) {
+                try {
+                    wait(intervalMillis);
+                } catch (InterruptedException e) {
+                }
+            }
+            if (!running || auctioneer.haveAuctionsEnded())
+                break;
+            long start = System.nanoTime();
+            try {
+                AuctionSnapshot snapshot = auctioneer.takeSnapshot();
+                if (snapshot != null)
+                    snapshot.write(file);
+            } catch (IOException e) {
+                System.err.println("Unable to write the snapshot " + file + ": " + e.getMessage());
+            }
+            writeTime.record(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+import java.io.IOException;
+import java.util.List;
+
+
+/**
+ * Where DBServer keeps the items and the auction results
+ * Backends are used by a single thread at a time: the auctioneer while configuring,
+ * then the DBServer writer thread.
+ */
+public interface StorageBackend
+{
+    /**
+     * Opens the storage, failing if it cannot be used
+     * @throws IOException
+     */
+    void open() throws IOException;
+
+    /**
+     * Replaces the stored items with the ones about to be auctioned
+     * The items are streamed from the catalog, they are not all in memory at once
+     * @param items
+     * @throws IOException
+     */
+    void initItems(Iterable<Item> items) throws IOException;
+
+    /**
+     * Stores items appended to the catalog while the auctions run, keeping the others
+     * @param items
+     * @throws IOException
+     */
+    void addItems(List<Item> items) throws IOException;
+
+    /**
+     * Stores a batch of auction results, all or none of them
+     * @param results
+     * @throws IOException
+     */
+    void writeResults(List<AuctionResult> results) throws IOException;
+
+    /**
+     * Returns the stored result of the given item, or null if it has none
+     * @param itemId
+     * @return
+     * @throws IOException
+     */
+    AuctionResult getResult(int itemId) throws IOException;
+
+    void close();
+
+    String getName();
+}
@@ -0,0 +1,82 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A ReentrantLock that records how long threads wait for it and how long they hold it
+ *
+ * Only the outermost acquisition of a thread is timed, a reentrant lock() is not a new hold.
+ */
+public class TimedLock implements Lock
+{
+    private ReentrantLock lock;
+    private Histogram waitTime;
+    private Histogram holdTime;
+    private long acquiredAt;     // written and read by the owner only
+
+    public TimedLock(Metrics metrics)
+    {
+        this(metrics.histogram(Metrics.lockWait), metrics.histogram(Metrics.lockHold));
+    }
+
+    public TimedLock(Histogram waitTime, Histogram holdTime)
+    {
+        this.lock     = new ReentrantLock();
+        this.waitTime = waitTime;
+        this.holdTime = holdTime;
+    }
+
+    public void lock()
+    {
+        long start = System.nanoTime();
+        lock.lock();
+        acquired(start);
+    }
+
+    public void lockInterruptibly() throws InterruptedException
+    {
+        long start = System.nanoTime();
+        lock.lockInterruptibly();
+        acquired(start);
+    }
+
+    public boolean tryLock()
+    {
+        long start = System.nanoTime();
+        if (!lock.tryLock())
+            return false;
+        acquired(start);
+        return true;
+    }
+
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException
+    {
+        long start = System.nanoTime();
+        if (!lock.tryLock(time, unit))
+            return false;
+        acquired(start);
+        return true;
+    }
+
+    public void unlock()
+    {
+        if (lock.getHoldCount() == 1)
+            holdTime.record(System.nanoTime() - acquiredAt);
+        lock.unlock();
+    }
+
+    public Condition newCondition()
+    {
+        return lock.newCondition();
+    }
+
+    private void acquired(long start)
+    {
+        if (lock.getHoldCount() == 1) {
+            acquiredAt = System.nanoTime();
+            waitTime.record(acquiredAt - start);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A hashed timing wheel: a single thread serving any number of timeouts.
+ *
+ * Scheduling and cancelling a timeout are O(1), and pushing the deadline of a pending
+ * timeout further out only updates a field, so it costs next to nothing even when it
+ * happens on every new high bid. Timeouts fire with a precision of one tick.
+ * Tasks run on the wheel thread, one after the other, so they must not block for long.
+ */
+public class TimerWheel extends Thread
+{
+    public static final long defaultTickMillis = 10;
+    public static final int defaultWheelSize   = 512;
+
+    private enum Status { PENDING, EXPIRED, CANCELLED }
+
+    /**
+     * Handle of a scheduled task
+     */
+    public class Timeout
+    {
+        private Runnable task;
+        private volatile long deadline;   // nanoseconds, relative to the wheel's start time
+        private long remainingRounds;
+        private volatile Status status;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline)
+        {
+            this.task     = task;
+            this.deadline = deadline;
+            this.status   = Status.PENDING;
+        }
+
+        /**
+         * Cancels the timeout, the task will not run unless it has already been started
+         * @return false if the timeout had already expired or was cancelled
+         */
+        public boolean cancel()
+        {
+            synchronized (TimerWheel.this) {
+                if (status != Status.PENDING)
+                    return false;
+                status = Status.CANCELLED;
+                bucket.remove(this);
+                return true;
+            }
+        }
+
+        /**
+         * Moves the deadline to the given delay from now
+         * A pending timeout keeps its place in the wheel when the deadline moves further out,
+         * it is put in the right bucket when its old one comes up; an expired timeout is
+         * scheduled again
+         * @param delayMillis
+         */
+        public void reschedule(long delayMillis)
+        {
+            long newDeadline = deadlineOf(delayMillis);
+            synchronized (TimerWheel.this) {
+                if (status == Status.CANCELLED)
+                    return;
+                if (status == Status.PENDING) {
+                    if (newDeadline >= deadline) {
+                        deadline = newDeadline;
+                        return;
+                    }
+                    bucket.remove(this);
+                }
+                deadline = newDeadline;
+                status   = Status.PENDING;
+                add(this);
+            }
+        }
+
+        public boolean isCancelled()
+        {
+            return status == Status.CANCELLED;
+        }
+
+        /**
+         * Returns true if the deadline has passed and the timeout was not cancelled
+         * A task can use it to tell whether it still has work to do, since the deadline
+         * may have been moved after the task was started
+         * @return
+         */
+        public boolean isDue()
+        {
+            return status != Status.CANCELLED && System.nanoTime() - startTime >= deadline;
+        }
+    }
+
+    /**
+     * A slot of the wheel, a doubly linked list of timeouts
+     */
+    private static class Bucket
+    {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout)
+        {
+            timeout.bucket = this;
+            timeout.prev   = tail;
+            timeout.next   = null;
+            if (tail == null)
+                head = timeout;
+            else
+                tail.next = timeout;
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout)
+        {
+            if (timeout.prev == null)
+                head = timeout.next;
+            else
+                timeout.prev.next = timeout.next;
+            if (timeout.next == null)
+                tail = timeout.prev;
+            else
+                timeout.next.prev = timeout.prev;
+            timeout.prev   = null;
+            timeout.next   = null;
+            timeout.bucket = null;
+        }
+    }
+
+    private Bucket[] wheel;
+    private int mask;
+    private long tickNanos;
+    private long startTime;
+    private long tick;     // the next tick to be processed, guarded by this
+    private volatile boolean running;
+
+    public TimerWheel(String name)
+    {
+        this(name, defaultTickMillis, defaultWheelSize);
+    }
+
+    /**
+     * @param name
+     * @param tickMillis the duration of a tick
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(String name, long tickMillis, int wheelSize)
+    {
+        super(name);
+        setDaemon(true);
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel     = new Bucket[size];
+        this.mask      = size - 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        this.startTime = System.nanoTime();
+        this.tick      = 0;
+        this.running   = true;
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+    }
+
+    /**
+     * Schedules a task to run on the wheel thread after the given delay
+     * @param task
+     * @param delayMillis
+     * @return
+     */
+    public Timeout schedule(Runnable task, long delayMillis)
+    {
+        Timeout timeout = new Timeout(task, deadlineOf(delayMillis));
+        synchronized (this) {
+            add(timeout);
+        }
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel thread, pending timeouts are dropped
+     */
+    public void shutdown()
+    {
+        running = false;
+        interrupt();
+    }
+
+    private long deadlineOf(long delayMillis)
+    {
+        return System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+    }
+
+    /**
+     * Puts a timeout in the bucket of its deadline
+     * This method is to be called synchronized on the wheel
+     * @param timeout
+     */
+    private void add(Timeout timeout)
+    {
+        long ticks = timeout.deadline / tickNanos;
+        timeout.remainingRounds = Math.max(0, ticks - tick) / wheel.length;
+        wheel[(int) (Math.max(ticks, tick) & mask)].add(timeout);
+    }
+
+    public void run()
+    {
+        ArrayList<Timeout> expired = new ArrayList<Timeout>();
+        ArrayList<Timeout> moved   = new ArrayList<Timeout>();
+
+        while (running) {
+            if (!waitForNextTick())
+                break;
+
+            synchronized (this) {
+                expire(wheel[(int) (tick & mask)], expired, moved);
+                tick++;
+                for (Timeout timeout : moved)
+                    add(timeout);
+            }
+            moved.clear();
+
+            for (Timeout timeout : expired) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    /**
+     * Sleeps till the end of the current tick
+     * @return false if the wheel was shut down meanwhile
+     */
+    private boolean waitForNextTick()
+    {
+        long tickEnd = (tick + 1) * tickNanos;
+        long sleepNanos;
+        while ((sleepNanos = tickEnd - (System.nanoTime() - startTime)) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException e) {
+                if (!running)
+                    return false;
+            }
+        }
+        return running;
+    }
+
+    /**
+     * Collects the timeouts of the bucket that are due, and takes out the ones whose
+     * deadline was pushed further out so that they are added again after the tick
+     * This method is to be called synchronized on the wheel
+     * @param bucket
+     * @param expired
+     * @param moved
+     */
+    private void expire(Bucket bucket, ArrayList<Timeout> expired, ArrayList<Timeout> moved)
+    {
+        long now = System.nanoTime() - startTime;
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else if (timeout.deadline > now) {
+                bucket.remove(timeout);
+                moved.add(timeout);
+            } else {
+                bucket.remove(timeout);
+                timeout.status = Status.EXPIRED;
+                expired.add(timeout);
+            }
+            timeout = next;
+        }
+    }
+}
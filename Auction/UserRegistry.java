@@ -0,0 +1,145 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/**
+ * Interns user names into dense int ids
+ *
+ * The server refers to users by id everywhere past the connection, names are only looked up
+ * to talk to bidders. Every auctioneer hands out the ids congruent to its node index modulo
+ * the node count, so ids never clash between peers; a peer announces the ids of its users
+ * with user_joined and they are recorded here as well.
+ * An id stays bound to its name for the life of the server, so a user that reconnects
+ * keeps its id; a name a peer announced cannot connect here, as it would get the same id.
+ * Users are registered holding the Auctioneer lock, but the lanes look names up holding
+ * only their own lock, so every method is synchronized on the registry.
+ */
+public class UserRegistry
+{
+    public static final int noUser = -1;
+
+    private int nodeIndex;
+    private int nodeCount;
+    private int nextLocal;
+    private HashMap<String, Integer> ids;
+    private ArrayList<String> names;   // indexed by id
+
+    public UserRegistry(int nodeIndex, int nodeCount)
+    {
+        this.nodeIndex = nodeIndex;
+        this.nodeCount = nodeCount;
+        this.nextLocal = 0;
+        this.ids       = new HashMap<String, Integer>();
+        this.names     = new ArrayList<String>();
+    }
+
+    /**
+     * Returns the id of a user connected to this auctioneer, assigning one if needed
+     * @param name
+     * @return the id, or noUser if the name belongs to a user of another node
+     */
+    public synchronized int register(String name)
+    {
+        Integer id = ids.get(name);
+        if (id != null)
+            return isLocal(id) ? id : noUser;
+        int newId = nextLocal++ * nodeCount + nodeIndex;
+        bind(newId, name);
+        return newId;
+    }
+
+    /**
+     * Records the id a peer assigned to one of its users
+     * If a user of this node took the same name before the peer's announcement arrived, the
+     * name keeps meaning the local user here; the remote id still gets its name
+     * @param id
+     * @param name
+     */
+    public synchronized void registerRemote(int id, String name)
+    {
+        Integer existing = ids.get(name);
+        if (existing != null && existing != id && isLocal(existing))
+            setName(id, name);
+        else
+            bind(id, name);
+    }
+
+    /**
+     * Binds a user to the id it had before a restart, local or remote, so that the ids
+     * handed out from now on do not clash with it
+     * @param id
+     * @param name
+     */
+    public synchronized void registerRecovered(int id, String name)
+    {
+        bind(id, name);
+        if (isLocal(id))
+            nextLocal = Math.max(nextLocal, id / nodeCount + 1);
+    }
+
+    /**
+     * Returns the names of all the users, indexed by id, null for unused ids
+     * @return
+     */
+    public synchronized ArrayList<String> getNames()
+    {
+        return new ArrayList<String>(names);
+    }
+
+    /**
+     * Returns the id of the given user, or noUser if the name is unknown
+     * @param name
+     * @return
+     */
+    public synchronized int idOf(String name)
+    {
+        Integer id = ids.get(name);
+        return (id == null) ? noUser : id;
+    }
+
+    /**
+     * Returns the name of the given user, or null for an unknown id
+     * @param id
+     * @return
+     */
+    public synchronized String nameOf(int id)
+    {
+        return (id >= 0 && id < names.size()) ? names.get(id) : null;
+    }
+
+    /**
+     * Returns true if the id was handed out by this auctioneer
+     * @param id
+     * @return
+     */
+    public boolean isLocal(int id)
+    {
+        return id >= 0 && id % nodeCount == nodeIndex;
+    }
+
+    /**
+     * Returns the ids handed out by this auctioneer, in order
+     * @return
+     */
+    public synchronized ArrayList<Integer> getLocalIds()
+    {
+        ArrayList<Integer> local = new ArrayList<Integer>();
+        for (int id = nodeIndex; id < names.size(); id += nodeCount)
+            if (names.get(id) != null)
+                local.add(id);
+        return local;
+    }
+
+    private void bind(int id, String name)
+    {
+        setName(id, name);
+        ids.put(name, id);
+    }
+
+    private void setName(int id, String name)
+    {
+        while (names.size() <= id)
+            names.add(null);
+        names.set(id, name);
+    }
+}
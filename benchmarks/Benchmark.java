@@ -0,0 +1,52 @@
+/**
+ * A benchmark run by BenchmarkRunner
+ *
+ * A benchmark is run once for every parameter it declares. The runner calls setup() once,
+ * then before every warmup and measurement iteration setupIteration(), and while the iteration
+ * lasts every benchmark thread calls operation() in a loop. Whatever operation() returns is
+ * consumed by the runner, so the JIT cannot drop the work that computed it.
+ * Any data a benchmark generates must come from a fixed seed, so that runs compare.
+ */
+public abstract class Benchmark
+{
+    public abstract String getName();
+
+    /**
+     * The values the benchmark is run with, as in JMH's @Param
+     * @return
+     */
+    public String[] getParams()
+    {
+        return new String[] { "" };
+    }
+
+    /**
+     * Number of threads calling operation() at the same time
+     * @param param
+     * @return
+     */
+    public int getThreads(String param)
+    {
+        return 1;
+    }
+
+    public void setup(String param) throws Exception
+    {
+    }
+
+    public void setupIteration() throws Exception
+    {
+    }
+
+    /**
+     * Runs one operation
+     * @param thread the index of the calling benchmark thread
+     * @return
+     * @throws Exception
+     */
+    public abstract long operation(int thread) throws Exception;
+
+    public void teardown() throws Exception
+    {
+    }
+}
@@ -0,0 +1,258 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CyclicBarrier;
+
+
+/**
+ * Runs the benchmarks of the auction hot paths
+ *
+ *   javac -d out Auction/*.java && javac -cp out -d out benchmarks/*.java
+ *   java -cp out BenchmarkRunner [-wi 5] [-i 10] [-r 1000] [-f 1] [-csv results.csv] [names...]
+ *
+ * Every benchmark and parameter runs in -f freshly started JVMs (0 runs it in this one), each doing
+ * -wi warmup and -i measured iterations of -r milliseconds. Forking keeps the JIT profile of one
+ * benchmark from leaking into the next, so that numbers compare from run to run.
+ * The throughput of every measured iteration of every fork is reported with its mean, standard
+ * deviation and range, and with -csv appended to a file for comparing runs.
+ */
+public class BenchmarkRunner
+{
+    private static final String resultPrefix = "RESULT ";
+
+    private int warmupIterations = 5;
+    private int iterations       = 10;
+    private long iterationMillis = 1000;
+    private int forks            = 1;
+    private String csvFile;
+    private List<String> filters = new ArrayList<String>();
+
+    // consumed results, so that the JIT cannot eliminate the benchmarked work
+    private volatile long sink;
+    private volatile boolean stopped;
+
+    static Benchmark[] benchmarks()
+    {
+        return new Benchmark[] {
+            new FrameDecoderBenchmark(),
+            new MessageToStringBenchmark(),
+            new BroadcastBenchmark(),
+            new BidContentionBenchmark(),
+        };
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        BenchmarkRunner runner = new BenchmarkRunner();
+        if (args.length >= 3 && args[0].equals("-child")) {
+            runner.parseOptions(args, 3);
+            runner.runChild(args[1], Integer.parseInt(args[2]));
+            System.exit(0);
+        }
+        runner.parseOptions(args, 0);
+        runner.runAll();
+        System.exit(0);
+    }
+
+    private void parseOptions(String[] args, int i)
+    {
+        for (; i < args.length; i++) {
+            switch (args[i]) {
+            case "-wi":  warmupIterations = Integer.parseInt(args[++i]); break;
+            case "-i":   iterations       = Integer.parseInt(args[++i]); break;
+            case "-r":   iterationMillis  = Long.parseLong(args[++i]); break;
+            case "-f":   forks            = Integer.parseInt(args[++i]); break;
+            case "-csv": csvFile          = args[++i]; break;
+            default:     filters.add(args[i]);
+            }
+        }
+    }
+
+    private boolean selected(Benchmark benchmark)
+    {
+        if (filters.isEmpty())
+            return true;
+        for (String filter : filters)
+            if (benchmark.getName().contains(filter))
+                return true;
+        return false;
+    }
+
+    private void runAll() throws Exception
+    {
+        System.out.printf("%d warmup, %d measured iterations of %d ms, %d fork(s)%n%n",
+                warmupIterations, iterations, iterationMillis, forks);
+        System.out.printf("%-24s %-16s %7s %14s %12s %22s %12s%n",
+                "Benchmark", "Param", "Threads", "ops/s", "+-stddev", "min..max", "ns/op");
+
+        for (Benchmark benchmark : benchmarks()) {
+            if (!selected(benchmark))
+                continue;
+            String[] params = benchmark.getParams();
+            for (int p = 0; p < params.length; p++) {
+                ArrayList<Double> results = new ArrayList<Double>();
+                if (forks == 0) {
+                    results.addAll(measure(benchmark, params[p]));
+                } else {
+                    for (int f = 0; f < forks; f++)
+                        results.addAll(fork(benchmark, p));
+                }
+                report(benchmark.getName(), params[p], benchmark.getThreads(params[p]), results);
+            }
+        }
+    }
+
+    private void runChild(String name, int paramIndex) throws Exception
+    {
+        for (Benchmark benchmark : benchmarks()) {
+            if (!benchmark.getName().equals(name))
+                continue;
+            StringBuilder line = new StringBuilder(resultPrefix);
+            for (double result : measure(benchmark, benchmark.getParams()[paramIndex]))
+                line.append(result).append(' ');
+            System.out.println(line.toString().trim());
+        }
+    }
+
+    /**
+     * Runs the benchmark in a new JVM with the same class path and JVM arguments
+     */
+    private List<Double> fork(Benchmark benchmark, int paramIndex) throws IOException, InterruptedException
+    {
+        ArrayList<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + "/bin/java");
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(BenchmarkRunner.class.getName());
+        command.add("-child");
+        command.add(benchmark.getName());
+        command.add(String.valueOf(paramIndex));
+        command.add("-wi");
+        command.add(String.valueOf(warmupIterations));
+        command.add("-i");
+        command.add(String.valueOf(iterations));
+        command.add("-r");
+        command.add(String.valueOf(iterationMillis));
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        ArrayList<Double> results = new ArrayList<Double>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (!line.startsWith(resultPrefix))
+                continue;
+            for (String value : line.substring(resultPrefix.length()).split(" "))
+                results.add(Double.parseDouble(value));
+        }
+        if (process.waitFor() != 0 || results.isEmpty())
+            throw new IOException("The fork running " + benchmark.getName() + " failed");
+        return results;
+    }
+
+    /**
+     * Runs the warmup and measured iterations of one benchmark and parameter
+     * @return the throughput of every measured iteration, in operations per second
+     */
+    private List<Double> measure(final Benchmark benchmark, String param) throws Exception
+    {
+        benchmark.setup(param);
+        final int threads = benchmark.getThreads(param);
+        final long[] operations = new long[threads];
+        final CyclicBarrier start = new CyclicBarrier(threads + 1);
+        final CyclicBarrier end   = new CyclicBarrier(threads + 1);
+        final Throwable[] failure = new Throwable[1];
+        final int rounds = warmupIterations + iterations;
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            workers[t] = new Thread("benchmark-" + t) {
+                public void run() {
+                    try {
+                        for (int round = 0; round < rounds; round++) {
+                            start.await();
+                            long count = 0;
+                            long consumed = 0;
+                            do {
+                                for (int k = 0; k < 64; k++)
+                                    consumed += benchmark.operation(index);
+                                count += 64;
+                            } while (!stopped);
+                            operations[index] = count;
+                            sink += consumed;
+                            end.await();
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                        start.reset();
+                        end.reset();
+                    }
+                }
+            };
+            workers[t].setDaemon(true);
+            workers[t].start();
+        }
+
+        ArrayList<Double> results = new ArrayList<Double>();
+        for (int round = 0; round < rounds; round++) {
+            benchmark.setupIteration();
+            System.gc();
+            stopped = false;
+            start.await();
+            long begin = System.nanoTime();
+            Thread.sleep(iterationMillis);
+            stopped = true;
+            end.await();
+            long elapsed = System.nanoTime() - begin;
+            if (failure[0] != null)
+                throw new RuntimeException(benchmark.getName() + " failed", failure[0]);
+
+            long total = 0;
+            for (long count : operations)
+                total += count;
+            if (round >= warmupIterations)
+                results.add(total * 1e9 / elapsed);
+        }
+        benchmark.teardown();
+        return results;
+    }
+
+    private void report(String name, String param, int threads, List<Double> results) throws IOException
+    {
+        double mean = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (double result : results) {
+            mean += result;
+            min = Math.min(min, result);
+            max = Math.max(max, result);
+        }
+        mean /= results.size();
+        double variance = 0;
+        for (double result : results)
+            variance += (result - mean) * (result - mean);
+        double stddev = (results.size() > 1) ? Math.sqrt(variance / (results.size() - 1)) : 0;
+        double nanosPerOp = threads * 1e9 / mean;
+
+        System.out.printf(Locale.ROOT, "%-24s %-16s %7d %14.0f %12.0f %22s %12.1f%n", name, param, threads,
+                mean, stddev, String.format(Locale.ROOT, "%.0f..%.0f", min, max), nanosPerOp);
+
+        if (csvFile != null) {
+            boolean created = !new File(csvFile).exists();
+            PrintWriter csv = new PrintWriter(new FileWriter(csvFile, true));
+            if (created)
+                csv.println("time,benchmark,param,threads,ops_per_s,stddev,min,max,ns_per_op");
+            csv.printf(Locale.ROOT, "%d,%s,%s,%d,%.1f,%.1f,%.1f,%.1f,%.2f%n", System.currentTimeMillis(),
+                    name, param, threads, mean, stddev, min, max, nanosPerOp);
+            csv.close();
+        }
+    }
+}
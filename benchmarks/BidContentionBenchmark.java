@@ -0,0 +1,134 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+
+/**
+ * my_bid frames going through Auctioneer.processMessage into the bid handling of the lane,
+ * from several bidders at the same time, as the reactor threads do
+ *
+ * The parameter is the number of threads, each one a different bidder. The auction is set up
+ * to be accepting bids and its timers never fire. Every thread replays its own frames, whose
+ * amounts interleave with the other threads' so that most bids raise the price; the auctioneer
+ * runs without peers, so such a bid becomes the highest one at once, and a bid that arrives after
+ * a higher one is rejected, as it would be.
+ */
+public class BidContentionBenchmark extends Benchmark
+{
+    private static final int framesPerThread = 4096;
+    private static final int itemId = 1;
+    private static final int startingPrice = 100;
+
+    private Auctioneer auctioneer;
+    private Lock lock;
+    private Item item;
+    private SelectionKey[] keys;
+    private ByteBuffer[][] frames;
+    private int[] next;
+
+    public String getName()
+    {
+        return "Auctioneer.handleBid";
+    }
+
+    public String[] getParams()
+    {
+        return new String[] { "1", "2", "4", "8" };
+    }
+
+    public int getThreads(String param)
+    {
+        return Integer.parseInt(param);
+    }
+
+    public void setup(String param) throws Exception
+    {
+        int threads = getThreads(param);
+        File dir = Files.createTempDirectory("auction-bench").toFile();
+        System.setProperty(ServerOptions.storage, ServerOptions.storageMapped);
+        System.setProperty(ServerOptions.storageDir, dir.getPath());
+        File conf = new File(dir, "auct_conf.txt");
+        FileWriter out = new FileWriter(conf);
+        out.write("3600\n1\n" + startingPrice + " benchmark item\n");   // the timers never fire
+        out.close();
+
+        Log log = Log.text(Log.Level.ERROR, System.out);
+        auctioneer = new Auctioneer(0, log, ServerOptions.fromSystemProperties());
+        auctioneer.configure(conf.getPath());
+        Proxy proxy = auctioneer.getProxy();
+        Reactor reactor = new Reactor(proxy, auctioneer, 0);
+        MessageFactory factory = new MessageFactory();
+        BinaryCodec binaryCodec = new BinaryCodec();
+
+        keys   = new SelectionKey[threads];
+        frames = new ByteBuffer[threads][framesPerThread];
+        next   = new int[threads];
+        AuctionLane lane = auctioneer.getLane(itemId);
+        lock = lane.getLock();
+
+        lock.lock();
+        try {
+            lane.beginNextAuction();
+            for (int t = 0; t < threads; t++) {
+                String name = "bidder" + t + "@localhost:4444";
+                int id = auctioneer.getUsers().register(name);
+                Map<String, Object> clientProps = new HashMap<String, Object>();
+                clientProps.put(Auctioneer.channelType, Auctioneer.clientChannel);
+                clientProps.put(Auctioneer.decoder, new FrameDecoder(binaryCodec));
+                clientProps.put(Auctioneer.outbound, new OutboundQueue(new NullChannel()));
+                clientProps.put(Auctioneer.reactor, reactor);
+                clientProps.put(Auctioneer.clientName, name);
+                clientProps.put(Auctioneer.userId, id);
+                keys[t] = new DetachedKey(clientProps);
+                auctioneer.getLock().lock();   // the registry lock, taken after the lane lock
+                try {
+                    proxy.addUser(id, keys[t]);
+                } finally {
+                    auctioneer.getLock().unlock();
+                }
+                lane.handleInterest(id, factory.createIAmInterestedMessage(name, itemId));
+
+                for (int i = 0; i < framesPerThread; i++) {
+                    int amount = startingPrice + 1 + i * threads + t;
+                    Message bid = factory.createMyBidMessage(name, amount, itemId);
+                    frames[t][i] = new EncodedMessage(bid, binaryCodec).getBuffer(false);
+                }
+            }
+
+            // as if the interest period had ended
+            lane.interestTimerEnded();
+            item = lane.getCurrentItem();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts the bidding over, so that every iteration sees rising bids first
+     */
+    public void setupIteration()
+    {
+        lock.lock();
+        try {
+            item.setTempBid(startingPrice);
+            item.setCurrentBid(startingPrice);
+        } finally {
+            lock.unlock();
+        }
+        for (int t = 0; t < next.length; t++)
+            next[t] = 0;
+    }
+
+    public long operation(int thread) throws Exception
+    {
+        int i = next[thread];
+        next[thread] = (i + 1) % framesPerThread;
+        auctioneer.processMessage(frames[thread][i].duplicate(), keys[thread]);
+        return i;
+    }
+}
@@ -0,0 +1,66 @@
+import java.nio.channels.SelectionKey;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Proxy.broadcast of a new_high_bid to the interested bidders, followed by the flush of every
+ * connection that the reactor does at the end of its pass
+ *
+ * The parameter is the number of bidders, every other one speaking the binary protocol.
+ * The connections are in-memory channels that accept everything, so this measures the
+ * encoding, queueing and gathering writes and none of the kernel's work.
+ */
+public class BroadcastBenchmark extends Benchmark
+{
+    private Proxy proxy;
+    private BitSet users;
+    private OutboundQueue[] queues;
+    private Message message;
+
+    public String getName()
+    {
+        return "Proxy.broadcast";
+    }
+
+    public String[] getParams()
+    {
+        return new String[] { "10", "100", "1000" };
+    }
+
+    public void setup(String param) throws Exception
+    {
+        int bidders = Integer.parseInt(param);
+        Log log = Log.text(Log.Level.ERROR, System.out);
+        Auctioneer auctioneer = new Auctioneer(0, log, ServerOptions.fromSystemProperties());
+        proxy = auctioneer.getProxy();
+        Reactor reactor = new Reactor(proxy, auctioneer, 0);
+
+        users  = new BitSet();
+        queues = new OutboundQueue[bidders];
+        for (int id = 0; id < bidders; id++) {
+            queues[id] = new OutboundQueue(new NullChannel());
+            Map<String, Object> clientProps = new HashMap<String, Object>();
+            clientProps.put(Auctioneer.channelType, Auctioneer.clientChannel);
+            clientProps.put(Auctioneer.outbound, queues[id]);
+            clientProps.put(Auctioneer.reactor, reactor);
+            clientProps.put(Auctioneer.clientName, "bidder" + id + "@localhost:4444");
+            clientProps.put(Auctioneer.userId, id);
+            if (id % 2 == 1)
+                clientProps.put(Auctioneer.protocol, Constants.protocol_binary);
+            SelectionKey key = new DetachedKey(clientProps);
+            proxy.addUser(id, key);
+            users.set(id);
+        }
+        message = new MessageFactory().createNewHighBidMessage("bidder7@localhost:4444", 1250, 3);
+    }
+
+    public long operation(int thread) throws Exception
+    {
+        proxy.broadcast(users, message);
+        for (OutboundQueue queue : queues)
+            queue.flush();
+        return queues.length;
+    }
+}
@@ -0,0 +1,45 @@
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectionKey;
+import java.util.Map;
+
+
+/**
+ * A selection key that belongs to no selector, carrying the attachment of a connection
+ * so that the Proxy and the Auctioneer can be driven without sockets
+ */
+public class DetachedKey extends AbstractSelectionKey
+{
+    private int interestOps;
+
+    public DetachedKey(Map<String, Object> clientProps)
+    {
+        attach(clientProps);
+    }
+
+    public SelectableChannel channel()
+    {
+        return null;
+    }
+
+    public Selector selector()
+    {
+        return null;
+    }
+
+    public int interestOps()
+    {
+        return interestOps;
+    }
+
+    public DetachedKey interestOps(int ops)
+    {
+        interestOps = ops;
+        return this;
+    }
+
+    public int readyOps()
+    {
+        return 0;
+    }
+}
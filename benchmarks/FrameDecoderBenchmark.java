@@ -0,0 +1,84 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+
+/**
+ * Decoding of the data read from a connection, as Auctioneer.processMessage does it
+ *
+ * Parameters are <protocol>/<messages per read>[/split]: a read buffer holds that many bidder
+ * messages, and split cuts the same bytes into 7 byte reads so that most frames arrive in pieces.
+ * An operation decodes every message of one read buffer.
+ */
+public class FrameDecoderBenchmark extends Benchmark
+{
+    private static final int splitReadSize = 7;
+
+    private BinaryCodec binaryCodec;
+    private ByteBuffer[] reads;
+    private FrameDecoder decoder;
+    private int next;
+
+    public String getName()
+    {
+        return "FrameDecoder.next";
+    }
+
+    public String[] getParams()
+    {
+        return new String[] { "text/1", "text/32", "text/32/split", "binary/1", "binary/32", "binary/32/split" };
+    }
+
+    public void setup(String param)
+    {
+        String[] parts = param.split("/");
+        boolean binary = parts[0].equals("binary");
+        int messages = Integer.parseInt(parts[1]);
+        boolean split = (parts.length > 2);
+
+        binaryCodec = new BinaryCodec();
+        MessageFactory factory = new MessageFactory();
+        Random random = new Random(42);
+        ByteBuffer data = ByteBuffer.allocate(64 * 1024);
+        for (int i = 0; i < messages; i++) {
+            String user = "bidder" + random.nextInt(1000) + "@localhost:4444";
+            Message m = (i % 4 == 0)
+                    ? factory.createIAmInterestedMessage(user, 1 + random.nextInt(10))
+                    : factory.createMyBidMessage(user, 50 + random.nextInt(10000), 1 + random.nextInt(10));
+            data.put(new EncodedMessage(m, binaryCodec).getBuffer(binary));
+        }
+        data.flip();
+
+        ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        if (split) {
+            while (data.hasRemaining()) {
+                ByteBuffer chunk = data.slice();
+                chunk.limit(Math.min(splitReadSize, chunk.remaining()));
+                data.position(data.position() + chunk.limit());
+                chunks.add(chunk);
+            }
+        } else {
+            chunks.add(data);
+        }
+        reads = chunks.toArray(new ByteBuffer[chunks.size()]);
+
+        decoder = new FrameDecoder(binaryCodec);
+        decoder.setBinary(binary);
+    }
+
+    /**
+     * Decodes one read, or with split reads all the reads making up the messages
+     */
+    public long operation(int thread) throws Exception
+    {
+        long decoded = 0;
+        do {
+            ByteBuffer read = reads[next].duplicate();
+            next = (next + 1) % reads.length;
+            Message m;
+            while ((m = decoder.next(read)) != null)
+                decoded += m.getCommand().length();
+        } while (next != 0);
+        return decoded;
+    }
+}
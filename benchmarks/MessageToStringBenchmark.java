@@ -0,0 +1,40 @@
+import java.util.Random;
+
+
+/**
+ * Message.toString, which produces every text frame sent to a bidder and every journal line
+ *
+ * The parameter is the number of properties of the message.
+ */
+public class MessageToStringBenchmark extends Benchmark
+{
+    private static final String[] names = {
+        Constants.item_id, Constants.amount, Constants.username, Constants.description,
+        Constants.user_id, Constants.protocol, "extra1", "extra2"
+    };
+
+    private Message message;
+
+    public String getName()
+    {
+        return "Message.toString";
+    }
+
+    public String[] getParams()
+    {
+        return new String[] { "1", "4", "8" };
+    }
+
+    public void setup(String param)
+    {
+        Random random = new Random(42);
+        message = new Message(Constants.new_high_bid);
+        for (int i = 0; i < Integer.parseInt(param); i++)
+            message.addProperty(names[i], "value" + random.nextInt(100000));
+    }
+
+    public long operation(int thread)
+    {
+        return message.toString().length();
+    }
+}
@@ -0,0 +1,47 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+
+/**
+ * An in-memory channel that accepts and discards everything written to it,
+ * standing in for a fast bidder connection
+ */
+public class NullChannel implements GatheringByteChannel
+{
+    private long bytesWritten;
+
+    public int write(ByteBuffer src)
+    {
+        int length = src.remaining();
+        src.position(src.limit());
+        bytesWritten += length;
+        return length;
+    }
+
+    public long write(ByteBuffer[] srcs, int offset, int length)
+    {
+        long written = 0;
+        for (int i = offset; i < offset + length; i++)
+            written += write(srcs[i]);
+        return written;
+    }
+
+    public long write(ByteBuffer[] srcs)
+    {
+        return write(srcs, 0, srcs.length);
+    }
+
+    public boolean isOpen()
+    {
+        return true;
+    }
+
+    public void close()
+    {
+    }
+
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+
+/**
+ * Sends malformed messages to an auctioneer running in this process and checks that only the
+ * connections that sent them are dropped, the other clients of the same reactor being served
+ *
+ *   javac -d out Auction/*.java && javac -cp out -d out tests/*.java
+ *   java -cp out MalformedFrameTest
+ *
+ * Exits with 0 if every check passed, 1 otherwise.
+ */
+public class MalformedFrameTest
+{
+    private static final int timeoutMillis = 3000;
+
+    private int port;
+    private int failures;
+
+    public static void main(String[] args) throws Exception
+    {
+        MalformedFrameTest test = new MalformedFrameTest();
+        test.startAuctioneer();
+        try {
+            test.run();
+        } catch (Exception e) {
+            System.out.println("FAILED " + e);
+            test.failures++;
+        }
+        System.out.println(test.failures == 0 ? "PASS" : test.failures + " check(s) failed");
+        System.exit(test.failures == 0 ? 0 : 1);
+    }
+
+    private void startAuctioneer() throws IOException
+    {
+        File dir = Files.createTempDirectory("malformed").toFile();
+        File conf = new File(dir, "conf.txt");
+        FileWriter writer = new FileWriter(conf);
+        writer.write("60\n1\n10 test item\n");
+        writer.close();
+
+        System.setProperty(ServerOptions.reactors, "1");    // every client on the same reactor
+        System.setProperty(ServerOptions.storage, ServerOptions.storageMapped);
+        System.setProperty(ServerOptions.storageDir, dir.getPath());
+        ServerSocket probe = new ServerSocket(0);
+        port = probe.getLocalPort();
+        probe.close();
+
+        Auctioneer auctioneer = new Auctioneer(port, Log.text(Log.Level.WARN, System.out), ServerOptions.fromSystemProperties());
+        auctioneer.configure(conf.getPath());
+        auctioneer.setDaemon(true);
+        auctioneer.start();
+    }
+
+    private void run() throws Exception
+    {
+        ByteBuffer frame = ByteBuffer.allocate(6);
+        frame.putInt(2).put((byte) 99).put((byte) 0);   // no command has code 99
+        check("a frame with an unknown command drops its connection",
+                isDroppedAfter(connect("mallory", true), frame.array()));
+
+        frame = ByteBuffer.allocate(9);
+        frame.putInt(5).put((byte) 3).put((byte) 1).put((byte) 8).put((byte) 1).put((byte) 0);  // amount, an int cut short
+        check("a truncated frame drops its connection",
+                isDroppedAfter(connect("trudy", true), frame.array()));
+
+        byte[] forged = "1\n999 0 self new_high_bid: amount = \"1000000\"".getBytes(StandardCharsets.UTF_8);
+        frame = ByteBuffer.allocate(10 + forged.length);
+        frame.putInt(6 + forged.length).put((byte) 3).put((byte) 1).put((byte) 11).put((byte) 0)  // my_bid, request_id
+                .putShort((short) forged.length).put(forged);
+        check("a binary string with a line break drops its connection",
+                isDroppedAfter(connect("oscar", true), frame.array()));
+
+        byte[] bid = "my_bid: item_id = \"1\", amount = \"lots\"\n".getBytes(StandardCharsets.UTF_8);
+        check("a bid with an amount that is not a number drops its connection",
+                isDroppedAfter(connect("eve", false), bid));
+
+        Socket honest = connect("alice", false);
+        check("another client is still served", honest != null);
+    }
+
+    /**
+     * Connects a client and waits for the server to accept its name
+     * @param name
+     * @param binary
+     * @return the socket, or null if the server did not answer
+     */
+    private Socket connect(String name, boolean binary) throws Exception
+    {
+        Socket socket = null;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (socket == null) {
+            try {
+                socket = new Socket("localhost", port);
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+                Thread.sleep(50);
+            }
+        }
+        socket.setSoTimeout(timeoutMillis);
+        send(socket, "connect: username = \"" + name + "\"" + (binary ? ", protocol = \"binary\"" : "") + "\n");
+        String reply = read(socket);
+        if (reply == null || !reply.contains("You are now connected")) {
+            socket.close();
+            return null;
+        }
+        return socket;
+    }
+
+    private static void send(Socket socket, String text) throws IOException
+    {
+        OutputStream out = socket.getOutputStream();
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Returns what the server sent next, or null if it closed the connection or sent nothing
+     * @param socket
+     * @return
+     */
+    private static String read(Socket socket) throws IOException
+    {
+        byte[] buffer = new byte[1024];
+        try {
+            int count = socket.getInputStream().read(buffer);
+            return (count < 0) ? null : new String(buffer, 0, count, StandardCharsets.UTF_8);
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sends the given bytes and returns true if the server then closes the connection
+     * @param socket null if the client could not connect, which fails the check
+     * @param data
+     * @return
+     */
+    private static boolean isDroppedAfter(Socket socket, byte[] data) throws IOException
+    {
+        if (socket == null)
+            return false;
+        socket.getOutputStream().write(data);
+        InputStream in = socket.getInputStream();
+        try {
+            while (true) {
+                if (in.read() < 0)
+                    return true;
+            }
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            return true;    // reset by the server
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void check(String description, boolean passed)
+    {
+        System.out.println((passed ? "ok     " : "FAILED ") + description);
+        if (!passed)
+            failures++;
+    }
+}